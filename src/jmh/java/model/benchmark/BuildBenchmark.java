@@ -0,0 +1,67 @@
+package model.benchmark;
+
+import model.CSMTBuilder;
+import model.CSMTImpl;
+import model.utils.HashEngine;
+import model.utils.Sha256;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigInteger;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+// Building a tree from sorted entries: one insert per entry against CSMTBuilder.fromSorted
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+@State(Scope.Benchmark)
+public class BuildBenchmark {
+    @Param({"100000", "1000000"})
+    int size;
+
+    @Param({"SEQUENTIAL", "RANDOM", "HASH256"})
+    KeyType keyType;
+
+    List<Map.Entry<BigInteger, String>> entries;
+    List<Map.Entry<BigInteger, byte[]>> byteEntries;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BigInteger[] keys = keyType.present(size);
+        Arrays.sort(keys);
+        String[] values = CSMTBenchmark.randomValues(size);
+        entries = IntStream.range(0, size)
+                .mapToObj(i -> new AbstractMap.SimpleImmutableEntry<>(keys[i], values[i]))
+                .collect(Collectors.toList());
+        byteEntries = entries.stream()
+                .map(entry -> new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), Base64.getDecoder().decode(entry.getValue())))
+                .collect(Collectors.toList());
+    }
+
+    @Benchmark
+    public CSMTImpl<String, byte[]> insert() {
+        CSMTImpl<String, byte[]> tree = CSMTImpl.createDefault();
+        for (Map.Entry<BigInteger, String> entry : entries) {
+            tree.insert(entry.getKey(), entry.getValue());
+        }
+        return tree;
+    }
+
+    @Benchmark
+    public CSMTImpl<String, byte[]> fromSorted() {
+        return CSMTBuilder.fromSorted(entries.iterator(), Sha256::keyedLeafHash, Sha256::nodeHash);
+    }
+
+    @Benchmark
+    public CSMTImpl<byte[], byte[]> fromSortedHashPairs() {
+        return CSMTBuilder.fromSorted(byteEntries.iterator(), HashEngine.sha256());
+    }
+}
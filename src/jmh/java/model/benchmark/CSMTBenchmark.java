@@ -0,0 +1,167 @@
+package model.benchmark;
+
+import model.CSMT;
+import model.CSMTImpl;
+import model.LongCSMTImpl;
+import model.OffHeapCSMTImpl;
+import model.TestUtils;
+import model.UInt256CSMTImpl;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.math.BigInteger;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+@State(Scope.Benchmark)
+public class CSMTBenchmark {
+    static final int BATCH = 1_000;
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    int size;
+
+    @Param({"SEQUENTIAL", "RANDOM", "HASH256"})
+    KeyType keyType;
+
+    // LONG takes the low 64 bits of HASH256 keys
+    @Param({"BIGINTEGER", "LONG", "UINT256"})
+    Engine engine;
+
+    CSMT<String, byte[]> tree;
+    BigInteger[] present;
+    BigInteger[] absent;
+    String[] values;
+    int cursor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        present = engine.fit(keyType.present(size));
+        absent = engine.fit(keyType.absent(Math.max(size, BATCH)));
+        values = randomValues(size);
+
+        tree = engine.create();
+        for (int i = 0; i != size; i++) {
+            tree.insert(present[i], values[i]);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class InsertState {
+        CSMTBenchmark benchmark;
+        int from;
+
+        @Setup(Level.Invocation)
+        public void setUp(CSMTBenchmark benchmark) {
+            this.benchmark = benchmark;
+            from = benchmark.nextBatch(benchmark.absent.length);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            for (int i = from; i != from + BATCH; i++) {
+                benchmark.tree.remove(benchmark.absent[i]);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class RemoveState {
+        CSMTBenchmark benchmark;
+        int from;
+
+        @Setup(Level.Invocation)
+        public void setUp(CSMTBenchmark benchmark) {
+            this.benchmark = benchmark;
+            from = benchmark.nextBatch(benchmark.present.length);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            for (int i = from; i != from + BATCH && i != benchmark.size; i++) {
+                benchmark.tree.insert(benchmark.present[i], benchmark.values[i]);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void insert(InsertState state) {
+        for (int i = state.from; i != state.from + BATCH; i++) {
+            tree.insert(absent[i], values[i % size]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void remove(RemoveState state) {
+        for (int i = state.from; i != state.from + BATCH && i != size; i++) {
+            tree.remove(present[i]);
+        }
+    }
+
+    @Benchmark
+    public void getMembershipProof(Blackhole blackhole) {
+        blackhole.consume(tree.getProof(present[next(present.length)]));
+    }
+
+    @Benchmark
+    public void getNonMembershipProof(Blackhole blackhole) {
+        blackhole.consume(tree.getProof(absent[next(absent.length)]));
+    }
+
+    private int next(int bound) {
+        if (++cursor >= bound) {
+            cursor = 0;
+        }
+        return cursor;
+    }
+
+    private int nextBatch(int bound) {
+        cursor += BATCH;
+        if (cursor + BATCH > bound) {
+            cursor = 0;
+        }
+        return cursor;
+    }
+
+    public enum Engine {
+        BIGINTEGER, LONG, UINT256, OFF_HEAP;
+
+        CSMT<String, byte[]> create() {
+            switch (this) {
+                case LONG: return new LongCSMTImpl<>(TestUtils.LEAF_HASH_FUNCTION, TestUtils.NODE_HASH_FUNCTION);
+                case UINT256: return new UInt256CSMTImpl<>(TestUtils.LEAF_HASH_FUNCTION, TestUtils.NODE_HASH_FUNCTION);
+                case OFF_HEAP: return new OffHeapCSMTImpl<>(TestUtils.LEAF_HASH_FUNCTION, TestUtils.NODE_HASH_FUNCTION, 32);
+                default: return new CSMTImpl<>(TestUtils.LEAF_HASH_FUNCTION, TestUtils.NODE_HASH_FUNCTION);
+            }
+        }
+
+        BigInteger[] fit(BigInteger[] keys) {
+            if (this != LONG) return keys;
+
+            BigInteger mask = BigInteger.ONE.shiftLeft(Long.SIZE).subtract(BigInteger.ONE);
+            for (int i = 0; i != keys.length; i++) {
+                keys[i] = keys[i].and(mask);
+            }
+            return keys;
+        }
+    }
+
+    static String[] randomValues(int count) {
+        Random random = new Random(7);
+        Base64.Encoder encoder = Base64.getEncoder();
+        byte[] bytes = new byte[8];
+        String[] values = new String[count];
+        for (int i = 0; i != count; i++) {
+            random.nextBytes(bytes);
+            values[i] = encoder.encodeToString(bytes);
+        }
+        return values;
+    }
+}
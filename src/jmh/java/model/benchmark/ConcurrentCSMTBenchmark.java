@@ -0,0 +1,55 @@
+package model.benchmark;
+
+import model.CSMTImpl;
+import model.ConcurrentCSMT;
+import model.utils.Sha256;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigInteger;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Inserts of random keys by 8 writers: compare-and-set on the root against one lock around
+// CSMTImpl. keyBits controls how likely two writers are to race for the same key and subtree.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class ConcurrentCSMTBenchmark {
+    @Param({"16", "63"})
+    int keyBits;
+
+    ConcurrentCSMT<String, byte[]> concurrentTree;
+    CSMTImpl<String, byte[]> lockedTree;
+    String[] values;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        concurrentTree = new ConcurrentCSMT<>(Sha256::keyedLeafHash, Sha256::nodeHash);
+        lockedTree = CSMTImpl.createDefault();
+        values = CSMTBenchmark.randomValues(1 << 16);
+    }
+
+    @Benchmark
+    public void compareAndSet() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        concurrentTree.insert(randomKey(random), values[random.nextInt(values.length)]);
+    }
+
+    @Benchmark
+    public void locked() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        BigInteger key = randomKey(random);
+        String value = values[random.nextInt(values.length)];
+        synchronized (lockedTree) {
+            lockedTree.insert(key, value);
+        }
+    }
+
+    private BigInteger randomKey(ThreadLocalRandom random) {
+        return BigInteger.valueOf(random.nextLong() >>> (Long.SIZE - keyBits));
+    }
+}
@@ -0,0 +1,60 @@
+package model.benchmark;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+// present keys are inserted during setup, absent keys are (with overwhelming probability) not in the tree
+public enum KeyType {
+    SEQUENTIAL {
+        @Override
+        BigInteger[] keys(int count, boolean present) {
+            BigInteger[] keys = new BigInteger[count];
+            for (int i = 0; i != count; i++) {
+                keys[i] = BigInteger.valueOf(2L * i + (present ? 0 : 1));
+            }
+            return keys;
+        }
+    },
+    RANDOM {
+        @Override
+        BigInteger[] keys(int count, boolean present) {
+            Random random = new Random(present ? 42 : 43);
+            BigInteger[] keys = new BigInteger[count];
+            for (int i = 0; i != count; i++) {
+                keys[i] = BigInteger.valueOf(random.nextLong() & Long.MAX_VALUE);
+            }
+            return keys;
+        }
+    },
+    HASH256 {
+        @Override
+        BigInteger[] keys(int count, boolean present) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+                BigInteger[] keys = new BigInteger[count];
+                for (int i = 0; i != count; i++) {
+                    buffer.clear();
+                    buffer.putLong(present ? i : -1L - i);
+                    keys[i] = new BigInteger(1, digest.digest(buffer.array()));
+                }
+                return keys;
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    abstract BigInteger[] keys(int count, boolean present);
+
+    public BigInteger[] present(int count) {
+        return keys(count, true);
+    }
+
+    public BigInteger[] absent(int count) {
+        return keys(count, false);
+    }
+}
@@ -0,0 +1,38 @@
+package model.benchmark;
+
+import model.TestUtils;
+import model.tester.Merkle;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+// Dense Merkle tree baseline for CSMTBenchmark.getMembershipProof
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+@State(Scope.Benchmark)
+public class MerkleBenchmark {
+    @Param({"1000", "100000", "1000000", "10000000"})
+    int size;
+
+    Merkle<String, byte[]> tree;
+    int cursor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        String[] input = CSMTBenchmark.randomValues(size);
+        final int high = (int) Math.ceil(TestUtils.log2(TestUtils.toPow2(size))) + 1;
+        tree = new Merkle<>(high, input, TestUtils.LEAF_HASH_FUNCTION, TestUtils.NODE_HASH_FUNCTION);
+    }
+
+    @Benchmark
+    public void getProof(Blackhole blackhole) {
+        if (++cursor >= size) {
+            cursor = 0;
+        }
+        blackhole.consume(tree.getProof(cursor));
+    }
+}
@@ -0,0 +1,121 @@
+package model.benchmark;
+
+import implementation.Tree;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import scala.math.BigInt;
+
+import java.util.concurrent.TimeUnit;
+
+import static model.benchmark.CSMTBenchmark.BATCH;
+
+// Non-membership proofs are not measured: the Scala engine converts bound keys with toString.toInt
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+@State(Scope.Benchmark)
+public class ScalaTreeBenchmark {
+    @Param({"1000", "100000", "1000000", "10000000"})
+    int size;
+
+    @Param({"SEQUENTIAL", "RANDOM", "HASH256"})
+    KeyType keyType;
+
+    Tree tree;
+    BigInt[] present;
+    BigInt[] absent;
+    String[] values;
+    int cursor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        present = toScala(keyType.present(size));
+        absent = toScala(keyType.absent(Math.max(size, BATCH)));
+        values = CSMTBenchmark.randomValues(size);
+
+        tree = new Tree();
+        for (int i = 0; i != size; i++) {
+            tree.insert(present[i], values[i]);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class InsertState {
+        ScalaTreeBenchmark benchmark;
+        int from;
+
+        @Setup(Level.Invocation)
+        public void setUp(ScalaTreeBenchmark benchmark) {
+            this.benchmark = benchmark;
+            from = benchmark.nextBatch(benchmark.absent.length);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            for (int i = from; i != from + BATCH; i++) {
+                benchmark.tree.delete(benchmark.absent[i]);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class DeleteState {
+        ScalaTreeBenchmark benchmark;
+        int from;
+
+        @Setup(Level.Invocation)
+        public void setUp(ScalaTreeBenchmark benchmark) {
+            this.benchmark = benchmark;
+            from = benchmark.nextBatch(benchmark.present.length);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            for (int i = from; i != from + BATCH && i != benchmark.size; i++) {
+                benchmark.tree.insert(benchmark.present[i], benchmark.values[i]);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void insert(InsertState state) {
+        for (int i = state.from; i != state.from + BATCH; i++) {
+            tree.insert(absent[i], values[i % size]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void delete(DeleteState state) {
+        for (int i = state.from; i != state.from + BATCH && i != size; i++) {
+            tree.delete(present[i]);
+        }
+    }
+
+    @Benchmark
+    public void getMembershipProof(Blackhole blackhole) {
+        if (++cursor >= present.length) {
+            cursor = 0;
+        }
+        blackhole.consume(tree.getProof(present[cursor]));
+    }
+
+    private int nextBatch(int bound) {
+        cursor += BATCH;
+        if (cursor + BATCH > bound) {
+            cursor = 0;
+        }
+        return cursor;
+    }
+
+    private static BigInt[] toScala(java.math.BigInteger[] keys) {
+        BigInt[] result = new BigInt[keys.length];
+        for (int i = 0; i != keys.length; i++) {
+            result[i] = BigInt.apply(keys[i]);
+        }
+        return result;
+    }
+}
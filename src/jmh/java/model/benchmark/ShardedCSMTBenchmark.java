@@ -0,0 +1,57 @@
+package model.benchmark;
+
+import model.ShardedCSMT;
+import model.utils.Sha256;
+import model.utils.Utils;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// Batch write throughput as a function of the shard count, one writer thread per shard
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ShardedCSMTBenchmark {
+    static final int KEY_BITS = 64;
+    static final int BATCH_SIZE = 1 << 14;
+
+    @Param({"0", "1", "2", "3"})
+    int shardBits;
+
+    ShardedCSMT<String, byte[]> tree;
+    String[] values;
+    Random random;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        tree = new ShardedCSMT<>(Sha256::keyedLeafHash, Sha256::nodeHash, shardBits, KEY_BITS);
+        values = CSMTBenchmark.randomValues(BATCH_SIZE);
+        random = new Random(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        tree.close();
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Mutations {
+        public long mutations;
+    }
+
+    @Benchmark
+    public void applyBatch(Mutations counter) {
+        SortedMap<BigInteger, String> puts = new TreeMap<>();
+        for (int i = 0; i != BATCH_SIZE; i++) {
+            puts.put(Utils.toUnsignedBigInteger(random.nextLong()), values[i]);
+        }
+        tree.applyBatch(puts, Collections.emptySet());
+        counter.mutations += BATCH_SIZE;
+    }
+}
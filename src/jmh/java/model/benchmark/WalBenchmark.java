@@ -0,0 +1,78 @@
+package model.benchmark;
+
+import model.CSMTImpl;
+import model.DurableCSMT;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Durable mutation throughput as a function of how many mutations share one fsync:
+// batch applies batchSize inserts per fsync, concurrentInsert lets 8 writers group-commit.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WalBenchmark {
+    Path directory;
+    DurableCSMT<String, byte[]> tree;
+    String[] values;
+    final AtomicLong next = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("csmt-wal");
+        tree = DurableCSMT.open(CSMTImpl.createDefault(), directory.resolve("wal"),
+                value -> value.getBytes(StandardCharsets.UTF_8),
+                bytes -> new String(bytes, StandardCharsets.UTF_8));
+        values = CSMTBenchmark.randomValues(1 << 16);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        tree.close();
+        Files.deleteIfExists(directory.resolve("wal"));
+        Files.deleteIfExists(directory);
+    }
+
+    // Counts mutations, so the reported throughput is per mutation rather than per batch
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Mutations {
+        public long mutations;
+    }
+
+    @State(Scope.Thread)
+    public static class Batch {
+        @Param({"1", "10", "100", "1000"})
+        int batchSize;
+    }
+
+    @Benchmark
+    public void batch(Batch batch, Mutations counter) {
+        int batchSize = batch.batchSize;
+        SortedMap<BigInteger, String> puts = new TreeMap<>();
+        for (int i = 0; i != batchSize; i++) {
+            long key = next.getAndIncrement();
+            puts.put(BigInteger.valueOf(key), values[(int) (key & (values.length - 1))]);
+        }
+        tree.applyBatch(puts, Collections.emptySet());
+        counter.mutations += batchSize;
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void concurrentInsert(Mutations counter) {
+        long key = next.getAndIncrement();
+        tree.insert(BigInteger.valueOf(key), values[(int) (key & (values.length - 1))]);
+        counter.mutations++;
+    }
+}
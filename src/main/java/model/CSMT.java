@@ -1,12 +1,35 @@
 package model;
 
+import lombok.val;
+import model.proof.MembershipProof;
 import model.proof.Proof;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.math.BigInteger;
+import java.util.Set;
+import java.util.SortedMap;
 
 public interface CSMT<V, H> {
     void insert(@NotNull BigInteger key, @NotNull V value);
     void remove(@NotNull BigInteger key);
     @NotNull Proof<V, H> getProof(@NotNull BigInteger key);
+    @Nullable H rootHash();
+
+    // Value stored under key, or null. Implementations look it up without building a proof
+    @Nullable
+    default V get(@NotNull BigInteger key) {
+        val proof = getProof(key);
+        return proof instanceof MembershipProof ? ((MembershipProof<V, H>) proof).getNode().getValue() : null;
+    }
+
+    // Same result as removing every key of deletes and then inserting every entry of puts
+    default void applyBatch(@NotNull SortedMap<BigInteger, V> puts, @NotNull Set<BigInteger> deletes) {
+        for (val key : deletes) {
+            remove(key);
+        }
+        for (val entry : puts.entrySet()) {
+            insert(entry.getKey(), entry.getValue());
+        }
+    }
 }
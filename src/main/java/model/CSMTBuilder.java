@@ -0,0 +1,324 @@
+package model;
+
+import lombok.*;
+import lombok.experimental.*;
+import lombok.var;
+import model.node.InnerNode;
+import model.node.LeafNode;
+import model.node.Node;
+import model.utils.HashEngine;
+import model.utils.LeafHashFunction;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.stream.Stream;
+
+import static model.utils.Utils.distance;
+
+// Builds a tree from entries sorted by key without inserting them one by one. The shape of a CSMT
+// depends only on its keys: the root splits the keys at the highest bit in which the first and
+// the last one differ, and so does every subtree. Each node is created and hashed once, disjoint
+// subtrees are built in parallel, and the result equals the tree built by inserting the entries.
+@UtilityClass
+public class CSMTBuilder {
+    static final int SEQUENTIAL_THRESHOLD = 1 << 12;
+
+    @NotNull
+    public static <V, H> CSMTImpl<V, H> fromSorted(
+            @NotNull Stream<? extends Map.Entry<BigInteger, ? extends V>> entries,
+            @NotNull LeafHashFunction<V, H> leafHashFunction,
+            @NotNull BinaryOperator<H> nodeHashFunction
+    ) {
+        return fromSorted(entries.iterator(), leafHashFunction, nodeHashFunction, ForkJoinPool.commonPool());
+    }
+
+    @NotNull
+    public static <V, H> CSMTImpl<V, H> fromSorted(
+            @NotNull Iterator<? extends Map.Entry<BigInteger, ? extends V>> entries,
+            @NotNull LeafHashFunction<V, H> leafHashFunction,
+            @NotNull BinaryOperator<H> nodeHashFunction
+    ) {
+        return fromSorted(entries, leafHashFunction, nodeHashFunction, ForkJoinPool.commonPool());
+    }
+
+    // Keys must be non-negative and strictly increasing
+    @NotNull
+    public static <V, H> CSMTImpl<V, H> fromSorted(
+            @NotNull Iterator<? extends Map.Entry<BigInteger, ? extends V>> entries,
+            @NotNull LeafHashFunction<V, H> leafHashFunction,
+            @NotNull BinaryOperator<H> nodeHashFunction,
+            @NotNull ForkJoinPool pool
+    ) {
+        val keys = new ArrayList<BigInteger>();
+        val values = new ArrayList<V>();
+        collect(entries, keys, values);
+
+        val tree = new CSMTImpl<V, H>(leafHashFunction, nodeHashFunction);
+        if (!keys.isEmpty()) {
+            @SuppressWarnings("unchecked")
+            val valueArray = (V[]) values.toArray();
+            tree.reset(build(keys.toArray(new BigInteger[0]), valueArray, null, null,
+                    leafHashFunction, nodeHashFunction, pool));
+        }
+        return tree;
+    }
+
+    @NotNull
+    public static CSMTImpl<byte[], byte[]> fromSorted(
+            @NotNull Iterator<? extends Map.Entry<BigInteger, byte[]>> entries,
+            @NotNull HashEngine engine
+    ) {
+        return fromSorted(entries, engine, ForkJoinPool.commonPool());
+    }
+
+    // The tree of CSMTImpl.create(engine). Inner nodes are hashed by height, all nodes of one
+    // height in batches through HashEngine.hashPairs, as they only depend on lower nodes.
+    @NotNull
+    public static CSMTImpl<byte[], byte[]> fromSorted(
+            @NotNull Iterator<? extends Map.Entry<BigInteger, byte[]>> entries,
+            @NotNull HashEngine engine,
+            @NotNull ForkJoinPool pool
+    ) {
+        val keys = new ArrayList<BigInteger>();
+        val values = new ArrayList<byte[]>();
+        collect(entries, keys, values);
+
+        val tree = CSMTImpl.create(engine);
+        if (!keys.isEmpty()) {
+            tree.reset(new PairBuilder(engine, keys.toArray(new BigInteger[0]), values.toArray(new byte[0][]), pool).build());
+        }
+        return tree;
+    }
+
+    private static <V> void collect(
+            @NotNull Iterator<? extends Map.Entry<BigInteger, ? extends V>> entries,
+            @NotNull List<BigInteger> keys,
+            @NotNull List<V> values
+    ) {
+        while (entries.hasNext()) {
+            val entry = entries.next();
+            val key = entry.getKey();
+            if (key.signum() < 0) {
+                throw new IllegalArgumentException("Negative key: " + key);
+            }
+            if (!keys.isEmpty() && key.compareTo(keys.get(keys.size() - 1)) <= 0) {
+                throw new IllegalArgumentException("Keys are not sorted at " + key);
+            }
+            keys.add(key);
+            values.add(entry.getValue());
+        }
+    }
+
+    // Keys below the highest bit in which keys[from, to) differ go left, returns the first right one
+    private static int split(@NotNull BigInteger[] keys, int from, int to) {
+        val bit = distance(keys[from], keys[to - 1]) - 1;
+        var low = from + 1;
+        var high = to - 1;
+        while (low < high) {
+            val middle = (low + high) >>> 1;
+            if (keys[middle].testBit(bit)) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    // Builds the tree over non-empty sorted keys. Given leafHashes are used instead of hashing the
+    // values, given innerHashes (in post-order) instead of hashing the children.
+    @NotNull
+    static <V, H> Node<H> build(
+            @NotNull BigInteger[] keys,
+            @NotNull V[] values,
+            @Nullable H[] leafHashes,
+            @Nullable H[] innerHashes,
+            @NotNull LeafHashFunction<V, H> leafHashFunction,
+            @NotNull BinaryOperator<H> nodeHashFunction,
+            @NotNull ForkJoinPool pool
+    ) {
+        return pool.invoke(new BuildTask<>(keys, values, leafHashes, innerHashes,
+                leafHashFunction, nodeHashFunction, 0, keys.length, 0));
+    }
+
+    // Builds the subtree over keys[from, to), whose inner nodes come at offset in post-order
+    @RequiredArgsConstructor
+    private static class BuildTask<V, H> extends RecursiveTask<Node<H>> {
+        @NotNull final BigInteger[] keys;
+        @NotNull final V[] values;
+        @Nullable final H[] leafHashes;
+        @Nullable final H[] innerHashes;
+        @NotNull final LeafHashFunction<V, H> leafHashFunction;
+        @NotNull final BinaryOperator<H> nodeHashFunction;
+        final int from;
+        final int to;
+        final int offset;
+
+        @Override
+        protected Node<H> compute() {
+            return build(from, to, offset);
+        }
+
+        @NotNull
+        private Node<H> build(int from, int to, int offset) {
+            if (to - from == 1) {
+                return new LeafNode<>(keys[from], values[from],
+                        leafHashes != null ? leafHashes[from] : leafHashFunction.apply(keys[from], values[from]));
+            }
+
+            val split = split(keys, from, to);
+            val rightOffset = offset + (split - from - 1);
+
+            final Node<H> left;
+            final Node<H> right;
+            if (to - from > SEQUENTIAL_THRESHOLD) {
+                val leftTask = new BuildTask<>(keys, values, leafHashes, innerHashes,
+                        leafHashFunction, nodeHashFunction, from, split, offset);
+                leftTask.fork();
+                right = build(split, to, rightOffset);
+                left = leftTask.join();
+            } else {
+                left = build(from, split, offset);
+                right = build(split, to, rightOffset);
+            }
+
+            val hash = innerHashes != null
+                    ? innerHashes[offset + (to - from - 2)]
+                    : nodeHashFunction.apply(left.getHash(), right.getHash());
+            return new InnerNode<>(hash, left, right);
+        }
+    }
+
+    // Lays out the shape first: inner node j has children lefts[j] and rights[j], a negative
+    // child -1 - i being leaf i. Then hashes the leaves and the inner nodes height by height.
+    @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+    private static class PairBuilder {
+        @NotNull HashEngine engine;
+        @NotNull BigInteger[] keys;
+        @NotNull byte[][] values;
+        @NotNull ForkJoinPool pool;
+        @NotNull int[] lefts;
+        @NotNull int[] rights;
+        @NotNull int[] heights;
+        @NotNull Node<byte[]>[] leaves;
+        @NotNull Node<byte[]>[] inner;
+        @NonFinal int innerCount;
+
+        @SuppressWarnings("unchecked")
+        PairBuilder(@NotNull HashEngine engine, @NotNull BigInteger[] keys, @NotNull byte[][] values, @NotNull ForkJoinPool pool) {
+            this.engine = engine;
+            this.keys = keys;
+            this.values = values;
+            this.pool = pool;
+            this.lefts = new int[keys.length - 1];
+            this.rights = new int[keys.length - 1];
+            this.heights = new int[keys.length - 1];
+            this.leaves = (Node<byte[]>[]) new Node[keys.length];
+            this.inner = (Node<byte[]>[]) new Node[keys.length - 1];
+        }
+
+        @NotNull
+        Node<byte[]> build() {
+            val root = shape(0, keys.length);
+            pool.invoke(new RangeTask(0, keys.length, (from, to) -> {
+                for (int i = from; i != to; i++) {
+                    leaves[i] = new LeafNode<>(keys[i], values[i], engine.hashLeaf(values[i]));
+                }
+            }));
+
+            // Inner nodes ordered by height
+            var maxHeight = 0;
+            for (val height : heights) {
+                maxHeight = Math.max(maxHeight, height);
+            }
+            val starts = new int[maxHeight + 2];
+            for (val height : heights) {
+                starts[height + 1]++;
+            }
+            for (int h = 1; h != starts.length; h++) {
+                starts[h] += starts[h - 1];
+            }
+            val order = new int[heights.length];
+            val next = starts.clone();
+            for (int j = 0; j != heights.length; j++) {
+                order[next[heights[j]]++] = j;
+            }
+
+            for (int h = 1; h <= maxHeight; h++) {
+                pool.invoke(new RangeTask(starts[h], starts[h + 1], (from, to) -> hashBatch(order, from, to)));
+            }
+            return node(root);
+        }
+
+        // Returns the child reference of the subtree over keys[from, to)
+        private int shape(int from, int to) {
+            if (to - from == 1) {
+                return -1 - from;
+            }
+            val split = split(keys, from, to);
+            val left = shape(from, split);
+            val right = shape(split, to);
+            val j = innerCount++;
+            lefts[j] = left;
+            rights[j] = right;
+            heights[j] = 1 + Math.max(height(left), height(right));
+            return j;
+        }
+
+        private int height(int child) {
+            return child < 0 ? 0 : heights[child];
+        }
+
+        @NotNull
+        private Node<byte[]> node(int child) {
+            return child < 0 ? leaves[-1 - child] : inner[child];
+        }
+
+        private void hashBatch(@NotNull int[] order, int from, int to) {
+            val length = engine.hashLength();
+            val pairs = new byte[2 * (to - from) * length];
+            for (int k = from; k != to; k++) {
+                val j = order[k];
+                System.arraycopy(node(lefts[j]).getHash(), 0, pairs, 2 * (k - from) * length, length);
+                System.arraycopy(node(rights[j]).getHash(), 0, pairs, (2 * (k - from) + 1) * length, length);
+            }
+            engine.hashPairs(pairs, to - from, pairs);
+            for (int k = from; k != to; k++) {
+                val j = order[k];
+                val hash = Arrays.copyOfRange(pairs, (k - from) * length, (k - from + 1) * length);
+                inner[j] = new InnerNode<>(hash, node(lefts[j]), node(rights[j]));
+            }
+        }
+    }
+
+    private interface RangeAction {
+        void run(int from, int to);
+    }
+
+    @RequiredArgsConstructor
+    private static class RangeTask extends RecursiveAction {
+        final int from;
+        final int to;
+        @NotNull final RangeAction action;
+
+        @Override
+        protected void compute() {
+            if (to - from <= SEQUENTIAL_THRESHOLD) {
+                action.run(from, to);
+            } else {
+                val middle = (from + to) >>> 1;
+                invokeAll(new RangeTask(from, middle, action), new RangeTask(middle, to, action));
+            }
+        }
+    }
+}
@@ -2,7 +2,10 @@ package model;
 
 import lombok.*;
 import lombok.experimental.*;
-import model.exceptions.*;
+import lombok.var;
+import model.feed.ChangeListener;
+import model.feed.ChangeRecord;
+import model.metrics.CSMTMetrics;
 import model.node.*;
 import model.node.Node;
 import model.proof.*;
@@ -11,333 +14,574 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.BinaryOperator;
 import java.util.function.Function;
 
-import static model.utils.Direction.*;
 import static model.utils.Utils.distance;
 
 @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
-@RequiredArgsConstructor
-public class CSMTImpl<V, H> implements CSMT<V, H> {
+public class CSMTImpl<V, H> implements VersionedCSMT<V, H> {
     @Nullable @NonFinal
-    Node<H> root;
-    @NotNull Function<V, H> leafHashFunction;
+    volatile Node<H> root;
+    // Leaves under root, kept up to date by every write so that monitoring does not walk the tree.
+    // Only counted in full when metrics are attached, until then reset() leaves it stale
+    @NonFinal volatile long leaves;
+    @NotNull LeafHashFunction<V, H> leafHashFunction;
     @NotNull BinaryOperator<H> nodeHashFunction;
+    boolean deferHashing;
+    @NotNull SortedMap<BigInteger, V> pendingPuts = new TreeMap<>();
+    @NotNull Set<BigInteger> pendingDeletes = new HashSet<>();
+    @NotNull List<ChangeListener<V, H>> listeners = new CopyOnWriteArrayList<>();
+    @NonFinal long sequence;
+    // Retained roots. Path copying leaves them valid, the garbage collector reclaims the nodes that
+    // no retained root or the current tree reaches once a version is released
+    @NotNull NavigableMap<Long, Optional<Node<H>>> versions = new ConcurrentSkipListMap<>();
+    @NonFinal long nextVersion;
+    // Set before the tree is shared, a tree without metrics only pays for the null checks
+    @Nullable @NonFinal CSMTMetrics metrics;
+
+    public CSMTImpl(@NotNull Function<V, H> leafHashFunction, @NotNull BinaryOperator<H> nodeHashFunction) {
+        this(leafHashFunction, nodeHashFunction, false);
+    }
+
+    public CSMTImpl(@NotNull LeafHashFunction<V, H> leafHashFunction, @NotNull BinaryOperator<H> nodeHashFunction) {
+        this(leafHashFunction, nodeHashFunction, false);
+    }
+
+    public CSMTImpl(
+            @NotNull Function<V, H> leafHashFunction,
+            @NotNull BinaryOperator<H> nodeHashFunction,
+            boolean deferHashing
+    ) {
+        this(LeafHashFunction.ofValue(leafHashFunction), nodeHashFunction, deferHashing);
+    }
+
+    // With deferHashing, insert and remove only record the change. The pending changes are applied
+    // as one batch, hashing every touched node once, by commit() or by the first read that needs
+    // hashes (rootHash, getProof, snapshot). Reads then modify the tree, so such a tree must not be
+    // shared between threads.
+    public CSMTImpl(
+            @NotNull LeafHashFunction<V, H> leafHashFunction,
+            @NotNull BinaryOperator<H> nodeHashFunction,
+            boolean deferHashing
+    ) {
+        this.leafHashFunction = leafHashFunction;
+        this.nodeHashFunction = nodeHashFunction;
+        this.deferHashing = deferHashing;
+    }
 
     @Override
     public void insert(@NotNull BigInteger key, @NotNull V value) {
-        try {
-            root = (root == null
-                    ? createNode(key, value)
-                    : doInsert(root, key, value));
-        } catch (KeyExistsException ignored) {}
+        val metrics = this.metrics;
+        val start = metrics == null ? 0 : System.nanoTime();
+        if (deferHashing) {
+            // A put of a key that is in the tree and not deleted is dropped by applyBatch, as insert does
+            pendingPuts.putIfAbsent(key, value);
+        } else {
+            val before = root;
+            doInsert(key, value);
+            if (root != before) {
+                leaves++;
+                if (!listeners.isEmpty()) {
+                    publish(Collections.singletonList(new ChangeRecord.Mutation<>(key, value)));
+                }
+            }
+        }
+        if (metrics != null) {
+            metrics.recordInsert(System.nanoTime() - start);
+        }
     }
 
-    @NotNull
-    private Node<H> doInsert(
-            @NotNull Node<H> node,
-            @NotNull BigInteger key,
-            @NotNull V value
-    ) throws KeyExistsException {
-        if (node instanceof LeafNode) {
-            if (key.equals(node.getKey())) {
-                throw new KeyExistsException();
+    private void doInsert(@NotNull BigInteger key, @NotNull V value) {
+        val root = this.root;
+        if (root == null) {
+            this.root = createNode(key, value);
+            return;
+        }
+
+        final PathStack<H> path = PathStack.acquire();
+        try {
+            var node = root;
+            while (node instanceof InnerNode) {
+                val inner = (InnerNode<H>) node;
+                val left = inner.getLeft();
+                val right = inner.getRight();
+
+                val leftDistance = distance(key, left.getKey());
+                val rightDistance = distance(key, right.getKey());
+                if (leftDistance == rightDistance) break;
+
+                path.push(inner, leftDistance < rightDistance);
+                node = leftDistance < rightDistance ? left : right;
             }
 
+            if (node instanceof LeafNode && key.equals(node.getKey())) return;
+
+            // key is outside of node's subtree, so it is the smallest or the largest key next to it
             val newLeaf = createNode(key, value);
-            return key.compareTo(node.getKey()) < 0
+            val subtree = key.compareTo(node.getKey()) < 0
                     ? createNode(newLeaf, node)
                     : createNode(node, newLeaf);
-        } else {
-            val left = ((InnerNode<H>) node).getLeft();
-            val right = ((InnerNode<H>) node).getRight();
-
-            val leftDistance = distance(key, left.getKey());
-            val rightDistance = distance(key, right.getKey());
-
-            if (leftDistance == rightDistance) {
-                val newLeaf = createNode(key, value);
-                val minKey = left.getKey().min(right.getKey());
-
-                return key.compareTo(minKey) < 0
-                        ? createNode(newLeaf, node)
-                        : createNode(node, newLeaf);
-            }
-
-            return leftDistance < rightDistance
-                    ? createNode(doInsert(left, key, value), right)
-                    : createNode(left, doInsert(right, key, value));
+            this.root = rebuild(path, subtree);
+        } finally {
+            path.release();
         }
     }
 
     @Override
     public void remove(@NotNull BigInteger key) {
+        val metrics = this.metrics;
+        val start = metrics == null ? 0 : System.nanoTime();
+        if (deferHashing) {
+            pendingPuts.remove(key);
+            pendingDeletes.add(key);
+        } else {
+            val before = root;
+            doRemove(key);
+            if (root != before) {
+                leaves--;
+                if (!listeners.isEmpty()) {
+                    publish(Collections.singletonList(new ChangeRecord.Mutation<V>(key, null)));
+                }
+            }
+        }
+        if (metrics != null) {
+            metrics.recordRemove(System.nanoTime() - start);
+        }
+    }
+
+    private void doRemove(@NotNull BigInteger key) {
+        val root = this.root;
         if (root == null) return;
 
         if (root instanceof LeafNode) {
             if (key.equals(root.getKey())) {
-                root = null;
+                this.root = null;
             }
-        } else {
-            try {
-                root = doRemove((InnerNode<H>) root, key);
-            } catch (NoSuchKeyException ignored) {}
+            return;
+        }
+
+        final PathStack<H> path = PathStack.acquire();
+        try {
+            var node = (InnerNode<H>) root;
+            while (true) {
+                val left = node.getLeft();
+                val right = node.getRight();
+
+                if (left instanceof LeafNode && key.equals(left.getKey())) {
+                    this.root = rebuild(path, right);
+                    return;
+                }
+
+                if (right instanceof LeafNode && key.equals(right.getKey())) {
+                    this.root = rebuild(path, left);
+                    return;
+                }
+
+                val leftDistance = distance(key, left.getKey());
+                val rightDistance = distance(key, right.getKey());
+                if (leftDistance == rightDistance) return;
+
+                val next = leftDistance < rightDistance ? left : right;
+                if (next instanceof LeafNode) return;
+
+                path.push(node, leftDistance < rightDistance);
+                node = (InnerNode<H>) next;
+            }
+        } finally {
+            path.release();
         }
     }
 
+    // Replaces the bottom of the path with node, creating new inner nodes up to the root
     @NotNull
-    private Node<H> doRemove(@NotNull InnerNode<H> node, @NotNull BigInteger key) throws NoSuchKeyException {
-        val left = node.getLeft();
-        val right = node.getRight();
-
-        if (left instanceof LeafNode && key.equals(left.getKey())) {
-            return right;
+    private Node<H> rebuild(@NotNull PathStack<H> path, @NotNull Node<H> node) {
+        val metrics = this.metrics;
+        if (metrics != null) {
+            metrics.recordDepth(path.size());
         }
-
-        if (right instanceof  LeafNode && key.equals(right.getKey())) {
-            return left;
+        for (var i = path.size() - 1; i >= 0; i--) {
+            val parent = path.node(i);
+            node = path.wentLeft(i)
+                    ? createNode(node, parent.getRight())
+                    : createNode(parent.getLeft(), node);
         }
+        return node;
+    }
 
-        val leftDistance = distance(key, left.getKey());
-        val rightDistance = distance(key, right.getKey());
-
-        if (leftDistance == rightDistance) {
-            throw new NoSuchKeyException();
+    @Override
+    public void applyBatch(@NotNull SortedMap<BigInteger, V> puts, @NotNull Set<BigInteger> deletes) {
+        if (deferHashing) {
+            deletes.forEach(this::remove);
+            puts.forEach(this::insert);
+            return;
         }
 
-        if (leftDistance < rightDistance) {
-            if (left instanceof  LeafNode) {
-                throw new NoSuchKeyException();
-            }
-            return createNode(doRemove((InnerNode<H>) left, key), right);
+        val metrics = this.metrics;
+        if (metrics == null) {
+            apply(puts, deletes);
+            return;
         }
+        val start = System.nanoTime();
+        apply(puts, deletes);
+        metrics.recordBatch(System.nanoTime() - start);
+    }
 
-        //noinspection ConstantConditions
-        if (leftDistance > rightDistance) {
-            if (right instanceof LeafNode) {
-                throw new NoSuchKeyException();
-            }
-            return createNode(left, doRemove((InnerNode<H>) right, key));
-        }
+    public void addListener(@NotNull ChangeListener<V, H> listener) {
+        listeners.add(listener);
+    }
 
-        throw new IllegalStateException();
+    public void removeListener(@NotNull ChangeListener<V, H> listener) {
+        listeners.remove(listener);
     }
 
-    @NotNull
-    @Override
-    public Proof<V, H> getProof(@NotNull BigInteger key) {
-        if (root == null) {
-            return new NonMembershipProof<>(null, null);
+    // Attaches metrics to this tree, null detaches them
+    public void setMetrics(@Nullable CSMTMetrics metrics) {
+        if (metrics != null) {
+            leaves = countLeaves(root);
+            metrics.track(() -> leaves, this::hashLength);
         }
+        this.metrics = metrics;
+    }
 
-        if (root instanceof LeafNode) {
-            val rootProof = new MembershipProof<V, H>((LeafNode<V, H>) root, Collections.emptyList());
-
-            if (key.equals(root.getKey())) {
-                return rootProof;
-            }
+    @Nullable
+    public CSMTMetrics metrics() {
+        return metrics;
+    }
 
-            return key.compareTo(root.getKey()) < 0
-                    ? new NonMembershipProof<>(null, rootProof)
-                    : new NonMembershipProof<>(rootProof, null);
-        } else {
-            val bounds = findBounds((InnerNode<H>) root, key);
+    // Sequence of the next change record, a replica built from snapshot() follows the feed from here
+    public long nextSequence() {
+        return sequence;
+    }
 
-            val leftBound = bounds.getFirst();
-            val rightBound = bounds.getSecond();
+    // Applies the changes recorded in deferred hashing mode, does nothing otherwise
+    public void commit() {
+        if (pendingPuts.isEmpty() && pendingDeletes.isEmpty()) return;
 
-            val castedRoot = (InnerNode<H>) root;
+        apply(pendingPuts, pendingDeletes);
+        pendingPuts.clear();
+        pendingDeletes.clear();
+    }
 
-            if (leftBound != null && leftBound.equals(rightBound)) {
-                return findProof(castedRoot, leftBound);
+    private void apply(@NotNull SortedMap<BigInteger, V> puts, @NotNull Set<BigInteger> deletes) {
+        val keySet = new TreeSet<BigInteger>(puts.keySet());
+        keySet.addAll(deletes);
+        if (keySet.isEmpty()) return;
+
+        val before = root;
+        val keys = keySet.toArray(new BigInteger[0]);
+        val nodes = new ArrayList<Node<H>>();
+        val added = before == null
+                ? addLeaves(keys, 0, keys.length, puts, nodes)
+                : doApplyBatch(before, keys, 0, keys.length, puts, deletes, nodes);
+        root = buildTree(nodes);
+        leaves += added;
+
+        if (root != before && !listeners.isEmpty()) {
+            // Only what the batch changed: deletes of missing keys and puts of kept keys are dropped
+            val previous = new CSMTSnapshot<V, H>(before, leafHashFunction.commitsKey());
+            val mutations = new ArrayList<ChangeRecord.Mutation<V>>(deletes.size() + puts.size());
+            for (val key : deletes) {
+                if (previous.get(key) != null) {
+                    mutations.add(new ChangeRecord.Mutation<>(key, null));
+                }
             }
-
-            if (leftBound != null && rightBound != null) {
-                return new NonMembershipProof<>(findProof(castedRoot, leftBound), findProof(castedRoot, rightBound));
+            for (val entry : puts.entrySet()) {
+                if (deletes.contains(entry.getKey()) || previous.get(entry.getKey()) == null) {
+                    mutations.add(new ChangeRecord.Mutation<>(entry.getKey(), entry.getValue()));
+                }
             }
+            publish(Collections.unmodifiableList(mutations));
+        }
+    }
+
+    // Appends to nodes, in key order, the subtrees and leaves that make up node after the batch,
+    // returns the change in the number of leaves
+    private int doApplyBatch(
+            @NotNull Node<H> node,
+            @NotNull BigInteger[] keys,
+            int from,
+            int to,
+            @NotNull SortedMap<BigInteger, V> puts,
+            @NotNull Set<BigInteger> deletes,
+            @NotNull List<Node<H>> nodes
+    ) {
+        if (from == to) {
+            nodes.add(node);
+            return 0;
+        }
 
-            if (leftBound == null) {
-                //noinspection ConstantConditions
-                return new NonMembershipProof<>(null, findProof(castedRoot, rightBound));
+        if (node instanceof LeafNode) {
+            var i = from;
+            while (i != to && keys[i].compareTo(node.getKey()) < 0) i++;
+            var added = addLeaves(keys, from, i, puts, nodes);
+
+            if (i != to && keys[i].equals(node.getKey())) {
+                if (deletes.contains(keys[i])) {
+                    added += addLeaves(keys, i, i + 1, puts, nodes) - 1;
+                } else {
+                    nodes.add(node);
+                }
+                i++;
+            } else {
+                nodes.add(node);
             }
 
-            return new NonMembershipProof<>(findProof(castedRoot, leftBound), null);
+            return added + addLeaves(keys, i, to, puts, nodes);
         }
-    }
 
-    @NotNull
-    private MembershipProof<V, H> findProof(@NotNull InnerNode<H> root, @NotNull BigInteger key) {
-        val left = root.getLeft();
-        val right = root.getRight();
-
-        val leftDistance = distance(key, left.getKey());
-        val rightDistance = distance(key, right.getKey());
+        val left = ((InnerNode<H>) node).getLeft();
+        val right = ((InnerNode<H>) node).getRight();
+        val width = distance(left.getKey(), right.getKey());
 
-        val result = leftDistance < rightDistance
-                ? findProof(right, LEFT, left, key)
-                : findProof(left, RIGHT, right, key);
+        var begin = from;
+        while (begin != to && keys[begin].compareTo(node.getKey()) < 0 && distance(keys[begin], node.getKey()) > width) {
+            begin++;
+        }
+        var end = begin;
+        while (end != to && distance(keys[end], node.getKey()) <= width) end++;
+        var middle = begin;
+        while (middle != end && !keys[middle].testBit(width - 1)) middle++;
+
+        var added = addLeaves(keys, from, begin, puts, nodes);
+
+        val mark = nodes.size();
+        added += doApplyBatch(left, keys, begin, middle, puts, deletes, nodes);
+        added += doApplyBatch(right, keys, middle, end, puts, deletes, nodes);
+        if (nodes.size() == mark + 2 && nodes.get(mark) == left && nodes.get(mark + 1) == right) {
+            nodes.subList(mark, mark + 2).clear();
+            nodes.add(node);
+        }
 
-        return new MembershipProof<>(result.getSecond(), result.getFirst());
+        return added + addLeaves(keys, end, to, puts, nodes);
     }
 
-    @NotNull
-    private Pair<List<MembershipProof.Entry<H>>, LeafNode<V, H>> findProof(
-            @NotNull Node<H> sibling,
-            @NotNull Direction direction,
-            @NotNull Node<H> node,
-            @NotNull BigInteger key
+    private int addLeaves(
+            @NotNull BigInteger[] keys,
+            int from,
+            int to,
+            @NotNull SortedMap<BigInteger, V> puts,
+            @NotNull List<Node<H>> nodes
     ) {
-        if (node instanceof LeafNode) {
-            //noinspection ArraysAsListWithZeroOrOneArgument
-            return Pair.of(
-                    new ArrayList<>(Arrays.asList(
-                            new MembershipProof.Entry<>(
-                                    sibling.getHash(),
-                                    direction.reverse()
-                            )
-                    )),
-                    (LeafNode<V, H>) node
-            );
-        } else {
-            val left = ((InnerNode<H>) node).getLeft();
-            val right = ((InnerNode<H>) node).getRight();
+        var added = 0;
+        for (var i = from; i != to; i++) {
+            val value = puts.get(keys[i]);
+            if (value != null) {
+                nodes.add(createNode(keys[i], value));
+                added++;
+            }
+        }
+        return added;
+    }
 
-            val leftDistance = distance(key, left.getKey());
-            val rightDistance = distance(key, right.getKey());
+    // Builds the tree over key-ordered subtrees whose key ranges do not interleave: adjacent
+    // subtrees are joined in order of increasing distance, so every new inner node is hashed once
+    @Nullable
+    private Node<H> buildTree(@NotNull List<Node<H>> nodes) {
+        @SuppressWarnings("unchecked")
+        final Node<H>[] stack = new Node[nodes.size()];
+        val distances = new int[nodes.size()];
+        var size = 0;
+
+        for (val node : nodes) {
+            if (size != 0) {
+                val nodeDistance = distance(stack[size - 1].getKey(), node.getKey());
+                while (size > 1 && distances[size - 1] < nodeDistance) {
+                    stack[size - 2] = createNode(stack[size - 2], stack[size - 1]);
+                    size--;
+                }
+                distances[size] = nodeDistance;
+            }
+            stack[size++] = node;
+        }
 
-            val result = leftDistance < rightDistance
-                    ? findProof(right, LEFT, left, key)
-                    : findProof(left, RIGHT, right, key);
+        while (size > 1) {
+            stack[size - 2] = createNode(stack[size - 2], stack[size - 1]);
+            size--;
+        }
 
+        return size == 0 ? null : stack[0];
+    }
 
-            val proof = result.getFirst();
-            //noinspection ConstantConditions
-            proof.add(new MembershipProof.Entry<>(sibling.getHash(), direction.reverse()));
-            return Pair.of(proof, result.getSecond());
-        }
+    @Nullable
+    @Override
+    public H rootHash() {
+        commit();
+        val root = this.root;
+        return root == null ? null : root.getHash();
     }
 
     @NotNull
-    private Pair<BigInteger, BigInteger> findBounds(@NotNull InnerNode<H> root, @NotNull BigInteger key) {
-        val left = root.getLeft();
-        val right = root.getRight();
-
-        val leftDistance = distance(key, left.getKey());
-        val rightDistance = distance(key, right.getKey());
-
-        if (leftDistance == rightDistance) {
-            return key.compareTo(root.getKey()) > 0
-                    ? Pair.of(right.getKey(), null)
-                    : Pair.of(null, left.getKey());
+    @Override
+    public Proof<V, H> getProof(@NotNull BigInteger key) {
+        val metrics = this.metrics;
+        if (metrics == null) {
+            return snapshot().getProof(key);
         }
+        val start = System.nanoTime();
+        val proof = snapshot().getProof(key);
+        metrics.recordProof(proof, System.nanoTime() - start);
+        return proof;
+    }
 
-        return leftDistance < rightDistance
-                ? findBounds(right, LEFT, left, key)
-                : findBounds(left, RIGHT, right, key);
+    @Nullable
+    @Override
+    public V get(@NotNull BigInteger key) {
+        return snapshot().get(key);
     }
 
     @NotNull
-    private Pair<BigInteger, BigInteger> findBounds(
-            @NotNull Node<H> sibling,
-            @NotNull Direction direction,
-            @NotNull Node<H> node,
-            @NotNull BigInteger key
-    ) {
-        if (node instanceof LeafNode) {
-            return key.equals(node.getKey())
-                    ? Pair.of(key, key)
-                    : findBounds(key, node, direction, sibling);
-        } else {
-            val left = ((InnerNode<H>) node).getLeft();
-            val right = ((InnerNode<H>) node).getRight();
+    public Iterator<LeafNode<V, H>> scan(@NotNull BigInteger from, @NotNull BigInteger to) {
+        return snapshot().scan(from, to);
+    }
 
-            val leftDistance = distance(key, left.getKey());
-            val rightDistance = distance(key, right.getKey());
+    @NotNull
+    public Spliterator<LeafNode<V, H>> spliterator() {
+        return snapshot().spliterator();
+    }
 
-            if (leftDistance == rightDistance) {
-                return findBounds(key, node, direction, sibling);
-            }
+    @NotNull
+    public MultiProof<V, H> getProofs(@NotNull Collection<BigInteger> keys) {
+        return snapshot().getProofs(keys);
+    }
 
-            val result = leftDistance < rightDistance
-                    ? findBounds(right, LEFT, left, key)
-                    : findBounds(left, RIGHT, right, key);
+    @Override
+    public long commitVersion() {
+        commit();
+        versions.put(nextVersion, Optional.ofNullable(root));
+        return nextVersion++;
+    }
 
-            if (result.getSecond() == null && direction == LEFT) {
-                return Pair.of(result.getFirst(), minInSubtree(sibling));
-            }
+    @NotNull
+    @Override
+    public Proof<V, H> getProof(@NotNull BigInteger key, long version) {
+        return snapshot(version).getProof(key);
+    }
 
-            if (result.getFirst() == null && direction == RIGHT) {
-                return Pair.of(maxInSubtree(sibling), result.getSecond());
-            }
+    @Nullable
+    @Override
+    public H rootHash(long version) {
+        return snapshot(version).rootHash();
+    }
 
-            return result;
+    @Override
+    public void release(long version) {
+        if (versions.remove(version) == null) {
+            throw new IllegalArgumentException("Unknown version " + version);
         }
     }
 
+    // Retained versions in increasing order
     @NotNull
-    private Pair<BigInteger, BigInteger> findBounds(
-            @NotNull BigInteger key,
-            @NotNull Node<H> node,
-            @NotNull Direction direction,
-            @NotNull Node<H> sibling
-    ) {
-        if (key.compareTo(node.getKey()) > 0 && direction == LEFT) {
-            return Pair.of(node.getKey(), minInSubtree(sibling));
-        }
-        if (key.compareTo(node.getKey()) > 0 && direction == RIGHT) {
-            return Pair.of(node.getKey(), null);
-        }
-        if (key.compareTo(node.getKey()) <= 0 && direction == LEFT) {
-            return Pair.of(null, minInSubtree(node));
-        } else {
-            return Pair.of(maxInSubtree(sibling), minInSubtree(node));
-        }
+    public NavigableSet<Long> versions() {
+        return Collections.unmodifiableNavigableSet(versions.navigableKeySet());
     }
 
+    // Read-only view of a retained version, safe to use from any thread
     @NotNull
-    private BigInteger maxInSubtree(@NotNull Node<H> node) {
-        return node.getKey();
+    public CSMTSnapshot<V, H> snapshot(long version) {
+        val root = versions.get(version);
+        if (root == null) {
+            throw new IllegalArgumentException("Unknown version " + version);
+        }
+        return new CSMTSnapshot<>(root.orElse(null), leafHashFunction.commitsKey());
     }
 
+    // Read-only view of the current root, safe to use from any thread while this tree is modified
     @NotNull
-    private BigInteger minInSubtree(@NotNull Node<H> node) {
-        if (node instanceof LeafNode) {
-            return node.getKey();
-        } else {
-            return minInSubtree(((InnerNode<H>) node).getLeft());
+    public CSMTSnapshot<V, H> snapshot() {
+        commit();
+        return new CSMTSnapshot<>(root, leafHashFunction.commitsKey());
+    }
+
+    private void publish(@NotNull List<ChangeRecord.Mutation<V>> mutations) {
+        val root = this.root;
+        val record = new ChangeRecord<V, H>(sequence++, mutations, root == null ? null : root.getHash());
+        for (val listener : listeners) {
+            listener.onChange(record);
         }
     }
 
     @NotNull
     private Node<H> createNode(@NotNull BigInteger key, @NotNull V value) {
-        return new LeafNode<>(key, value, leafHashFunction.apply(value));
+        val metrics = this.metrics;
+        if (metrics != null) {
+            metrics.recordLeafHash();
+        }
+        return new LeafNode<>(key, value, leafHashFunction.apply(key, value));
     }
 
     @NotNull
     private Node<H> createNode(@NotNull Node<H> left, @NotNull Node<H> right) {
+        val metrics = this.metrics;
+        if (metrics != null) {
+            metrics.recordNodeHash();
+        }
         return new InnerNode<>(nodeHashFunction.apply(left.getHash(), right.getHash()), left, right);
     }
 
+    private int hashLength() {
+        val root = this.root;
+        return root != null && root.getHash() instanceof byte[] ? ((byte[]) root.getHash()).length : 0;
+    }
+
+    // Replaces the whole tree, used by loaders that build the nodes themselves
+    void reset(@Nullable Node<H> root) {
+        pendingPuts.clear();
+        pendingDeletes.clear();
+        this.root = root;
+        if (metrics != null) {
+            leaves = countLeaves(root);
+        }
+    }
+
+    private static <H> long countLeaves(@Nullable Node<H> root) {
+        val nodes = new ArrayDeque<Node<H>>();
+        if (root != null) {
+            nodes.push(root);
+        }
+        var count = 0L;
+        while (!nodes.isEmpty()) {
+            val node = nodes.pop();
+            if (node instanceof InnerNode) {
+                nodes.push(((InnerNode<H>) node).getLeft());
+                nodes.push(((InnerNode<H>) node).getRight());
+            } else {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Only for a leaf hash that commits to the key, e.g. a tree from createKeyed
+    @NotNull
+    public ProofVerifier<V, H> verifier() {
+        return new ProofVerifier<>(leafHashFunction, nodeHashFunction);
+    }
+
+    // Leaves hashed from their value only, as the Scala implementation does
     @NotNull
     public static CSMTImpl<String, byte[]> createDefault() {
-        try {
-            val digest = MessageDigest.getInstance("SHA-256");
+        return new CSMTImpl<>(Sha256::leafHash, Sha256::nodeHash);
+    }
 
-            final Function<String, byte[]> leafHashFunction = (s) -> {
-                val valueBytes = Base64.getDecoder().decode(s);
-                return digest.digest(Utils.concatenate(new byte[] {0}, valueBytes));
-            };
+    @NotNull
+    public static CSMTImpl<byte[], byte[]> create(@NotNull HashEngine engine) {
+        return new CSMTImpl<>(engine::hashLeaf, engine::hashNode);
+    }
 
-            final BinaryOperator<byte[]> hashFunction = (left, right) ->
-                    digest.digest(Utils.concatenate(new byte[] {1}, left, new byte[] {2}, right));
+    // Leaves hashed from their key and value, which proofs need to prove the key of a leaf and
+    // non-membership. Root hashes differ from those of createDefault for the same content.
+    @NotNull
+    public static CSMTImpl<String, byte[]> createKeyed() {
+        return new CSMTImpl<>(Sha256::keyedLeafHash, Sha256::nodeHash);
+    }
 
-            return new CSMTImpl<>(leafHashFunction, hashFunction);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException();
-        }
+    @NotNull
+    public static CSMTImpl<byte[], byte[]> createKeyed(@NotNull HashEngine engine) {
+        return new CSMTImpl<>(engine::hashKeyedLeaf, engine::hashNode);
     }
 }
@@ -0,0 +1,305 @@
+package model;
+
+import lombok.*;
+import lombok.experimental.*;
+import lombok.var;
+import model.node.*;
+import model.node.Node;
+import model.proof.*;
+import model.utils.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigInteger;
+import java.util.*;
+import java.util.function.Consumer;
+
+import static model.utils.Direction.*;
+import static model.utils.Utils.distance;
+
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+@RequiredArgsConstructor(access = AccessLevel.PACKAGE)
+public class CSMTSnapshot<V, H> {
+    @Getter(AccessLevel.PACKAGE) @Nullable Node<H> root;
+    // Whether the leaf hash of the tree commits to the key, which lets diff trust equal hashes
+    boolean keyedLeaves;
+
+    @Nullable
+    public H rootHash() {
+        return root == null ? null : root.getHash();
+    }
+
+    // The node key is the maximum key of its subtree, so the lookup is a plain binary search
+    @Nullable
+    public V get(@NotNull BigInteger key) {
+        var node = root;
+        while (node instanceof InnerNode) {
+            val left = ((InnerNode<H>) node).getLeft();
+            node = key.compareTo(left.getKey()) <= 0 ? left : ((InnerNode<H>) node).getRight();
+        }
+        //noinspection unchecked
+        return node != null && key.equals(node.getKey()) ? ((LeafNode<V, H>) node).getValue() : null;
+    }
+
+    // Leaves with from <= key < to in key order, subtrees below from are skipped without visiting them
+    @NotNull
+    public Iterator<LeafNode<V, H>> scan(@NotNull BigInteger from, @NotNull BigInteger to) {
+        val stack = new ArrayDeque<Node<H>>();
+        if (root != null) {
+            stack.push(root);
+        }
+
+        return new Iterator<LeafNode<V, H>>() {
+            @Nullable LeafNode<V, H> next = advance();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public LeafNode<V, H> next() {
+                val result = next;
+                if (result == null) {
+                    throw new NoSuchElementException();
+                }
+                next = advance();
+                return result;
+            }
+
+            @Nullable
+            private LeafNode<V, H> advance() {
+                while (!stack.isEmpty()) {
+                    val node = stack.pop();
+                    if (node.getKey().compareTo(from) < 0) continue;
+
+                    if (node instanceof InnerNode) {
+                        stack.push(((InnerNode<H>) node).getRight());
+                        stack.push(((InnerNode<H>) node).getLeft());
+                    } else if (node.getKey().compareTo(to) < 0) {
+                        //noinspection unchecked
+                        return (LeafNode<V, H>) node;
+                    } else {
+                        stack.clear();
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    // Keys added, removed or changed from this snapshot to the other one, in key order
+    @NotNull
+    public Iterator<TreeDiff.Change<V>> diff(@NotNull CSMTSnapshot<V, H> other) {
+        return TreeDiff.diff(root, other.root, keyedLeaves && other.keyedLeaves);
+    }
+
+    // All leaves in key order, splitting at inner nodes for parallel streams
+    @NotNull
+    public Spliterator<LeafNode<V, H>> spliterator() {
+        val nodes = new ArrayDeque<Node<H>>();
+        if (root != null) {
+            nodes.add(root);
+        }
+        return new LeafSpliterator<>(nodes, root == null ? 0 : Long.MAX_VALUE);
+    }
+
+    @NotNull
+    public Proof<V, H> getProof(@NotNull BigInteger key) {
+        if (root == null) {
+            return new NonMembershipProof<>(null, null);
+        }
+
+        // Single descent towards key. The bounds of a missing key share the path down to the last
+        // turn, so they are built from the collected root-first entries without another traversal.
+        final PathStack<H> path = PathStack.acquire();
+        try {
+            val entries = new ArrayList<MembershipProof.Entry<H>>();
+            var lastLeftTurn = -1;
+            var lastRightTurn = -1;
+            var node = root;
+            while (node instanceof InnerNode) {
+                val inner = (InnerNode<H>) node;
+                val left = inner.getLeft();
+                val right = inner.getRight();
+
+                val leftDistance = distance(key, left.getKey());
+                val rightDistance = distance(key, right.getKey());
+                if (leftDistance == rightDistance) break;
+
+                path.push(inner, leftDistance < rightDistance);
+                if (leftDistance < rightDistance) {
+                    lastLeftTurn = entries.size();
+                    entries.add(new MembershipProof.Entry<>(right.getHash(), RIGHT));
+                    node = left;
+                } else {
+                    lastRightTurn = entries.size();
+                    entries.add(new MembershipProof.Entry<>(left.getHash(), LEFT));
+                    node = right;
+                }
+            }
+
+            if (key.equals(node.getKey()) && node instanceof LeafNode) {
+                return leafProof(entries, entries.size(), null, node, false);
+            }
+
+            // All keys under node are on one side of key, the other bound is
+            // the closest leaf of the subtree skipped at the last opposite turn
+            if (key.compareTo(node.getKey()) > 0) {
+                return new NonMembershipProof<>(
+                        leafProof(entries, entries.size(), null, node, true),
+                        lastLeftTurn == -1 ? null : leafProof(entries, lastLeftTurn,
+                                new MembershipProof.Entry<>(path.node(lastLeftTurn).getLeft().getHash(), LEFT),
+                                path.node(lastLeftTurn).getRight(), false));
+            } else {
+                return new NonMembershipProof<>(
+                        lastRightTurn == -1 ? null : leafProof(entries, lastRightTurn,
+                                new MembershipProof.Entry<>(path.node(lastRightTurn).getRight().getHash(), RIGHT),
+                                path.node(lastRightTurn).getLeft(), true),
+                        leafProof(entries, entries.size(), null, node, false));
+            }
+        } finally {
+            path.release();
+        }
+    }
+
+    @NotNull
+    public MultiProof<V, H> getProofs(@NotNull Collection<BigInteger> keys) {
+        val sorted = new TreeSet<BigInteger>(keys).toArray(new BigInteger[0]);
+        val proof = new MultiProof<V, H>(new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+        if (root != null && sorted.length != 0) {
+            findProofs(root, sorted, 0, sorted.length, proof);
+        }
+        return proof;
+    }
+
+    // keys[from, to) are the keys that lie strictly between the neighbours of node's subtree,
+    // so node contains the leaf or a bound of each of them and nothing for the others
+    private void findProofs(
+            @NotNull Node<H> node,
+            @NotNull BigInteger[] keys,
+            int from,
+            int to,
+            @NotNull MultiProof<V, H> proof
+    ) {
+        if (from == to) {
+            proof.getSteps().add(MultiProof.Step.HASH);
+            proof.getHashes().add(node.getHash());
+            return;
+        }
+
+        if (node instanceof LeafNode) {
+            proof.getSteps().add(MultiProof.Step.LEAF);
+            //noinspection unchecked
+            proof.getLeaves().add((LeafNode<V, H>) node);
+            return;
+        }
+
+        val left = ((InnerNode<H>) node).getLeft();
+        val right = ((InnerNode<H>) node).getRight();
+
+        var split = from;
+        while (split != to && keys[split].compareTo(left.getKey()) <= 0) split++;
+
+        var leftTo = split;
+        if (split != to) {
+            val rightMin = minInSubtree(right);
+            while (leftTo != to && keys[leftTo].compareTo(rightMin) < 0) leftTo++;
+        }
+
+        proof.getSteps().add(MultiProof.Step.NODE);
+        findProofs(left, keys, from, leftTo, proof);
+        findProofs(right, keys, split, to, proof);
+    }
+
+    // Proof of the leftmost or rightmost leaf under node, whose path from the root
+    // starts with depth entries of prefix and then the turn entry, if any
+    @NotNull
+    private MembershipProof<V, H> leafProof(
+            @NotNull List<MembershipProof.Entry<H>> prefix,
+            int depth,
+            @Nullable MembershipProof.Entry<H> turn,
+            @NotNull Node<H> node,
+            boolean maximum
+    ) {
+        val proof = new ArrayList<MembershipProof.Entry<H>>(prefix.subList(0, depth));
+        if (turn != null) {
+            proof.add(turn);
+        }
+        while (node instanceof InnerNode) {
+            val inner = (InnerNode<H>) node;
+            if (maximum) {
+                proof.add(new MembershipProof.Entry<>(inner.getLeft().getHash(), LEFT));
+                node = inner.getRight();
+            } else {
+                proof.add(new MembershipProof.Entry<>(inner.getRight().getHash(), RIGHT));
+                node = inner.getLeft();
+            }
+        }
+        Collections.reverse(proof);
+        //noinspection unchecked
+        return new MembershipProof<>((LeafNode<V, H>) node, proof);
+    }
+
+    @NotNull
+    private BigInteger minInSubtree(@NotNull Node<H> node) {
+        while (node instanceof InnerNode) {
+            node = ((InnerNode<H>) node).getLeft();
+        }
+        return node.getKey();
+    }
+
+    // Holds subtrees in key order. The size is unknown without walking the tree, the estimate
+    // only halves with every split so that a parallel stream splits a bounded number of times.
+    @FieldDefaults(level = AccessLevel.PRIVATE)
+    @AllArgsConstructor
+    private static final class LeafSpliterator<V, H> implements Spliterator<LeafNode<V, H>> {
+        @NotNull final Deque<Node<H>> nodes;
+        long estimate;
+
+        @Override
+        public boolean tryAdvance(@NotNull Consumer<? super LeafNode<V, H>> action) {
+            while (!nodes.isEmpty()) {
+                val node = nodes.pollFirst();
+                if (node instanceof InnerNode) {
+                    nodes.addFirst(((InnerNode<H>) node).getRight());
+                    nodes.addFirst(((InnerNode<H>) node).getLeft());
+                } else {
+                    //noinspection unchecked
+                    action.accept((LeafNode<V, H>) node);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Nullable
+        @Override
+        public Spliterator<LeafNode<V, H>> trySplit() {
+            if (nodes.size() == 1 && nodes.peekFirst() instanceof InnerNode) {
+                val node = (InnerNode<H>) nodes.pollFirst();
+                nodes.add(node.getLeft());
+                nodes.add(node.getRight());
+            }
+            if (nodes.size() < 2) return null;
+
+            // Hand out every subtree but the last one, they all precede it
+            val prefix = new ArrayDeque<Node<H>>();
+            while (nodes.size() > 1) {
+                prefix.add(nodes.pollFirst());
+            }
+            estimate >>>= 1;
+            return new LeafSpliterator<>(prefix, estimate);
+        }
+
+        @Override
+        public long estimateSize() {
+            return estimate;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | DISTINCT | NONNULL | IMMUTABLE;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package model;
+
+import lombok.*;
+import lombok.experimental.*;
+import lombok.var;
+import model.node.InnerNode;
+import model.node.LeafNode;
+import model.node.Node;
+import model.utils.LeafHashFunction;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+// A tree dumped as its leaves in key order, all numbers big-endian:
+//   [magic: i32][version: u8][flags: u8, bit 0 - inner hashes][hashLength: u16][count: i64][root hash if count != 0]
+//   count x [keyLength: u16][key][valueLength: i32][value][leaf hash]
+//   count - 1 inner node hashes in post-order, if flagged
+// write() streams the tree in three walks (count, leaves, inner hashes) without copying it.
+// load() rebuilds the tree from the sorted leaves with CSMTBuilder, hashing every inner node once
+// and splitting the work over a ForkJoinPool.
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+@RequiredArgsConstructor
+public class Checkpoint<V> {
+    private static final int MAGIC = 0x43534d43;
+    private static final byte VERSION = 1;
+    private static final byte INNER_HASHES = 1;
+    private static final int MAX_VALUE_LENGTH = Integer.MAX_VALUE - 8;
+    private static final int VALUE_CHUNK = 1 << 16;
+
+    int hashLength;
+    @NotNull Function<V, byte[]> valueEncoder;
+    @NotNull Function<byte[], V> valueDecoder;
+
+    // The snapshot pins the root, so writers may keep changing the tree meanwhile
+    public void write(
+            @NotNull CSMTSnapshot<V, byte[]> snapshot,
+            @NotNull OutputStream stream,
+            boolean innerHashes
+    ) throws IOException {
+        val root = snapshot.getRoot();
+        val count = new long[1];
+        walk(root, node -> {
+            if (node instanceof LeafNode) {
+                count[0]++;
+            }
+        });
+
+        val out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(innerHashes ? INNER_HASHES : 0);
+        out.writeShort(hashLength);
+        out.writeLong(count[0]);
+        if (root != null) {
+            writeHash(out, root.getHash());
+        }
+
+        walk(root, node -> {
+            if (node instanceof LeafNode) {
+                //noinspection unchecked
+                val leaf = (LeafNode<V, byte[]>) node;
+                val key = leaf.getKey().toByteArray();
+                val value = valueEncoder.apply(leaf.getValue());
+                out.writeShort(key.length);
+                out.write(key);
+                out.writeInt(value.length);
+                out.write(value);
+                writeHash(out, leaf.getHash());
+            }
+        });
+        if (innerHashes) {
+            walk(root, node -> {
+                if (node instanceof InnerNode) {
+                    writeHash(out, node.getHash());
+                }
+            });
+        }
+        out.flush();
+    }
+
+    // Leaf hashes are always recomputed from the keys and values and must match the stored ones.
+    // With trustHashes the stored inner hashes are taken as they are: nothing ties them to the
+    // leaves then, so only load checkpoints from a trusted source that way. Otherwise every inner
+    // hash is recomputed and the resulting root must match the stored one.
+    @NotNull
+    public CSMTImpl<V, byte[]> load(
+            @NotNull InputStream stream,
+            @NotNull LeafHashFunction<V, byte[]> leafHashFunction,
+            @NotNull BinaryOperator<byte[]> nodeHashFunction,
+            boolean trustHashes,
+            @NotNull ForkJoinPool pool
+    ) throws IOException {
+        val in = new DataInputStream(new BufferedInputStream(stream));
+        if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+            throw new IOException("Not a CSMT checkpoint");
+        }
+        val flags = in.readByte();
+        if (in.readUnsignedShort() != hashLength) {
+            throw new IOException("Checkpoint has a different hash length");
+        }
+        val count = in.readLong();
+        if (count < 0 || count > Integer.MAX_VALUE) {
+            throw new IOException("Bad leaf count: " + count);
+        }
+
+        val tree = new CSMTImpl<V, byte[]>(leafHashFunction, nodeHashFunction);
+        if (count == 0) {
+            return tree;
+        }
+        val rootHash = readHash(in);
+
+        val keys = new BigInteger[(int) count];
+        @SuppressWarnings("unchecked")
+        val values = (V[]) new Object[keys.length];
+        val leafHashes = new byte[keys.length][];
+        for (int i = 0; i != keys.length; i++) {
+            val key = new byte[in.readUnsignedShort()];
+            in.readFully(key);
+            keys[i] = new BigInteger(key);
+            if (keys[i].signum() < 0 || i != 0 && keys[i].compareTo(keys[i - 1]) <= 0) {
+                throw new IOException("Checkpoint keys are not sorted at " + i);
+            }
+            values[i] = valueDecoder.apply(readValue(in, i));
+            leafHashes[i] = readHash(in);
+        }
+
+        @Nullable byte[][] innerHashes = null;
+        if (trustHashes && (flags & INNER_HASHES) != 0) {
+            innerHashes = new byte[keys.length - 1][];
+            for (int i = 0; i != innerHashes.length; i++) {
+                innerHashes[i] = readHash(in);
+            }
+        }
+
+        val mismatch = pool.submit(() -> IntStream.range(0, keys.length).parallel()
+                .filter(i -> !Arrays.equals(leafHashes[i], leafHashFunction.apply(keys[i], values[i])))
+                .findFirst()).join();
+        if (mismatch.isPresent()) {
+            throw new IOException("Checkpoint leaf hash does not match its value at " + mismatch.getAsInt());
+        }
+
+        val root = CSMTBuilder.build(keys, values, leafHashes, innerHashes, leafHashFunction, nodeHashFunction, pool);
+        if (!Arrays.equals(rootHash, root.getHash())) {
+            throw new IOException("Checkpoint root hash does not match its content");
+        }
+        tree.reset(root);
+        return tree;
+    }
+
+    private void writeHash(@NotNull DataOutputStream out, @NotNull byte[] hash) throws IOException {
+        if (hash.length != hashLength) {
+            throw new IllegalArgumentException("Expected " + hashLength + " byte hash, got " + hash.length);
+        }
+        out.write(hash);
+    }
+
+    // The buffer grows with the bytes actually read, so a corrupt length ends in an EOFException
+    // instead of a huge allocation
+    @NotNull
+    private static byte[] readValue(@NotNull DataInputStream in, int index) throws IOException {
+        val length = in.readInt();
+        if (length < 0 || length > MAX_VALUE_LENGTH) {
+            throw new IOException("Bad value length at " + index + ": " + length);
+        }
+        var value = new byte[Math.min(length, VALUE_CHUNK)];
+        var read = 0;
+        while (true) {
+            in.readFully(value, read, value.length - read);
+            read = value.length;
+            if (read == length) return value;
+            value = Arrays.copyOf(value, (int) Math.min(length, 2L * read));
+        }
+    }
+
+    @NotNull
+    private byte[] readHash(@NotNull DataInputStream in) throws IOException {
+        val hash = new byte[hashLength];
+        in.readFully(hash);
+        return hash;
+    }
+
+    private interface Visitor {
+        void visit(@NotNull Node<byte[]> node) throws IOException;
+    }
+
+    // Post-order walk: leaves come out in key order, inner nodes in the order load() builds them
+    private static void walk(@Nullable Node<byte[]> root, @NotNull Visitor visitor) throws IOException {
+        if (root == null) return;
+
+        val stack = new ArrayDeque<Node<byte[]>>();
+        Node<byte[]> last = null;
+        var node = root;
+        while (node != null || !stack.isEmpty()) {
+            if (node != null) {
+                stack.push(node);
+                node = node instanceof InnerNode ? ((InnerNode<byte[]>) node).getLeft() : null;
+                continue;
+            }
+
+            val top = stack.peek();
+            if (top instanceof InnerNode && ((InnerNode<byte[]>) top).getRight() != last) {
+                node = ((InnerNode<byte[]>) top).getRight();
+                continue;
+            }
+
+            stack.pop();
+            visitor.visit(top);
+            last = top;
+        }
+    }
+}
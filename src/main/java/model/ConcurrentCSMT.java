@@ -0,0 +1,215 @@
+package model;
+
+import lombok.*;
+import lombok.experimental.*;
+import lombok.var;
+import model.node.*;
+import model.node.Node;
+import model.proof.Proof;
+import model.proof.ProofVerifier;
+import model.utils.LeafHashFunction;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+import static model.utils.Utils.distance;
+
+// CSMT for several writer threads without a lock. A writer builds the new path off the current
+// root and publishes it with a compare-and-set. When another writer won, the change is applied
+// again on the new root, reusing the replacement of the highest subtree the two roots still
+// share: a conflicting change elsewhere in the tree only costs rehashing the path above it.
+// The hash functions must be thread-safe.
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class ConcurrentCSMT<V, H> implements CSMT<V, H> {
+    @NotNull AtomicReference<Node<H>> root = new AtomicReference<>();
+    @NotNull LeafHashFunction<V, H> leafHashFunction;
+    @NotNull BinaryOperator<H> nodeHashFunction;
+    @NotNull LongAdder retries = new LongAdder();
+
+    public ConcurrentCSMT(@NotNull Function<V, H> leafHashFunction, @NotNull BinaryOperator<H> nodeHashFunction) {
+        this(LeafHashFunction.ofValue(leafHashFunction), nodeHashFunction);
+    }
+
+    public ConcurrentCSMT(@NotNull LeafHashFunction<V, H> leafHashFunction, @NotNull BinaryOperator<H> nodeHashFunction) {
+        this.leafHashFunction = leafHashFunction;
+        this.nodeHashFunction = nodeHashFunction;
+    }
+
+    @Override
+    public void insert(@NotNull BigInteger key, @NotNull V value) {
+        val replaced = new IdentityHashMap<Node<H>, Node<H>>();
+        Node<H> leaf = null;
+        while (true) {
+            val root = this.root.get();
+            if (root == null) {
+                leaf = leaf != null ? leaf : createNode(key, value);
+                if (this.root.compareAndSet(null, leaf)) return;
+                retries.increment();
+                continue;
+            }
+
+            val path = new ArrayList<InnerNode<H>>();
+            var node = root;
+            var replacement = replaced.get(node);
+            while (replacement == null && node instanceof InnerNode) {
+                val inner = (InnerNode<H>) node;
+                val left = inner.getLeft();
+                val right = inner.getRight();
+
+                val leftDistance = distance(key, left.getKey());
+                val rightDistance = distance(key, right.getKey());
+                if (leftDistance == rightDistance) break;
+
+                path.add(inner);
+                node = leftDistance < rightDistance ? left : right;
+                replacement = replaced.get(node);
+            }
+
+            if (replacement == null) {
+                if (node instanceof LeafNode && key.equals(node.getKey())) return;
+
+                // key is outside of node's subtree, so it is the smallest or the largest key next to it
+                leaf = leaf != null ? leaf : createNode(key, value);
+                replacement = key.compareTo(node.getKey()) < 0
+                        ? createNode(leaf, node)
+                        : createNode(node, leaf);
+                replaced.put(node, replacement);
+            }
+
+            if (this.root.compareAndSet(root, rebuild(path, node, replacement, replaced))) return;
+            retries.increment();
+        }
+    }
+
+    @Override
+    public void remove(@NotNull BigInteger key) {
+        val replaced = new IdentityHashMap<Node<H>, Node<H>>();
+        while (true) {
+            val root = this.root.get();
+            if (root == null) return;
+
+            if (root instanceof LeafNode) {
+                if (!key.equals(root.getKey())) return;
+                if (this.root.compareAndSet(root, null)) return;
+                retries.increment();
+                continue;
+            }
+
+            val path = new ArrayList<InnerNode<H>>();
+            Node<H> node = root;
+            var replacement = replaced.get(node);
+            while (replacement == null) {
+                val inner = (InnerNode<H>) node;
+                val left = inner.getLeft();
+                val right = inner.getRight();
+
+                if (left instanceof LeafNode && key.equals(left.getKey())) {
+                    replacement = right;
+                    break;
+                }
+                if (right instanceof LeafNode && key.equals(right.getKey())) {
+                    replacement = left;
+                    break;
+                }
+
+                val leftDistance = distance(key, left.getKey());
+                val rightDistance = distance(key, right.getKey());
+                if (leftDistance == rightDistance) return;
+
+                val next = leftDistance < rightDistance ? left : right;
+                if (next instanceof LeafNode) return;
+
+                path.add(inner);
+                node = next;
+                replacement = replaced.get(node);
+            }
+            replaced.put(node, replacement);
+
+            if (this.root.compareAndSet(root, rebuild(path, node, replacement, replaced))) return;
+            retries.increment();
+        }
+    }
+
+    // Applied as a whole: the batch is redone on the new root when another writer got in between
+    @Override
+    public void applyBatch(@NotNull SortedMap<BigInteger, V> puts, @NotNull Set<BigInteger> deletes) {
+        while (true) {
+            val root = this.root.get();
+            val tree = new CSMTImpl<V, H>(leafHashFunction, nodeHashFunction);
+            tree.reset(root);
+            tree.applyBatch(puts, deletes);
+            if (this.root.compareAndSet(root, tree.snapshot().getRoot())) return;
+            retries.increment();
+        }
+    }
+
+    @Nullable
+    @Override
+    public H rootHash() {
+        val root = this.root.get();
+        return root == null ? null : root.getHash();
+    }
+
+    @NotNull
+    @Override
+    public Proof<V, H> getProof(@NotNull BigInteger key) {
+        return snapshot().getProof(key);
+    }
+
+    @Nullable
+    @Override
+    public V get(@NotNull BigInteger key) {
+        return snapshot().get(key);
+    }
+
+    @NotNull
+    public CSMTSnapshot<V, H> snapshot() {
+        return new CSMTSnapshot<>(root.get(), leafHashFunction.commitsKey());
+    }
+
+    // Number of lost compare-and-sets since creation
+    public long retries() {
+        return retries.sum();
+    }
+
+    @NotNull
+    public ProofVerifier<V, H> verifier() {
+        return new ProofVerifier<>(leafHashFunction, nodeHashFunction);
+    }
+
+    // Replaces node, the bottom of path, with replacement and creates the ancestors up to the
+    // root, remembering every replaced node for a retry
+    @NotNull
+    private Node<H> rebuild(
+            @NotNull List<InnerNode<H>> path,
+            @NotNull Node<H> node,
+            @NotNull Node<H> replacement,
+            @NotNull Map<Node<H>, Node<H>> replaced
+    ) {
+        for (var i = path.size() - 1; i >= 0; i--) {
+            val parent = path.get(i);
+            replacement = parent.getLeft() == node
+                    ? createNode(replacement, parent.getRight())
+                    : createNode(parent.getLeft(), replacement);
+            replaced.put(parent, replacement);
+            node = parent;
+        }
+        return replacement;
+    }
+
+    @NotNull
+    private Node<H> createNode(@NotNull BigInteger key, @NotNull V value) {
+        return new LeafNode<>(key, value, leafHashFunction.apply(key, value));
+    }
+
+    @NotNull
+    private Node<H> createNode(@NotNull Node<H> left, @NotNull Node<H> right) {
+        return new InnerNode<>(nodeHashFunction.apply(left.getHash(), right.getHash()), left, right);
+    }
+}
@@ -0,0 +1,146 @@
+package model;
+
+import lombok.*;
+import lombok.experimental.*;
+import model.proof.Proof;
+import model.wal.WriteAheadLog;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.function.Function;
+
+// Logs every mutation of the wrapped tree to a WriteAheadLog and returns only once the record is
+// on disk. Records are appended and applied under one lock, so the log order is the apply order,
+// and the fsync happens outside of it: concurrent writers share one fsync (group commit).
+// A change can be visible to readers shortly before it is durable, it is never acknowledged before.
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+public class DurableCSMT<V, H> implements CSMT<V, H>, AutoCloseable {
+    @NotNull CSMT<V, H> tree;
+    @NotNull WriteAheadLog log;
+    @NotNull Function<V, byte[]> valueEncoder;
+
+    public interface Checkpointer<V, H> {
+        void save(@NotNull CSMT<V, H> tree) throws IOException;
+    }
+
+    // tree must hold the state of the last checkpoint, the log is replayed on top of it. Replaying
+    // records that the checkpoint already contains is harmless, a sequence of inserts that ignore
+    // present keys and removes ends in the same state when applied twice.
+    @NotNull
+    public static <V, H> DurableCSMT<V, H> open(
+            @NotNull CSMT<V, H> tree,
+            @NotNull Path logFile,
+            @NotNull Function<V, byte[]> valueEncoder,
+            @NotNull Function<byte[], V> valueDecoder
+    ) throws IOException {
+        val log = WriteAheadLog.open(logFile, WriteAheadLog.DEFAULT_PREALLOCATION, new WriteAheadLog.Visitor() {
+            @Override
+            public void insert(@NotNull BigInteger key, @NotNull byte[] value) {
+                tree.insert(key, valueDecoder.apply(value));
+            }
+
+            @Override
+            public void remove(@NotNull BigInteger key) {
+                tree.remove(key);
+            }
+        });
+        return new DurableCSMT<>(tree, log, valueEncoder);
+    }
+
+    @Override
+    public void insert(@NotNull BigInteger key, @NotNull V value) {
+        val bytes = valueEncoder.apply(value);
+        try {
+            final long position;
+            synchronized (tree) {
+                position = log.appendInsert(key, bytes);
+                tree.insert(key, value);
+            }
+            log.sync(position);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void remove(@NotNull BigInteger key) {
+        try {
+            final long position;
+            synchronized (tree) {
+                position = log.appendRemove(key);
+                tree.remove(key);
+            }
+            log.sync(position);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The whole batch is made durable with a single fsync
+    @Override
+    public void applyBatch(@NotNull SortedMap<BigInteger, V> puts, @NotNull Set<BigInteger> deletes) {
+        try {
+            long position = 0;
+            synchronized (tree) {
+                for (val key : deletes) {
+                    position = log.appendRemove(key);
+                }
+                for (val entry : puts.entrySet()) {
+                    position = log.appendInsert(entry.getKey(), valueEncoder.apply(entry.getValue()));
+                }
+                tree.applyBatch(puts, deletes);
+            }
+            log.sync(position);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @NotNull
+    @Override
+    public Proof<V, H> getProof(@NotNull BigInteger key) {
+        synchronized (tree) {
+            return tree.getProof(key);
+        }
+    }
+
+    @Nullable
+    @Override
+    public V get(@NotNull BigInteger key) {
+        synchronized (tree) {
+            return tree.get(key);
+        }
+    }
+
+    @Nullable
+    @Override
+    public H rootHash() {
+        synchronized (tree) {
+            return tree.rootHash();
+        }
+    }
+
+    // Saves the tree with writers blocked, then drops the log records it now contains
+    public void checkpoint(@NotNull Checkpointer<V, H> checkpointer) throws IOException {
+        synchronized (tree) {
+            checkpointer.save(tree);
+            log.reset();
+        }
+    }
+
+    public long syncCount() {
+        return log.syncCount();
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+}
@@ -0,0 +1,259 @@
+package model;
+
+import lombok.*;
+import lombok.experimental.*;
+import model.node.LeafNode;
+import model.proof.*;
+import model.utils.Direction;
+import model.utils.LeafHashFunction;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.function.BinaryOperator;
+
+// CSMT over fixed-width unsigned keys of type K. Subclasses supply the key arithmetic, BigInteger
+// keys are converted at the interface boundary. LongCSMTImpl has its own copy with primitive keys.
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+@RequiredArgsConstructor(access = AccessLevel.PACKAGE)
+abstract class FixedWidthCSMTImpl<K, V, H> implements CSMT<V, H> {
+    @Nullable @NonFinal
+    Node<K, V, H> root;
+    @NotNull LeafHashFunction<V, H> leafHashFunction;
+    @NotNull BinaryOperator<H> nodeHashFunction;
+
+    @NotNull
+    abstract K toKey(@NotNull BigInteger key);
+
+    @NotNull
+    abstract BigInteger toBigInteger(@NotNull K key);
+
+    // Unsigned order of the keys
+    abstract int compare(@NotNull K key1, @NotNull K key2);
+
+    // Same value as Utils.distance on the BigInteger form of both keys
+    abstract int distance(@NotNull K key1, @NotNull K key2);
+
+    // Hashes through the fixed-width overload of leafHashFunction, so the key is not converted
+    @NotNull
+    abstract H hashLeaf(@NotNull LeafHashFunction<V, H> leafHashFunction, @NotNull K key, @NotNull V value);
+
+    @Override
+    public void insert(@NotNull BigInteger key, @NotNull V value) {
+        insertKey(toKey(key), value);
+    }
+
+    @Override
+    public void remove(@NotNull BigInteger key) {
+        removeKey(toKey(key));
+    }
+
+    @NotNull
+    @Override
+    public Proof<V, H> getProof(@NotNull BigInteger key) {
+        return getKeyProof(toKey(key));
+    }
+
+    @Nullable
+    @Override
+    public V get(@NotNull BigInteger key) {
+        return getKey(toKey(key));
+    }
+
+    @Nullable
+    @Override
+    public H rootHash() {
+        return root == null ? null : root.hash;
+    }
+
+    void insertKey(@NotNull K key, @NotNull V value) {
+        root = (root == null
+                ? createNode(key, value)
+                : doInsert(root, key, value));
+    }
+
+    // Returns node itself when the key is already present
+    @NotNull
+    private Node<K, V, H> doInsert(@NotNull Node<K, V, H> node, @NotNull K key, @NotNull V value) {
+        if (node.isLeaf()) {
+            if (compare(key, node.key) == 0) {
+                return node;
+            }
+
+            val newLeaf = createNode(key, value);
+            return compare(key, node.key) < 0
+                    ? createNode(newLeaf, node)
+                    : createNode(node, newLeaf);
+        }
+
+        val left = node.left;
+        val right = node.right;
+
+        val leftDistance = distance(key, left.key);
+        val rightDistance = distance(key, right.key);
+
+        if (leftDistance == rightDistance) {
+            val newLeaf = createNode(key, value);
+            return compare(key, left.key) < 0
+                    ? createNode(newLeaf, node)
+                    : createNode(node, newLeaf);
+        }
+
+        if (leftDistance < rightDistance) {
+            val newLeft = doInsert(left, key, value);
+            return newLeft == left ? node : createNode(newLeft, right);
+        } else {
+            val newRight = doInsert(right, key, value);
+            return newRight == right ? node : createNode(left, newRight);
+        }
+    }
+
+    void removeKey(@NotNull K key) {
+        if (root == null) return;
+
+        if (root.isLeaf()) {
+            if (compare(key, root.key) == 0) {
+                root = null;
+            }
+        } else {
+            root = doRemove(root, key);
+        }
+    }
+
+    // Returns node itself when the key is missing
+    @NotNull
+    private Node<K, V, H> doRemove(@NotNull Node<K, V, H> node, @NotNull K key) {
+        val left = node.left;
+        val right = node.right;
+
+        if (left.isLeaf() && compare(key, left.key) == 0) {
+            return right;
+        }
+
+        if (right.isLeaf() && compare(key, right.key) == 0) {
+            return left;
+        }
+
+        val leftDistance = distance(key, left.key);
+        val rightDistance = distance(key, right.key);
+
+        if (leftDistance == rightDistance) {
+            return node;
+        }
+
+        if (leftDistance < rightDistance) {
+            if (left.isLeaf()) return node;
+            val newLeft = doRemove(left, key);
+            return newLeft == left ? node : createNode(newLeft, right);
+        } else {
+            if (right.isLeaf()) return node;
+            val newRight = doRemove(right, key);
+            return newRight == right ? node : createNode(left, newRight);
+        }
+    }
+
+    @Nullable
+    V getKey(@NotNull K key) {
+        Node<K, V, H> node = root;
+        while (node != null && !node.isLeaf()) {
+            node = compare(key, node.left.key) <= 0 ? node.left : node.right;
+        }
+        return node != null && compare(node.key, key) == 0 ? node.value : null;
+    }
+
+    @NotNull
+    Proof<V, H> getKeyProof(@NotNull K key) {
+        if (root == null) {
+            return new NonMembershipProof<>(null, null);
+        }
+
+        // Descend towards key, remembering the closest subtrees on each side of the path
+        Node<K, V, H> node = root;
+        Node<K, V, H> lower = null;
+        Node<K, V, H> upper = null;
+        while (!node.isLeaf()) {
+            val leftDistance = distance(key, node.left.key);
+            val rightDistance = distance(key, node.right.key);
+
+            if (leftDistance == rightDistance) break;
+
+            if (leftDistance < rightDistance) {
+                upper = node.right;
+                node = node.left;
+            } else {
+                lower = node.left;
+                node = node.right;
+            }
+        }
+
+        if (node.isLeaf() && compare(key, node.key) == 0) {
+            return findProof(key);
+        }
+
+        if (compare(key, node.key) > 0) {
+            lower = node;
+        } else {
+            upper = node;
+        }
+
+        return new NonMembershipProof<>(
+                lower == null ? null : findProof(lower.key),
+                upper == null ? null : findProof(minInSubtree(upper).key)
+        );
+    }
+
+    @NotNull
+    private MembershipProof<V, H> findProof(@NotNull K key) {
+        val proof = new ArrayList<MembershipProof.Entry<H>>();
+
+        //noinspection ConstantConditions
+        Node<K, V, H> node = root;
+        while (!node.isLeaf()) {
+            if (distance(key, node.left.key) < distance(key, node.right.key)) {
+                proof.add(new MembershipProof.Entry<>(node.right.hash, Direction.RIGHT));
+                node = node.left;
+            } else {
+                proof.add(new MembershipProof.Entry<>(node.left.hash, Direction.LEFT));
+                node = node.right;
+            }
+        }
+        Collections.reverse(proof);
+
+        //noinspection ConstantConditions
+        return new MembershipProof<>(new LeafNode<>(toBigInteger(node.key), node.value, node.hash), proof);
+    }
+
+    @NotNull
+    private Node<K, V, H> minInSubtree(@NotNull Node<K, V, H> node) {
+        while (!node.isLeaf()) {
+            node = node.left;
+        }
+        return node;
+    }
+
+    @NotNull
+    private Node<K, V, H> createNode(@NotNull K key, @NotNull V value) {
+        return new Node<>(key, hashLeaf(leafHashFunction, key, value), value, null, null);
+    }
+
+    @NotNull
+    private Node<K, V, H> createNode(@NotNull Node<K, V, H> left, @NotNull Node<K, V, H> right) {
+        return new Node<>(right.key, nodeHashFunction.apply(left.hash, right.hash), null, left, right);
+    }
+
+    // Leaves have no children, inner nodes have no value; key is the maximum key of the subtree
+    @AllArgsConstructor
+    private static final class Node<K, V, H> {
+        @NotNull final K key;
+        final H hash;
+        final V value;
+        final Node<K, V, H> left;
+        final Node<K, V, H> right;
+
+        boolean isLeaf() {
+            return left == null;
+        }
+    }
+}
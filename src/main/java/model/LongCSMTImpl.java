@@ -0,0 +1,255 @@
+package model;
+
+import lombok.*;
+import lombok.experimental.*;
+import model.node.LeafNode;
+import model.proof.*;
+import model.utils.Direction;
+import model.utils.LeafHashFunction;
+import model.utils.Utils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+import static model.utils.Utils.distance;
+
+// CSMT over unsigned 64-bit keys, BigInteger keys are converted at the interface boundary. Same
+// tree as FixedWidthCSMTImpl, but nodes hold primitive keys, so the long paths never box.
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class LongCSMTImpl<V, H> implements CSMT<V, H> {
+    @Nullable @NonFinal
+    Node<V, H> root;
+    @NotNull LeafHashFunction<V, H> leafHashFunction;
+    @NotNull BinaryOperator<H> nodeHashFunction;
+
+    public LongCSMTImpl(@NotNull Function<V, H> leafHashFunction, @NotNull BinaryOperator<H> nodeHashFunction) {
+        this(LeafHashFunction.ofValue(leafHashFunction), nodeHashFunction);
+    }
+
+    public LongCSMTImpl(@NotNull LeafHashFunction<V, H> leafHashFunction, @NotNull BinaryOperator<H> nodeHashFunction) {
+        this.leafHashFunction = leafHashFunction;
+        this.nodeHashFunction = nodeHashFunction;
+    }
+
+    @Override
+    public void insert(@NotNull BigInteger key, @NotNull V value) {
+        insert(Utils.toUnsignedLong(key), value);
+    }
+
+    @Override
+    public void remove(@NotNull BigInteger key) {
+        remove(Utils.toUnsignedLong(key));
+    }
+
+    @NotNull
+    @Override
+    public Proof<V, H> getProof(@NotNull BigInteger key) {
+        return getProof(Utils.toUnsignedLong(key));
+    }
+
+    @Nullable
+    @Override
+    public V get(@NotNull BigInteger key) {
+        return get(Utils.toUnsignedLong(key));
+    }
+
+    @Nullable
+    @Override
+    public H rootHash() {
+        return root == null ? null : root.hash;
+    }
+
+    public void insert(long key, @NotNull V value) {
+        root = (root == null
+                ? createNode(key, value)
+                : doInsert(root, key, value));
+    }
+
+    // Returns node itself when the key is already present
+    @NotNull
+    private Node<V, H> doInsert(@NotNull Node<V, H> node, long key, @NotNull V value) {
+        if (node.isLeaf()) {
+            if (key == node.key) {
+                return node;
+            }
+
+            val newLeaf = createNode(key, value);
+            return Long.compareUnsigned(key, node.key) < 0
+                    ? createNode(newLeaf, node)
+                    : createNode(node, newLeaf);
+        }
+
+        val left = node.left;
+        val right = node.right;
+
+        val leftDistance = distance(key, left.key);
+        val rightDistance = distance(key, right.key);
+
+        if (leftDistance == rightDistance) {
+            val newLeaf = createNode(key, value);
+            return Long.compareUnsigned(key, left.key) < 0
+                    ? createNode(newLeaf, node)
+                    : createNode(node, newLeaf);
+        }
+
+        if (leftDistance < rightDistance) {
+            val newLeft = doInsert(left, key, value);
+            return newLeft == left ? node : createNode(newLeft, right);
+        } else {
+            val newRight = doInsert(right, key, value);
+            return newRight == right ? node : createNode(left, newRight);
+        }
+    }
+
+    public void remove(long key) {
+        if (root == null) return;
+
+        if (root.isLeaf()) {
+            if (key == root.key) {
+                root = null;
+            }
+        } else {
+            root = doRemove(root, key);
+        }
+    }
+
+    // Returns node itself when the key is missing
+    @NotNull
+    private Node<V, H> doRemove(@NotNull Node<V, H> node, long key) {
+        val left = node.left;
+        val right = node.right;
+
+        if (left.isLeaf() && key == left.key) {
+            return right;
+        }
+
+        if (right.isLeaf() && key == right.key) {
+            return left;
+        }
+
+        val leftDistance = distance(key, left.key);
+        val rightDistance = distance(key, right.key);
+
+        if (leftDistance == rightDistance) {
+            return node;
+        }
+
+        if (leftDistance < rightDistance) {
+            if (left.isLeaf()) return node;
+            val newLeft = doRemove(left, key);
+            return newLeft == left ? node : createNode(newLeft, right);
+        } else {
+            if (right.isLeaf()) return node;
+            val newRight = doRemove(right, key);
+            return newRight == right ? node : createNode(left, newRight);
+        }
+    }
+
+    @Nullable
+    public V get(long key) {
+        Node<V, H> node = root;
+        while (node != null && !node.isLeaf()) {
+            node = Long.compareUnsigned(key, node.left.key) <= 0 ? node.left : node.right;
+        }
+        return node != null && node.key == key ? node.value : null;
+    }
+
+    @NotNull
+    public Proof<V, H> getProof(long key) {
+        if (root == null) {
+            return new NonMembershipProof<>(null, null);
+        }
+
+        // Descend towards key, remembering the closest subtrees on each side of the path
+        Node<V, H> node = root;
+        Node<V, H> lower = null;
+        Node<V, H> upper = null;
+        while (!node.isLeaf()) {
+            val leftDistance = distance(key, node.left.key);
+            val rightDistance = distance(key, node.right.key);
+
+            if (leftDistance == rightDistance) break;
+
+            if (leftDistance < rightDistance) {
+                upper = node.right;
+                node = node.left;
+            } else {
+                lower = node.left;
+                node = node.right;
+            }
+        }
+
+        if (node.isLeaf() && key == node.key) {
+            return findProof(key);
+        }
+
+        if (Long.compareUnsigned(key, node.key) > 0) {
+            lower = node;
+        } else {
+            upper = node;
+        }
+
+        return new NonMembershipProof<>(
+                lower == null ? null : findProof(lower.key),
+                upper == null ? null : findProof(minInSubtree(upper).key)
+        );
+    }
+
+    @NotNull
+    private MembershipProof<V, H> findProof(long key) {
+        val proof = new ArrayList<MembershipProof.Entry<H>>();
+
+        //noinspection ConstantConditions
+        Node<V, H> node = root;
+        while (!node.isLeaf()) {
+            if (distance(key, node.left.key) < distance(key, node.right.key)) {
+                proof.add(new MembershipProof.Entry<>(node.right.hash, Direction.RIGHT));
+                node = node.left;
+            } else {
+                proof.add(new MembershipProof.Entry<>(node.left.hash, Direction.LEFT));
+                node = node.right;
+            }
+        }
+        Collections.reverse(proof);
+
+        //noinspection ConstantConditions
+        return new MembershipProof<>(new LeafNode<>(Utils.toUnsignedBigInteger(node.key), node.value, node.hash), proof);
+    }
+
+    @NotNull
+    private static <V, H> Node<V, H> minInSubtree(@NotNull Node<V, H> node) {
+        while (!node.isLeaf()) {
+            node = node.left;
+        }
+        return node;
+    }
+
+    @NotNull
+    private Node<V, H> createNode(long key, @NotNull V value) {
+        return new Node<>(key, leafHashFunction.apply(key, value), value, null, null);
+    }
+
+    @NotNull
+    private Node<V, H> createNode(@NotNull Node<V, H> left, @NotNull Node<V, H> right) {
+        return new Node<>(right.key, nodeHashFunction.apply(left.hash, right.hash), null, left, right);
+    }
+
+    // Leaves have no children, inner nodes have no value; key is the maximum key of the subtree
+    @AllArgsConstructor
+    private static final class Node<V, H> {
+        final long key;
+        final H hash;
+        final V value;
+        final Node<V, H> left;
+        final Node<V, H> right;
+
+        boolean isLeaf() {
+            return left == null;
+        }
+    }
+}
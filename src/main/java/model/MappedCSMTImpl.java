@@ -0,0 +1,341 @@
+package model;
+
+import lombok.*;
+import lombok.experimental.*;
+import lombok.var;
+import model.node.LeafNode;
+import model.proof.*;
+import model.store.NodeCache;
+import model.store.SegmentStore;
+import model.store.StoredNode;
+import model.utils.Direction;
+import model.utils.HashEngine;
+import model.utils.UInt256;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import static model.store.SegmentStore.NULL;
+
+// Disk-backed CSMT over 256-bit keys. Nodes are appended to a SegmentStore and never changed,
+// so every write path-copies up to the root and the replaced nodes become garbage for compact().
+// Changes are durable after flush(), which atomically publishes the current root.
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class MappedCSMTImpl implements CSMT<byte[], byte[]>, AutoCloseable {
+    public static final double DEFAULT_MIN_LIVE_RATIO = 0.5;
+
+    @NotNull SegmentStore store;
+    @NotNull NodeCache cache;
+    @NotNull HashEngine engine;
+    boolean keyedLeaves;
+    @NonFinal long root;
+    // A path has at most one inner node per key bit
+    @NotNull StoredNode[] path = new StoredNode[UInt256.BITS];
+    @NotNull boolean[] wentLeft = new boolean[UInt256.BITS];
+
+    private MappedCSMTImpl(
+            @NotNull SegmentStore store,
+            @NotNull HashEngine engine,
+            boolean keyedLeaves,
+            long cacheBytes,
+            int pinnedLevels
+    ) {
+        this.store = store;
+        this.cache = new NodeCache(store, cacheBytes, pinnedLevels);
+        this.engine = engine;
+        this.keyedLeaves = keyedLeaves;
+        this.root = store.root();
+    }
+
+    @NotNull
+    public static MappedCSMTImpl open(@NotNull Path directory, @NotNull HashEngine engine) throws IOException {
+        return open(directory, engine, SegmentStore.DEFAULT_SEGMENT_SIZE);
+    }
+
+    @NotNull
+    public static MappedCSMTImpl open(@NotNull Path directory, @NotNull HashEngine engine, int segmentSize) throws IOException {
+        return open(directory, engine, segmentSize, NodeCache.DEFAULT_MAX_BYTES, NodeCache.DEFAULT_PINNED_LEVELS);
+    }
+
+    // Traversals read nodes through a cache of at most about cacheBytes that keeps the top
+    // pinnedLevels levels of the tree on the heap, as far as they fit into a quarter of it
+    @NotNull
+    public static MappedCSMTImpl open(
+            @NotNull Path directory,
+            @NotNull HashEngine engine,
+            int segmentSize,
+            long cacheBytes,
+            int pinnedLevels
+    ) throws IOException {
+        return open(directory, engine, false, segmentSize, cacheBytes, pinnedLevels);
+    }
+
+    // With keyedLeaves the leaves are hashed as by CSMTImpl.createKeyed(engine), otherwise as by
+    // CSMTImpl.create(engine). The store does not record the choice, every open must make the same.
+    @NotNull
+    public static MappedCSMTImpl open(
+            @NotNull Path directory,
+            @NotNull HashEngine engine,
+            boolean keyedLeaves,
+            int segmentSize,
+            long cacheBytes,
+            int pinnedLevels
+    ) throws IOException {
+        val store = SegmentStore.open(directory, engine.hashLength(), segmentSize);
+        return new MappedCSMTImpl(store, engine, keyedLeaves, cacheBytes, pinnedLevels);
+    }
+
+    @Override
+    public void insert(@NotNull BigInteger key, @NotNull byte[] value) {
+        val uKey = UInt256.valueOf(key);
+        if (root == NULL) {
+            root = createNode(uKey, value, 0).getAddress();
+            return;
+        }
+
+        var depth = 0;
+        var node = cache.get(root, 0);
+        while (!node.isLeaf()) {
+            val left = cache.get(node.getLeft(), depth + 1);
+            val right = cache.get(node.getRight(), depth + 1);
+            val leftDistance = UInt256.distance(left.getKey(), uKey);
+            val rightDistance = UInt256.distance(right.getKey(), uKey);
+            if (leftDistance == rightDistance) break;
+
+            push(depth++, node, leftDistance < rightDistance);
+            node = leftDistance < rightDistance ? left : right;
+        }
+
+        val compare = node.getKey().compareTo(uKey);
+        if (compare == 0 && node.isLeaf()) return;
+
+        val newLeaf = createNode(uKey, value, depth + 1);
+        root = rebuild(depth, compare > 0 ? createNode(newLeaf, node, depth) : createNode(node, newLeaf, depth)).getAddress();
+    }
+
+    @Override
+    public void remove(@NotNull BigInteger key) {
+        if (root == NULL) return;
+
+        val uKey = UInt256.valueOf(key);
+        var node = cache.get(root, 0);
+        if (node.isLeaf()) {
+            if (node.getKey().compareTo(uKey) == 0) {
+                cache.invalidate(root);
+                root = NULL;
+            }
+            return;
+        }
+
+        var depth = 0;
+        while (true) {
+            val left = cache.get(node.getLeft(), depth + 1);
+            val right = cache.get(node.getRight(), depth + 1);
+
+            if (left.isLeaf() && left.getKey().compareTo(uKey) == 0) {
+                cache.invalidate(left.getAddress());
+                cache.invalidate(node.getAddress());
+                root = rebuild(depth, right).getAddress();
+                return;
+            }
+
+            if (right.isLeaf() && right.getKey().compareTo(uKey) == 0) {
+                cache.invalidate(right.getAddress());
+                cache.invalidate(node.getAddress());
+                root = rebuild(depth, left).getAddress();
+                return;
+            }
+
+            val leftDistance = UInt256.distance(left.getKey(), uKey);
+            val rightDistance = UInt256.distance(right.getKey(), uKey);
+            if (leftDistance == rightDistance) return;
+
+            val next = leftDistance < rightDistance ? left : right;
+            if (next.isLeaf()) return;
+
+            push(depth++, node, leftDistance < rightDistance);
+            node = next;
+        }
+    }
+
+    @NotNull
+    @Override
+    public Proof<byte[], byte[]> getProof(@NotNull BigInteger key) {
+        if (root == NULL) {
+            return new NonMembershipProof<>(null, null);
+        }
+
+        // Descend towards key, remembering the closest subtrees on each side of the path
+        val uKey = UInt256.valueOf(key);
+        var depth = 0;
+        var node = cache.get(root, 0);
+        StoredNode lower = null;
+        StoredNode upper = null;
+        var upperDepth = 0;
+        while (!node.isLeaf()) {
+            depth++;
+            val left = cache.get(node.getLeft(), depth);
+            val right = cache.get(node.getRight(), depth);
+            val leftDistance = UInt256.distance(left.getKey(), uKey);
+            val rightDistance = UInt256.distance(right.getKey(), uKey);
+
+            if (leftDistance == rightDistance) break;
+
+            if (leftDistance < rightDistance) {
+                upper = right;
+                upperDepth = depth;
+                node = left;
+            } else {
+                lower = left;
+                node = right;
+            }
+        }
+
+        val compare = node.getKey().compareTo(uKey);
+        if (node.isLeaf() && compare == 0) {
+            return findProof(uKey);
+        }
+
+        if (compare < 0) {
+            lower = node;
+        } else {
+            upper = node;
+            upperDepth = depth;
+        }
+
+        return new NonMembershipProof<>(
+                lower == null ? null : findProof(lower.getKey()),
+                upper == null ? null : findProof(minInSubtree(upper, upperDepth))
+        );
+    }
+
+    @Nullable
+    @Override
+    public byte[] get(@NotNull BigInteger key) {
+        if (root == NULL) return null;
+
+        val uKey = UInt256.valueOf(key);
+        var depth = 0;
+        var node = cache.get(root, 0);
+        while (!node.isLeaf()) {
+            val left = cache.get(node.getLeft(), ++depth);
+            node = uKey.compareTo(left.getKey()) <= 0 ? left : cache.get(node.getRight(), depth);
+        }
+        //noinspection ConstantConditions
+        return node.getKey().equals(uKey) ? node.getValue().clone() : null;
+    }
+
+    @Nullable
+    @Override
+    public byte[] rootHash() {
+        return root == NULL ? null : cache.get(root, 0).getHash().clone();
+    }
+
+    @NotNull
+    public NodeCache cache() {
+        return cache;
+    }
+
+    // Makes all changes so far durable, a reopened tree starts from this root
+    public void flush() throws IOException {
+        store.commit(root);
+    }
+
+    // Flushes and reclaims segments mostly taken by nodes replaced since they were written
+    public void compact() throws IOException {
+        compact(DEFAULT_MIN_LIVE_RATIO);
+    }
+
+    public void compact(double minLiveRatio) throws IOException {
+        flush();
+        root = store.compact(root, minLiveRatio);
+        cache.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        cache.clear();
+        store.close();
+    }
+
+    @NotNull
+    private MembershipProof<byte[], byte[]> findProof(@NotNull UInt256 key) {
+        val proof = new ArrayList<MembershipProof.Entry<byte[]>>();
+
+        var depth = 0;
+        var node = cache.get(root, 0);
+        while (!node.isLeaf()) {
+            depth++;
+            val left = cache.get(node.getLeft(), depth);
+            val right = cache.get(node.getRight(), depth);
+            if (UInt256.distance(left.getKey(), key) < UInt256.distance(right.getKey(), key)) {
+                proof.add(new MembershipProof.Entry<>(right.getHash().clone(), Direction.RIGHT));
+                node = left;
+            } else {
+                proof.add(new MembershipProof.Entry<>(left.getHash().clone(), Direction.LEFT));
+                node = right;
+            }
+        }
+        Collections.reverse(proof);
+
+        //noinspection ConstantConditions
+        return new MembershipProof<>(new LeafNode<>(node.getKey().toBigInteger(), node.getValue().clone(),
+                node.getHash().clone()), proof);
+    }
+
+    @NotNull
+    private UInt256 minInSubtree(@NotNull StoredNode node, int depth) {
+        while (!node.isLeaf()) {
+            node = cache.get(node.getLeft(), ++depth);
+        }
+        return node.getKey();
+    }
+
+    private void push(int depth, @NotNull StoredNode node, boolean left) {
+        path[depth] = node;
+        wentLeft[depth] = left;
+    }
+
+    // Replaces the bottom of the path with node, appending new inner nodes up to the root
+    @NotNull
+    private StoredNode rebuild(int depth, @NotNull StoredNode node) {
+        for (var i = depth - 1; i >= 0; i--) {
+            val parent = path[i];
+            path[i] = null;
+            cache.invalidate(parent.getAddress());
+            node = wentLeft[i]
+                    ? createNode(node, cache.get(parent.getRight(), i + 1), i)
+                    : createNode(cache.get(parent.getLeft(), i + 1), node, i);
+        }
+        return node;
+    }
+
+    @NotNull
+    private StoredNode createNode(@NotNull UInt256 key, @NotNull byte[] value, int depth) {
+        val hash = new byte[engine.hashLength()];
+        if (keyedLeaves) {
+            engine.hashKeyedLeaf(key, value, 0, value.length, hash, 0);
+        } else {
+            engine.hashLeaf(value, 0, value.length, hash, 0);
+        }
+        val node = new StoredNode(store.appendLeaf(key, hash, value), key, hash, NULL, NULL, value.clone());
+        cache.put(node, depth);
+        return node;
+    }
+
+    @NotNull
+    private StoredNode createNode(@NotNull StoredNode left, @NotNull StoredNode right, int depth) {
+        val hash = new byte[engine.hashLength()];
+        engine.hashNode(left.getHash(), 0, right.getHash(), 0, hash, 0);
+        val node = new StoredNode(store.appendInner(left.getAddress(), right.getAddress(), hash),
+                right.getKey(), hash, left.getAddress(), right.getAddress(), null);
+        cache.put(node, depth);
+        return node;
+    }
+}
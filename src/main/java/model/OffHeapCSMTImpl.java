@@ -0,0 +1,359 @@
+package model;
+
+import lombok.*;
+import lombok.experimental.*;
+import lombok.var;
+import model.node.LeafNode;
+import model.offheap.NodeArena;
+import model.proof.*;
+import model.utils.Direction;
+import model.utils.HashEngine;
+import model.utils.LeafHashFunction;
+import model.utils.UInt256;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+import static model.offheap.NodeArena.NULL;
+
+// CSMT over unsigned 256-bit keys whose nodes live in an off-heap NodeArena.
+// Nodes are reference counted: a node is referenced by its parents, by the current root and by
+// the retained versions. Nodes replaced by path copying are returned to the arena as soon as
+// neither the current tree nor a retained version reaches them.
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class OffHeapCSMTImpl<V> implements VersionedCSMT<V, byte[]>, AutoCloseable {
+    @NonFinal
+    int root = NULL;
+    @NotNull NodeArena arena;
+    @NotNull TreeMap<Long, Integer> versions = new TreeMap<>();
+    @NonFinal long nextVersion;
+    @NotNull LeafHashFunction<V, byte[]> leafHashFunction;
+    @NotNull BinaryOperator<byte[]> nodeHashFunction;
+
+    public OffHeapCSMTImpl(
+            @NotNull Function<V, byte[]> leafHashFunction,
+            @NotNull BinaryOperator<byte[]> nodeHashFunction,
+            int hashLength
+    ) {
+        this(LeafHashFunction.ofValue(leafHashFunction), nodeHashFunction, hashLength);
+    }
+
+    public OffHeapCSMTImpl(
+            @NotNull LeafHashFunction<V, byte[]> leafHashFunction,
+            @NotNull BinaryOperator<byte[]> nodeHashFunction,
+            int hashLength
+    ) {
+        this.arena = new NodeArena(hashLength);
+        this.leafHashFunction = leafHashFunction;
+        this.nodeHashFunction = nodeHashFunction;
+    }
+
+    @NotNull
+    public static OffHeapCSMTImpl<byte[]> create(@NotNull HashEngine engine) {
+        return new OffHeapCSMTImpl<>(engine::hashLeaf, engine::hashNode, engine.hashLength());
+    }
+
+    // Same as CSMTImpl.createKeyed(engine)
+    @NotNull
+    public static OffHeapCSMTImpl<byte[]> createKeyed(@NotNull HashEngine engine) {
+        return new OffHeapCSMTImpl<>(LeafHashFunction.keyed(engine), engine::hashNode, engine.hashLength());
+    }
+
+    @Override
+    public void insert(@NotNull BigInteger key, @NotNull V value) {
+        val uKey = UInt256.valueOf(key);
+        setRoot(root == NULL
+                ? createNode(uKey, value)
+                : doInsert(root, uKey, value));
+    }
+
+    // Returns node itself when the key is already present
+    private int doInsert(int node, @NotNull UInt256 key, @NotNull V value) {
+        if (arena.isLeaf(node)) {
+            val compare = arena.compareKey(node, key);
+            if (compare == 0) {
+                return node;
+            }
+
+            val newLeaf = createNode(key, value);
+            return compare > 0
+                    ? createNode(newLeaf, node)
+                    : createNode(node, newLeaf);
+        }
+
+        val left = arena.left(node);
+        val right = arena.right(node);
+
+        val leftDistance = arena.distance(left, key);
+        val rightDistance = arena.distance(right, key);
+
+        if (leftDistance == rightDistance) {
+            val newLeaf = createNode(key, value);
+            return arena.compareKey(left, key) > 0
+                    ? createNode(newLeaf, node)
+                    : createNode(node, newLeaf);
+        }
+
+        if (leftDistance < rightDistance) {
+            val newLeft = doInsert(left, key, value);
+            return newLeft == left ? node : createNode(newLeft, right);
+        } else {
+            val newRight = doInsert(right, key, value);
+            return newRight == right ? node : createNode(left, newRight);
+        }
+    }
+
+    @Override
+    public void remove(@NotNull BigInteger key) {
+        if (root == NULL) return;
+
+        val uKey = UInt256.valueOf(key);
+        if (arena.isLeaf(root)) {
+            if (arena.compareKey(root, uKey) == 0) {
+                setRoot(NULL);
+            }
+        } else {
+            setRoot(doRemove(root, uKey));
+        }
+    }
+
+    // Returns node itself when the key is missing
+    private int doRemove(int node, @NotNull UInt256 key) {
+        val left = arena.left(node);
+        val right = arena.right(node);
+
+        if (arena.isLeaf(left) && arena.compareKey(left, key) == 0) {
+            return right;
+        }
+
+        if (arena.isLeaf(right) && arena.compareKey(right, key) == 0) {
+            return left;
+        }
+
+        val leftDistance = arena.distance(left, key);
+        val rightDistance = arena.distance(right, key);
+
+        if (leftDistance == rightDistance) {
+            return node;
+        }
+
+        if (leftDistance < rightDistance) {
+            if (arena.isLeaf(left)) return node;
+            val newLeft = doRemove(left, key);
+            return newLeft == left ? node : createNode(newLeft, right);
+        } else {
+            if (arena.isLeaf(right)) return node;
+            val newRight = doRemove(right, key);
+            return newRight == right ? node : createNode(left, newRight);
+        }
+    }
+
+    @NotNull
+    @Override
+    public Proof<V, byte[]> getProof(@NotNull BigInteger key) {
+        return getProof(root, key);
+    }
+
+    @NotNull
+    @Override
+    public Proof<V, byte[]> getProof(@NotNull BigInteger key, long version) {
+        return getProof(versionRoot(version), key);
+    }
+
+    @NotNull
+    private Proof<V, byte[]> getProof(int root, @NotNull BigInteger key) {
+        if (root == NULL) {
+            return new NonMembershipProof<>(null, null);
+        }
+
+        // Descend towards key, remembering the closest subtrees on each side of the path
+        val uKey = UInt256.valueOf(key);
+        var node = root;
+        var lower = NULL;
+        var upper = NULL;
+        while (!arena.isLeaf(node)) {
+            val left = arena.left(node);
+            val right = arena.right(node);
+            val leftDistance = arena.distance(left, uKey);
+            val rightDistance = arena.distance(right, uKey);
+
+            if (leftDistance == rightDistance) break;
+
+            if (leftDistance < rightDistance) {
+                upper = right;
+                node = left;
+            } else {
+                lower = left;
+                node = right;
+            }
+        }
+
+        val compare = arena.compareKey(node, uKey);
+        if (arena.isLeaf(node) && compare == 0) {
+            return findProof(root, uKey);
+        }
+
+        if (compare < 0) {
+            lower = node;
+        } else {
+            upper = node;
+        }
+
+        return new NonMembershipProof<>(
+                lower == NULL ? null : findProof(root, arena.key(lower)),
+                upper == NULL ? null : findProof(root, arena.key(minInSubtree(upper)))
+        );
+    }
+
+    @NotNull
+    private MembershipProof<V, byte[]> findProof(int root, @NotNull UInt256 key) {
+        val proof = new ArrayList<MembershipProof.Entry<byte[]>>();
+
+        var node = root;
+        while (!arena.isLeaf(node)) {
+            val left = arena.left(node);
+            val right = arena.right(node);
+            if (arena.distance(left, key) < arena.distance(right, key)) {
+                proof.add(new MembershipProof.Entry<>(arena.hash(right), Direction.RIGHT));
+                node = left;
+            } else {
+                proof.add(new MembershipProof.Entry<>(arena.hash(left), Direction.LEFT));
+                node = right;
+            }
+        }
+        Collections.reverse(proof);
+
+        @SuppressWarnings("unchecked")
+        val value = (V) arena.value(node);
+        //noinspection ConstantConditions
+        return new MembershipProof<>(new LeafNode<>(arena.key(node).toBigInteger(), value, arena.hash(node)), proof);
+    }
+
+    @Nullable
+    @Override
+    public V get(@NotNull BigInteger key) {
+        if (root == NULL) return null;
+
+        val uKey = UInt256.valueOf(key);
+        var node = root;
+        while (!arena.isLeaf(node)) {
+            val left = arena.left(node);
+            node = arena.compareKey(left, uKey) >= 0 ? left : arena.right(node);
+        }
+        @SuppressWarnings("unchecked")
+        val value = (V) arena.value(node);
+        return arena.compareKey(node, uKey) == 0 ? value : null;
+    }
+
+    @Nullable
+    @Override
+    public byte[] rootHash() {
+        return root == NULL ? null : arena.hash(root);
+    }
+
+    @Override
+    public long commitVersion() {
+        if (root != NULL) {
+            arena.retain(root);
+        }
+        versions.put(nextVersion, root);
+        return nextVersion++;
+    }
+
+    @Nullable
+    @Override
+    public byte[] rootHash(long version) {
+        val root = versionRoot(version);
+        return root == NULL ? null : arena.hash(root);
+    }
+
+    @Override
+    public void release(long version) {
+        val root = versionRoot(version);
+        versions.remove(version);
+        if (root != NULL) {
+            releaseTree(root);
+        }
+    }
+
+    // Retained versions in increasing order
+    @NotNull
+    public NavigableSet<Long> versions() {
+        return Collections.unmodifiableNavigableSet(versions.navigableKeySet());
+    }
+
+    public int nodeCount() {
+        return arena.size();
+    }
+
+    public int capacity() {
+        return arena.capacity();
+    }
+
+    @Override
+    public void close() {
+        arena.clear();
+        versions.clear();
+        root = NULL;
+    }
+
+    private int minInSubtree(int node) {
+        while (!arena.isLeaf(node)) {
+            node = arena.left(node);
+        }
+        return node;
+    }
+
+    private int versionRoot(long version) {
+        val root = versions.get(version);
+        if (root == null) {
+            throw new IllegalArgumentException("Unknown version " + version);
+        }
+        return root;
+    }
+
+    private void setRoot(int newRoot) {
+        if (newRoot == root) return;
+
+        if (newRoot != NULL) {
+            arena.retain(newRoot);
+        }
+        val oldRoot = root;
+        root = newRoot;
+        if (oldRoot != NULL) {
+            releaseTree(oldRoot);
+        }
+    }
+
+    // Drops one reference to node, freeing it and releasing its children when it was the last
+    private void releaseTree(int node) {
+        if (arena.release(node) != 0) return;
+
+        if (arena.isLeaf(node)) {
+            arena.free(node);
+            return;
+        }
+        val left = arena.left(node);
+        val right = arena.right(node);
+        arena.free(node);
+        releaseTree(left);
+        releaseTree(right);
+    }
+
+    private int createNode(@NotNull UInt256 key, @NotNull V value) {
+        return arena.allocateLeaf(key, leafHashFunction.apply(key, value), value);
+    }
+
+    private int createNode(int left, int right) {
+        arena.retain(left);
+        arena.retain(right);
+        return arena.allocateInner(left, right, nodeHashFunction.apply(arena.hash(left), arena.hash(right)));
+    }
+}
@@ -0,0 +1,64 @@
+package model;
+
+import model.node.InnerNode;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+// Inner nodes on the way down from the root together with the side taken at each of them.
+// One instance per thread is reused by every tree, acquire() hands out a fresh one if the
+// thread's instance is already taken (e.g. a hash function that queries another tree).
+final class PathStack<H> {
+    private static final int INITIAL_CAPACITY = 64;
+    private static final ThreadLocal<PathStack<?>> STACKS = ThreadLocal.withInitial(PathStack::new);
+
+    private InnerNode<H>[] nodes = newArray(INITIAL_CAPACITY);
+    private boolean[] wentLeft = new boolean[INITIAL_CAPACITY];
+    private int size;
+    private boolean acquired;
+
+    @NotNull
+    static <H> PathStack<H> acquire() {
+        @SuppressWarnings("unchecked")
+        PathStack<H> stack = (PathStack<H>) STACKS.get();
+        if (stack.acquired) {
+            stack = new PathStack<>();
+        }
+        stack.acquired = true;
+        return stack;
+    }
+
+    // Drops the node references so that the thread does not keep old versions of a tree alive
+    void release() {
+        Arrays.fill(nodes, 0, size, null);
+        size = 0;
+        acquired = false;
+    }
+
+    void push(@NotNull InnerNode<H> node, boolean left) {
+        if (size == nodes.length) {
+            nodes = Arrays.copyOf(nodes, size * 2);
+            wentLeft = Arrays.copyOf(wentLeft, size * 2);
+        }
+        nodes[size] = node;
+        wentLeft[size++] = left;
+    }
+
+    int size() {
+        return size;
+    }
+
+    @NotNull
+    InnerNode<H> node(int i) {
+        return nodes[i];
+    }
+
+    boolean wentLeft(int i) {
+        return wentLeft[i];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <H> InnerNode<H>[] newArray(int length) {
+        return new InnerNode[length];
+    }
+}
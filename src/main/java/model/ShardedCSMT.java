@@ -0,0 +1,245 @@
+package model;
+
+import lombok.*;
+import lombok.experimental.*;
+import lombok.var;
+import model.proof.MembershipProof;
+import model.proof.NonMembershipProof;
+import model.proof.Proof;
+import model.proof.ProofVerifier;
+import model.utils.LeafHashFunction;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+// Splits keys of keyBits bits by their top shardBits bits into independent CSMTImpl shards, each
+// modified only by its own writer thread, so writes to different shards run in parallel. The root
+// is a CSMT over the non-empty shards keyed by shard index whose leaf hashes are the shard root
+// hashes. The whole structure is one binary Merkle tree with leaves in key order: a proof is a
+// shard proof followed by the top-level path, and ProofVerifier checks it as any other proof.
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class ShardedCSMT<V, H> implements CSMT<V, H>, AutoCloseable {
+    int keyBits;
+    int shift;
+    @NotNull LeafHashFunction<V, H> leafHashFunction;
+    @NotNull BinaryOperator<H> nodeHashFunction;
+    @NotNull List<CSMTImpl<V, H>> shards;
+    @NotNull List<ExecutorService> writers;
+    @NotNull CSMTImpl<H, H> top;
+    // Shard root hashes the top tree was last updated with, guarded by this
+    @NotNull List<H> topHashes;
+
+    @Value
+    private static class State<V, H> {
+        @NotNull List<CSMTSnapshot<V, H>> shards;
+        @NotNull CSMTSnapshot<H, H> top;
+    }
+
+    public ShardedCSMT(
+            @NotNull Function<V, H> leafHashFunction,
+            @NotNull BinaryOperator<H> nodeHashFunction,
+            int shardBits,
+            int keyBits
+    ) {
+        this(LeafHashFunction.ofValue(leafHashFunction), nodeHashFunction, shardBits, keyBits);
+    }
+
+    public ShardedCSMT(
+            @NotNull LeafHashFunction<V, H> leafHashFunction,
+            @NotNull BinaryOperator<H> nodeHashFunction,
+            int shardBits,
+            int keyBits
+    ) {
+        if (shardBits < 0 || shardBits > 16 || shardBits > keyBits) {
+            throw new IllegalArgumentException("Cannot split " + keyBits + "-bit keys by " + shardBits + " bits");
+        }
+        this.keyBits = keyBits;
+        this.shift = keyBits - shardBits;
+        this.leafHashFunction = leafHashFunction;
+        this.nodeHashFunction = nodeHashFunction;
+        this.top = new CSMTImpl<>(Function.identity(), nodeHashFunction);
+
+        val count = 1 << shardBits;
+        this.shards = new ArrayList<>(count);
+        this.writers = new ArrayList<>(count);
+        this.topHashes = new ArrayList<>(Collections.nCopies(count, null));
+        for (var i = 0; i != count; i++) {
+            shards.add(new CSMTImpl<>(leafHashFunction, nodeHashFunction));
+            val name = "csmt-shard-" + i;
+            writers.add(Executors.newSingleThreadExecutor(runnable -> {
+                val thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }));
+        }
+    }
+
+    public int shardCount() {
+        return shards.size();
+    }
+
+    public int shardOf(@NotNull BigInteger key) {
+        if (key.signum() < 0 || key.bitLength() > keyBits) {
+            throw new IllegalArgumentException("Key is not an unsigned " + keyBits + "-bit value: " + key);
+        }
+        return key.shiftRight(shift).intValue();
+    }
+
+    @Override
+    public void insert(@NotNull BigInteger key, @NotNull V value) {
+        val shard = shardOf(key);
+        await(writers.get(shard).submit(() -> shards.get(shard).insert(key, value)));
+    }
+
+    @Override
+    public void remove(@NotNull BigInteger key) {
+        val shard = shardOf(key);
+        await(writers.get(shard).submit(() -> shards.get(shard).remove(key)));
+    }
+
+    // Splits the batch by shard and applies the parts in parallel
+    @Override
+    public void applyBatch(@NotNull SortedMap<BigInteger, V> puts, @NotNull Set<BigInteger> deletes) {
+        val shardPuts = new HashMap<Integer, SortedMap<BigInteger, V>>();
+        val shardDeletes = new HashMap<Integer, Set<BigInteger>>();
+        for (val entry : puts.entrySet()) {
+            shardPuts.computeIfAbsent(shardOf(entry.getKey()), i -> new TreeMap<>()).put(entry.getKey(), entry.getValue());
+        }
+        for (val key : deletes) {
+            shardDeletes.computeIfAbsent(shardOf(key), i -> new HashSet<>()).add(key);
+        }
+
+        val touched = new TreeSet<Integer>(shardPuts.keySet());
+        touched.addAll(shardDeletes.keySet());
+        val futures = new ArrayList<Future<?>>(touched.size());
+        for (val shard : touched) {
+            val shardPut = shardPuts.getOrDefault(shard, Collections.emptySortedMap());
+            val shardDelete = shardDeletes.getOrDefault(shard, Collections.emptySet());
+            futures.add(writers.get(shard).submit(() -> shards.get(shard).applyBatch(shardPut, shardDelete)));
+        }
+        for (val future : futures) {
+            await(future);
+        }
+    }
+
+    @Nullable
+    @Override
+    public H rootHash() {
+        return state().getTop().rootHash();
+    }
+
+    @Nullable
+    @Override
+    public V get(@NotNull BigInteger key) {
+        return shards.get(shardOf(key)).get(key);
+    }
+
+    @NotNull
+    @Override
+    public Proof<V, H> getProof(@NotNull BigInteger key) {
+        val shard = shardOf(key);
+        val state = state();
+        val proof = state.getShards().get(shard).getProof(key);
+        if (proof instanceof MembershipProof) {
+            return extend(state, shard, (MembershipProof<V, H>) proof);
+        }
+
+        // A bound missing in the shard is the maximum or the minimum of the nearest non-empty shard
+        val nonMembership = (NonMembershipProof<V, H>) proof;
+        var left = nonMembership.getLeftBoundProof();
+        var right = nonMembership.getRightBoundProof();
+        left = left != null ? extend(state, shard, left) : maximumBefore(state, shard);
+        right = right != null ? extend(state, shard, right) : minimumAfter(state, shard);
+        return new NonMembershipProof<>(left, right);
+    }
+
+    @NotNull
+    public ProofVerifier<V, H> verifier() {
+        return new ProofVerifier<>(leafHashFunction, nodeHashFunction);
+    }
+
+    @Override
+    public void close() {
+        for (val writer : writers) {
+            writer.shutdown();
+        }
+    }
+
+    // Snapshots every shard and brings the top tree up to date with their root hashes
+    @NotNull
+    private synchronized State<V, H> state() {
+        val snapshots = new ArrayList<CSMTSnapshot<V, H>>(shards.size());
+        val puts = new TreeMap<BigInteger, H>();
+        val deletes = new HashSet<BigInteger>();
+        for (var i = 0; i != shards.size(); i++) {
+            val snapshot = shards.get(i).snapshot();
+            snapshots.add(snapshot);
+
+            val hash = snapshot.rootHash();
+            if (Objects.deepEquals(hash, topHashes.get(i))) continue;
+            topHashes.set(i, hash);
+            deletes.add(BigInteger.valueOf(i));
+            if (hash != null) {
+                puts.put(BigInteger.valueOf(i), hash);
+            }
+        }
+        top.applyBatch(puts, deletes);
+        return new State<>(snapshots, top.snapshot());
+    }
+
+    @NotNull
+    private MembershipProof<V, H> extend(@NotNull State<V, H> state, int shard, @NotNull MembershipProof<V, H> proof) {
+        val topProof = (MembershipProof<H, H>) state.getTop().getProof(BigInteger.valueOf(shard));
+        val entries = new ArrayList<MembershipProof.Entry<H>>(proof.getProof().size() + topProof.getProof().size());
+        entries.addAll(proof.getProof());
+        entries.addAll(topProof.getProof());
+        return new MembershipProof<>(proof.getNode(), entries);
+    }
+
+    @Nullable
+    private MembershipProof<V, H> maximumBefore(@NotNull State<V, H> state, int shard) {
+        for (var i = shard - 1; i >= 0; i--) {
+            val snapshot = state.getShards().get(i);
+            val root = snapshot.getRoot();
+            if (root != null) {
+                return extend(state, i, (MembershipProof<V, H>) snapshot.getProof(root.getKey()));
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    private MembershipProof<V, H> minimumAfter(@NotNull State<V, H> state, int shard) {
+        for (var i = shard + 1; i < state.getShards().size(); i++) {
+            val snapshot = state.getShards().get(i);
+            if (snapshot.getRoot() == null) continue;
+
+            val proof = snapshot.getProof(BigInteger.valueOf(i).shiftLeft(shift));
+            val minimum = proof instanceof MembershipProof
+                    ? (MembershipProof<V, H>) proof
+                    : ((NonMembershipProof<V, H>) proof).getRightBoundProof();
+            return extend(state, i, Objects.requireNonNull(minimum));
+        }
+        return null;
+    }
+
+    private static void await(@NotNull Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            val cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package model;
+
+import lombok.*;
+import lombok.experimental.*;
+import model.node.*;
+import model.node.Node;
+import model.utils.Pair;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigInteger;
+import java.util.*;
+
+import static model.utils.Utils.distance;
+
+// Walks two trees side by side in key order. A subtree covers the keys sharing its bits above
+// the crit bit, so two subtrees are either nested or disjoint; pairs of equal subtrees are skipped
+// without descending, which keeps the cost proportional to the number of changed paths. With a
+// leaf hash that commits to the key, equal hashes mean equal subtrees. Otherwise {1: v} and {2: v}
+// hash the same, so only shared nodes are skipped and leaves are compared by key and value.
+@UtilityClass
+public class TreeDiff {
+    public enum Type {
+        ADDED, REMOVED, CHANGED
+    }
+
+    @Value
+    public static class Change<V> {
+        @NotNull BigInteger key;
+        @Nullable V before;
+        @Nullable V after;
+
+        @NotNull
+        public Type getType() {
+            return before == null ? Type.ADDED : after == null ? Type.REMOVED : Type.CHANGED;
+        }
+    }
+
+    @NotNull
+    public static <V, H> Iterator<Change<V>> diff(@Nullable Node<H> rootA, @Nullable Node<H> rootB) {
+        return diff(rootA, rootB, false);
+    }
+
+    // hashesCommitKeys must only be set when both trees hash leaves with a key-committing function
+    @NotNull
+    public static <V, H> Iterator<Change<V>> diff(
+            @Nullable Node<H> rootA,
+            @Nullable Node<H> rootB,
+            boolean hashesCommitKeys
+    ) {
+        val stack = new ArrayDeque<Pair<Node<H>, Node<H>>>();
+        if (rootA != null || rootB != null) {
+            stack.push(Pair.of(rootA, rootB));
+        }
+
+        return new Iterator<Change<V>>() {
+            @Nullable Change<V> next = advance();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Change<V> next() {
+                val result = next;
+                if (result == null) {
+                    throw new NoSuchElementException();
+                }
+                next = advance();
+                return result;
+            }
+
+            @Nullable
+            private Change<V> advance() {
+                while (!stack.isEmpty()) {
+                    val pair = stack.pop();
+                    val a = pair.getFirst();
+                    val b = pair.getSecond();
+
+                    if (a == null || b == null) {
+                        val node = a == null ? b : a;
+                        if (node instanceof InnerNode) {
+                            val inner = (InnerNode<H>) node;
+                            stack.push(a == null ? Pair.of(null, inner.getRight()) : Pair.of(inner.getRight(), null));
+                            stack.push(a == null ? Pair.of(null, inner.getLeft()) : Pair.of(inner.getLeft(), null));
+                            continue;
+                        }
+                        //noinspection unchecked,ConstantConditions
+                        val value = ((LeafNode<V, H>) node).getValue();
+                        return new Change<>(node.getKey(), a == null ? null : value, a == null ? value : null);
+                    }
+
+                    if (a == b || hashesCommitKeys && Objects.deepEquals(a.getHash(), b.getHash())) continue;
+
+                    val levelA = level(a);
+                    val levelB = level(b);
+                    if (levelA == levelB && covers(a, levelA, b)) {
+                        if (levelA == 0) {
+                            //noinspection unchecked
+                            val before = ((LeafNode<V, H>) a).getValue();
+                            //noinspection unchecked
+                            val after = ((LeafNode<V, H>) b).getValue();
+                            if (Objects.deepEquals(before, after)) continue;
+                            return new Change<>(a.getKey(), before, after);
+                        }
+                        stack.push(Pair.of(((InnerNode<H>) a).getRight(), ((InnerNode<H>) b).getRight()));
+                        stack.push(Pair.of(((InnerNode<H>) a).getLeft(), ((InnerNode<H>) b).getLeft()));
+                    } else if (levelA > levelB && covers(a, levelA, b)) {
+                        val inner = (InnerNode<H>) a;
+                        if (b.getKey().testBit(levelA - 1)) {
+                            stack.push(Pair.of(inner.getRight(), b));
+                            stack.push(Pair.of(inner.getLeft(), null));
+                        } else {
+                            stack.push(Pair.of(inner.getRight(), null));
+                            stack.push(Pair.of(inner.getLeft(), b));
+                        }
+                    } else if (levelB > levelA && covers(b, levelB, a)) {
+                        val inner = (InnerNode<H>) b;
+                        if (a.getKey().testBit(levelB - 1)) {
+                            stack.push(Pair.of(a, inner.getRight()));
+                            stack.push(Pair.of(null, inner.getLeft()));
+                        } else {
+                            stack.push(Pair.of(null, inner.getRight()));
+                            stack.push(Pair.of(a, inner.getLeft()));
+                        }
+                    } else if (a.getKey().compareTo(b.getKey()) < 0) {
+                        stack.push(Pair.of(null, b));
+                        stack.push(Pair.of(a, null));
+                    } else {
+                        stack.push(Pair.of(a, null));
+                        stack.push(Pair.of(null, b));
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    // Number of low key bits that vary inside the subtree
+    private static <H> int level(@NotNull Node<H> node) {
+        if (node instanceof InnerNode) {
+            val inner = (InnerNode<H>) node;
+            return distance(inner.getLeft().getKey(), inner.getRight().getKey());
+        }
+        return 0;
+    }
+
+    private static <H> boolean covers(@NotNull Node<H> outer, int level, @NotNull Node<H> inner) {
+        return outer.getKey().shiftRight(level).equals(inner.getKey().shiftRight(level));
+    }
+}
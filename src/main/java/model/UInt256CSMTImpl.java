@@ -0,0 +1,68 @@
+package model;
+
+import model.proof.Proof;
+import model.utils.LeafHashFunction;
+import model.utils.UInt256;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigInteger;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+// CSMT over unsigned 256-bit keys, BigInteger keys are converted at the interface boundary
+public class UInt256CSMTImpl<V, H> extends FixedWidthCSMTImpl<UInt256, V, H> {
+    public UInt256CSMTImpl(@NotNull Function<V, H> leafHashFunction, @NotNull BinaryOperator<H> nodeHashFunction) {
+        super(LeafHashFunction.ofValue(leafHashFunction), nodeHashFunction);
+    }
+
+    public UInt256CSMTImpl(@NotNull LeafHashFunction<V, H> leafHashFunction, @NotNull BinaryOperator<H> nodeHashFunction) {
+        super(leafHashFunction, nodeHashFunction);
+    }
+
+    public void insert(@NotNull UInt256 key, @NotNull V value) {
+        insertKey(key, value);
+    }
+
+    public void remove(@NotNull UInt256 key) {
+        removeKey(key);
+    }
+
+    @Nullable
+    public V get(@NotNull UInt256 key) {
+        return getKey(key);
+    }
+
+    @NotNull
+    public Proof<V, H> getProof(@NotNull UInt256 key) {
+        return getKeyProof(key);
+    }
+
+    @NotNull
+    @Override
+    UInt256 toKey(@NotNull BigInteger key) {
+        return UInt256.valueOf(key);
+    }
+
+    @NotNull
+    @Override
+    BigInteger toBigInteger(@NotNull UInt256 key) {
+        return key.toBigInteger();
+    }
+
+    @Override
+    int compare(@NotNull UInt256 key1, @NotNull UInt256 key2) {
+        return key1.compareTo(key2);
+    }
+
+    @Override
+    int distance(@NotNull UInt256 key1, @NotNull UInt256 key2) {
+        return UInt256.distance(key1, key2);
+    }
+
+    @NotNull
+    @Override
+    H hashLeaf(@NotNull LeafHashFunction<V, H> leafHashFunction, @NotNull UInt256 key, @NotNull V value) {
+        return leafHashFunction.apply(key, value);
+    }
+}
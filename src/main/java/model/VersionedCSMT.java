@@ -0,0 +1,18 @@
+package model;
+
+import model.proof.Proof;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigInteger;
+
+// A CSMT that keeps named past roots. Versions share every node they have in common, so each
+// retained version costs only the paths changed after it.
+public interface VersionedCSMT<V, H> extends CSMT<V, H> {
+    // Retains the current root, version ids increase
+    long commitVersion();
+    @NotNull Proof<V, H> getProof(@NotNull BigInteger key, long version);
+    @Nullable H rootHash(long version);
+    // Frees the nodes no other retained version or the current tree uses
+    void release(long version);
+}
@@ -0,0 +1,56 @@
+package model.feed;
+
+import lombok.*;
+import lombok.experimental.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Bounded ring of the latest records of one tree. The writer never waits: a record overwrites
+// the one capacity sequences before it. Consumers keep their own position and poll without locks,
+// a consumer that falls more than capacity records behind gets an exception and has to resync
+// from a snapshot.
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class ChangeFeed<V, H> implements ChangeListener<V, H> {
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    @NotNull AtomicReferenceArray<ChangeRecord<V, H>> records;
+    int mask;
+    @NonFinal volatile long lastSequence = -1;
+
+    public ChangeFeed() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ChangeFeed(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity is not a power of two: " + capacity);
+        }
+        this.records = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    @Override
+    public void onChange(@NotNull ChangeRecord<V, H> record) {
+        records.set((int) record.getSequence() & mask, record);
+        lastSequence = record.getSequence();
+    }
+
+    // Sequence of the latest record, -1 before the first one
+    public long lastSequence() {
+        return lastSequence;
+    }
+
+    // Record with the given sequence, or null if it is not published yet
+    @Nullable
+    public ChangeRecord<V, H> poll(long sequence) {
+        if (sequence > lastSequence) return null;
+
+        val record = records.get((int) sequence & mask);
+        if (record == null || record.getSequence() != sequence) {
+            throw new IllegalStateException("Change " + sequence + " is no longer in the feed");
+        }
+        return record;
+    }
+}
@@ -0,0 +1,8 @@
+package model.feed;
+
+import org.jetbrains.annotations.NotNull;
+
+// Called by the writing thread right after the change, it must not block
+public interface ChangeListener<V, H> {
+    void onChange(@NotNull ChangeRecord<V, H> record);
+}
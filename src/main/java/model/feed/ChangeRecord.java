@@ -0,0 +1,30 @@
+package model.feed;
+
+import lombok.Value;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigInteger;
+import java.util.List;
+
+// One insert, remove or batch of a tree and its root hash after the change. Sequences of a tree
+// are consecutive, so a follower notices a missing record.
+@Value
+public class ChangeRecord<V, H> {
+    long sequence;
+    // Applied in order: a batch lists its removes first, then its inserts, leaving out the ones
+    // that did not change the tree
+    @NotNull List<Mutation<V>> mutations;
+    @Nullable H rootHash;
+
+    @Value
+    public static class Mutation<V> {
+        @NotNull BigInteger key;
+        // null is a tombstone
+        @Nullable V value;
+
+        public boolean isTombstone() {
+            return value == null;
+        }
+    }
+}
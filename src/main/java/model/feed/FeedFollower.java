@@ -0,0 +1,65 @@
+package model.feed;
+
+import lombok.*;
+import lombok.experimental.*;
+import lombok.var;
+import model.CSMT;
+import org.jetbrains.annotations.NotNull;
+
+import java.math.BigInteger;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.TreeMap;
+
+// Applies the records of a feed to a replica that holds the leader state before record next, and
+// checks the replica root hash against the leader one after every record.
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+@AllArgsConstructor
+public class FeedFollower<V, H> {
+    @NotNull CSMT<V, H> replica;
+    @NotNull ChangeFeed<V, H> feed;
+    @NonFinal long next;
+
+    // Applies every published record, returns how many
+    public int poll() {
+        var applied = 0;
+        for (var record = feed.poll(next); record != null; record = feed.poll(next)) {
+            apply(record);
+            if (!Objects.deepEquals(replica.rootHash(), record.getRootHash())) {
+                throw new IllegalStateException("Root hash mismatch after change " + record.getSequence());
+            }
+            next++;
+            applied++;
+        }
+        return applied;
+    }
+
+    // Sequence of the first record not applied yet
+    public long next() {
+        return next;
+    }
+
+    private void apply(@NotNull ChangeRecord<V, H> record) {
+        val mutations = record.getMutations();
+        if (mutations.size() == 1) {
+            val mutation = mutations.get(0);
+            if (mutation.isTombstone()) {
+                replica.remove(mutation.getKey());
+            } else {
+                replica.insert(mutation.getKey(), mutation.getValue());
+            }
+            return;
+        }
+
+        val puts = new TreeMap<BigInteger, V>();
+        val deletes = new HashSet<BigInteger>();
+        for (val mutation : mutations) {
+            if (mutation.isTombstone()) {
+                deletes.add(mutation.getKey());
+            } else {
+                puts.put(mutation.getKey(), mutation.getValue());
+            }
+        }
+        replica.applyBatch(puts, deletes);
+    }
+}
@@ -0,0 +1,151 @@
+package model.metrics;
+
+import lombok.*;
+import lombok.experimental.*;
+import model.proof.MembershipProof;
+import model.proof.NonMembershipProof;
+import model.proof.Proof;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+// Counters and histograms of one tree. Latencies are in nanoseconds, depths and proof sizes in
+// hashes. Every record is a striped counter update, a tree without metrics does not record at all.
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class CSMTMetrics implements CSMTMetricsMXBean {
+    // Rough heap footprint of a node besides its hash bytes with compressed oops: the node object,
+    // a BigInteger key with its magnitude array and the hash array header
+    static final int NODE_OVERHEAD_BYTES = 104;
+
+    LongAdder inserts = new LongAdder();
+    LongAdder removes = new LongAdder();
+    LongAdder batches = new LongAdder();
+    LongAdder membershipProofs = new LongAdder();
+    LongAdder nonMembershipProofs = new LongAdder();
+    LongAdder leafHashes = new LongAdder();
+    LongAdder nodeHashes = new LongAdder();
+
+    @Getter Histogram insertLatency = new Histogram();
+    @Getter Histogram removeLatency = new Histogram();
+    @Getter Histogram batchLatency = new Histogram();
+    @Getter Histogram membershipProofLatency = new Histogram();
+    @Getter Histogram nonMembershipProofLatency = new Histogram();
+    @Getter Histogram pathDepth = new Histogram();
+    @Getter Histogram proofSize = new Histogram();
+
+    @NonFinal volatile LongSupplier leafCounter = () -> 0;
+    @NonFinal volatile IntSupplier hashLength = () -> 0;
+
+    // Called by the tree the metrics are attached to, the suppliers are only invoked on read
+    public void track(@NotNull LongSupplier leafCounter, @NotNull IntSupplier hashLength) {
+        this.leafCounter = leafCounter;
+        this.hashLength = hashLength;
+    }
+
+    public void recordInsert(long nanos) {
+        inserts.increment();
+        insertLatency.record(nanos);
+    }
+
+    public void recordRemove(long nanos) {
+        removes.increment();
+        removeLatency.record(nanos);
+    }
+
+    public void recordBatch(long nanos) {
+        batches.increment();
+        batchLatency.record(nanos);
+    }
+
+    public void recordProof(@NotNull Proof<?, ?> proof, long nanos) {
+        if (proof instanceof MembershipProof) {
+            val size = ((MembershipProof<?, ?>) proof).getProof().size();
+            membershipProofs.increment();
+            membershipProofLatency.record(nanos);
+            pathDepth.record(size);
+            proofSize.record(size);
+        } else {
+            val nonMembership = (NonMembershipProof<?, ?>) proof;
+            val left = nonMembership.getLeftBoundProof();
+            val right = nonMembership.getRightBoundProof();
+            nonMembershipProofs.increment();
+            nonMembershipProofLatency.record(nanos);
+            proofSize.record((left == null ? 0 : left.getProof().size()) + (right == null ? 0 : right.getProof().size()));
+        }
+    }
+
+    public void recordDepth(int depth) {
+        pathDepth.record(depth);
+    }
+
+    public void recordLeafHash() {
+        leafHashes.increment();
+    }
+
+    public void recordNodeHash() {
+        nodeHashes.increment();
+    }
+
+    @Override
+    public long getInserts() {
+        return inserts.sum();
+    }
+
+    @Override
+    public long getRemoves() {
+        return removes.sum();
+    }
+
+    @Override
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    @Override
+    public long getMembershipProofs() {
+        return membershipProofs.sum();
+    }
+
+    @Override
+    public long getNonMembershipProofs() {
+        return nonMembershipProofs.sum();
+    }
+
+    @Override
+    public long getLeafHashes() {
+        return leafHashes.sum();
+    }
+
+    @Override
+    public long getNodeHashes() {
+        return nodeHashes.sum();
+    }
+
+    @Override
+    public long getNodeCount() {
+        val leaves = leafCounter.getAsLong();
+        return leaves == 0 ? 0 : 2 * leaves - 1;
+    }
+
+    @Override
+    public long getEstimatedBytes() {
+        return getNodeCount() * (NODE_OVERHEAD_BYTES + hashLength.getAsInt());
+    }
+
+    @NotNull
+    public Map<String, Histogram> histograms() {
+        val histograms = new LinkedHashMap<String, Histogram>();
+        histograms.put("insertLatency", insertLatency);
+        histograms.put("removeLatency", removeLatency);
+        histograms.put("batchLatency", batchLatency);
+        histograms.put("membershipProofLatency", membershipProofLatency);
+        histograms.put("nonMembershipProofLatency", nonMembershipProofLatency);
+        histograms.put("pathDepth", pathDepth);
+        histograms.put("proofSize", proofSize);
+        return histograms;
+    }
+}
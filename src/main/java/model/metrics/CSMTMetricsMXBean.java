@@ -0,0 +1,13 @@
+package model.metrics;
+
+public interface CSMTMetricsMXBean {
+    long getInserts();
+    long getRemoves();
+    long getBatches();
+    long getMembershipProofs();
+    long getNonMembershipProofs();
+    long getLeafHashes();
+    long getNodeHashes();
+    long getNodeCount();
+    long getEstimatedBytes();
+}
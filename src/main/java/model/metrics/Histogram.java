@@ -0,0 +1,86 @@
+package model.metrics;
+
+import lombok.*;
+import lombok.experimental.*;
+import lombok.var;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Power-of-two buckets over striped counters: bucket 0 counts zeros, bucket i counts values in
+// [2^(i-1), 2^i). Percentiles are reported as the upper bound of their bucket, so they are exact
+// to a factor of two, which is enough to tell a cache hit from a page fault.
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class Histogram implements HistogramMXBean {
+    static final int BUCKETS = Long.SIZE + 1;
+
+    LongAdder[] buckets = new LongAdder[BUCKETS];
+    LongAdder sum = new LongAdder();
+
+    public Histogram() {
+        for (var i = 0; i != BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long value) {
+        val clamped = Math.max(value, 0);
+        buckets[Long.SIZE - Long.numberOfLeadingZeros(clamped)].increment();
+        sum.add(clamped);
+    }
+
+    @Override
+    public long getCount() {
+        var count = 0L;
+        for (val bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    @Override
+    public long getSum() {
+        return sum.sum();
+    }
+
+    @Override
+    public double getMean() {
+        val count = getCount();
+        return count == 0 ? 0 : (double) getSum() / count;
+    }
+
+    @Override
+    public long getPercentile50() {
+        return percentile(0.5);
+    }
+
+    @Override
+    public long getPercentile99() {
+        return percentile(0.99);
+    }
+
+    @Override
+    public long getMax() {
+        return percentile(1);
+    }
+
+    // Upper bound of the bucket holding the value at quantile q, 0 while empty
+    public long percentile(double q) {
+        val counts = new long[BUCKETS];
+        var count = 0L;
+        for (var i = 0; i != BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            count += counts[i];
+        }
+        if (count == 0) return 0;
+
+        val rank = Math.max(1, (long) Math.ceil(q * count));
+        var seen = 0L;
+        for (var i = 0; i != BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return i == 0 ? 0 : i == Long.SIZE ? Long.MAX_VALUE : (1L << i) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,10 @@
+package model.metrics;
+
+public interface HistogramMXBean {
+    long getCount();
+    long getSum();
+    double getMean();
+    long getPercentile50();
+    long getPercentile99();
+    long getMax();
+}
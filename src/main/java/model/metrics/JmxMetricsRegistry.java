@@ -0,0 +1,61 @@
+package model.metrics;
+
+import lombok.*;
+import lombok.experimental.*;
+import org.jetbrains.annotations.NotNull;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+// Registers csmt:type=Tree,name=<name> with the counters and one
+// csmt:type=Histogram,tree=<name>,name=<histogram> per histogram
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+@RequiredArgsConstructor
+public class JmxMetricsRegistry implements MetricsRegistry {
+    public static final String DOMAIN = "csmt";
+
+    @NotNull MBeanServer server;
+
+    public JmxMetricsRegistry() {
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    @Override
+    public void register(@NotNull String name, @NotNull CSMTMetrics metrics) {
+        try {
+            server.registerMBean(metrics, treeName(name));
+            for (val entry : metrics.histograms().entrySet()) {
+                server.registerMBean(entry.getValue(), histogramName(name, entry.getKey()));
+            }
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register metrics of " + name, e);
+        }
+    }
+
+    @Override
+    public void unregister(@NotNull String name) {
+        try {
+            val pattern = new ObjectName(DOMAIN + ":type=Histogram,tree=" + ObjectName.quote(name) + ",*");
+            for (val objectName : server.queryNames(pattern, null)) {
+                server.unregisterMBean(objectName);
+            }
+            if (server.isRegistered(treeName(name))) {
+                server.unregisterMBean(treeName(name));
+            }
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot unregister metrics of " + name, e);
+        }
+    }
+
+    @NotNull
+    public static ObjectName treeName(@NotNull String name) throws JMException {
+        return new ObjectName(DOMAIN + ":type=Tree,name=" + ObjectName.quote(name));
+    }
+
+    @NotNull
+    public static ObjectName histogramName(@NotNull String tree, @NotNull String histogram) throws JMException {
+        return new ObjectName(DOMAIN + ":type=Histogram,tree=" + ObjectName.quote(tree) + ",name=" + histogram);
+    }
+}
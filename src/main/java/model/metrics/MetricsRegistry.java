@@ -0,0 +1,10 @@
+package model.metrics;
+
+import org.jetbrains.annotations.NotNull;
+
+// Where the metrics of named trees are published, JmxMetricsRegistry or an adapter to the
+// application's own metrics library
+public interface MetricsRegistry {
+    void register(@NotNull String name, @NotNull CSMTMetrics metrics);
+    void unregister(@NotNull String name);
+}
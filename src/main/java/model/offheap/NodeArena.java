@@ -0,0 +1,219 @@
+package model.offheap;
+
+import lombok.val;
+import model.utils.UInt256;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Fixed-size node records in direct ByteBuffer slabs, addressed by int handles:
+// [key: 4 longs][hash: hashLength bytes][left: int][right: int]
+// Leaves have left == NULL, inner nodes store the maximum key of their subtree.
+// Freed records are chained through their left field and reused first.
+// Leaf values are the only on-heap part, kept in arrays parallel to the slabs, as are the
+// reference counts that the owner may use to share records between several roots.
+public final class NodeArena {
+    public static final int NULL = -1;
+
+    private static final int SLAB_BITS = 16;
+    private static final int SLAB_RECORDS = 1 << SLAB_BITS;
+    private static final int KEY_BYTES = UInt256.BITS / Byte.SIZE;
+
+    private final int hashLength;
+    private final int recordSize;
+    private final int leftOffset;
+    private final int rightOffset;
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+    private final List<Object[]> values = new ArrayList<>();
+    private final List<int[]> references = new ArrayList<>();
+
+    private int next;
+    private int freeList = NULL;
+    private int size;
+
+    public NodeArena(int hashLength) {
+        if (hashLength <= 0) {
+            throw new IllegalArgumentException("Hash length must be positive: " + hashLength);
+        }
+        this.hashLength = hashLength;
+        this.leftOffset = KEY_BYTES + hashLength;
+        this.rightOffset = leftOffset + Integer.BYTES;
+        this.recordSize = (rightOffset + Integer.BYTES + 7) & ~7;
+    }
+
+    public int getHashLength() {
+        return hashLength;
+    }
+
+    // Number of live records
+    public int size() {
+        return size;
+    }
+
+    // Number of records ever handed out, live or on the free list
+    public int capacity() {
+        return next;
+    }
+
+    public int allocateLeaf(@NotNull UInt256 key, @NotNull byte[] hash, @NotNull Object value) {
+        checkHash(hash);
+        val handle = allocate();
+        val slab = slab(handle);
+        val offset = offset(handle);
+        for (int i = 0; i != 4; i++) {
+            slab.putLong(offset + i * Long.BYTES, key.getWord(i));
+        }
+        putHash(slab, offset, hash);
+        slab.putInt(offset + leftOffset, NULL);
+        slab.putInt(offset + rightOffset, NULL);
+        values.get(handle >>> SLAB_BITS)[handle & (SLAB_RECORDS - 1)] = value;
+        return handle;
+    }
+
+    public int allocateInner(int left, int right, @NotNull byte[] hash) {
+        checkHash(hash);
+        val handle = allocate();
+        val slab = slab(handle);
+        val offset = offset(handle);
+        val rightSlab = slab(right);
+        val rightOffset = offset(right);
+        for (int i = 0; i != 4; i++) {
+            slab.putLong(offset + i * Long.BYTES, rightSlab.getLong(rightOffset + i * Long.BYTES));
+        }
+        putHash(slab, offset, hash);
+        slab.putInt(offset + leftOffset, left);
+        slab.putInt(offset + this.rightOffset, right);
+        return handle;
+    }
+
+    public void retain(int handle) {
+        references.get(handle >>> SLAB_BITS)[handle & (SLAB_RECORDS - 1)]++;
+    }
+
+    // Returns the number of references left
+    public int release(int handle) {
+        return --references.get(handle >>> SLAB_BITS)[handle & (SLAB_RECORDS - 1)];
+    }
+
+    public void free(int handle) {
+        slab(handle).putInt(offset(handle) + leftOffset, freeList);
+        values.get(handle >>> SLAB_BITS)[handle & (SLAB_RECORDS - 1)] = null;
+        freeList = handle;
+        size--;
+    }
+
+    public void clear() {
+        slabs.clear();
+        values.clear();
+        references.clear();
+        next = 0;
+        freeList = NULL;
+        size = 0;
+    }
+
+    public boolean isLeaf(int handle) {
+        return left(handle) == NULL;
+    }
+
+    public int left(int handle) {
+        return slab(handle).getInt(offset(handle) + leftOffset);
+    }
+
+    public int right(int handle) {
+        return slab(handle).getInt(offset(handle) + rightOffset);
+    }
+
+    @Nullable
+    public Object value(int handle) {
+        return values.get(handle >>> SLAB_BITS)[handle & (SLAB_RECORDS - 1)];
+    }
+
+    @NotNull
+    public UInt256 key(int handle) {
+        val slab = slab(handle);
+        val offset = offset(handle);
+        return new UInt256(
+                slab.getLong(offset),
+                slab.getLong(offset + Long.BYTES),
+                slab.getLong(offset + 2 * Long.BYTES),
+                slab.getLong(offset + 3 * Long.BYTES)
+        );
+    }
+
+    @NotNull
+    public byte[] hash(int handle) {
+        val hash = new byte[hashLength];
+        val slab = slab(handle);
+        val offset = offset(handle) + KEY_BYTES;
+        for (int i = 0; i != hashLength; i++) {
+            hash[i] = slab.get(offset + i);
+        }
+        return hash;
+    }
+
+    // Same value as UInt256.distance(key(handle), key)
+    public int distance(int handle, @NotNull UInt256 key) {
+        val slab = slab(handle);
+        val offset = offset(handle);
+        for (int i = 0; i != 4; i++) {
+            val x = slab.getLong(offset + i * Long.BYTES) ^ key.getWord(i);
+            if (x != 0) {
+                return (4 - i) * Long.SIZE - Long.numberOfLeadingZeros(x);
+            }
+        }
+        return 0;
+    }
+
+    public int compareKey(int handle, @NotNull UInt256 key) {
+        val slab = slab(handle);
+        val offset = offset(handle);
+        for (int i = 0; i != 4; i++) {
+            val word = slab.getLong(offset + i * Long.BYTES);
+            if (word != key.getWord(i)) {
+                return Long.compareUnsigned(word, key.getWord(i));
+            }
+        }
+        return 0;
+    }
+
+    private int allocate() {
+        size++;
+        if (freeList != NULL) {
+            val handle = freeList;
+            freeList = left(handle);
+            references.get(handle >>> SLAB_BITS)[handle & (SLAB_RECORDS - 1)] = 0;
+            return handle;
+        }
+
+        if ((next & (SLAB_RECORDS - 1)) == 0) {
+            slabs.add(ByteBuffer.allocateDirect(SLAB_RECORDS * recordSize));
+            values.add(new Object[SLAB_RECORDS]);
+            references.add(new int[SLAB_RECORDS]);
+        }
+        return next++;
+    }
+
+    private void checkHash(@NotNull byte[] hash) {
+        if (hash.length != hashLength) {
+            throw new IllegalArgumentException("Expected " + hashLength + " byte hash, got " + hash.length);
+        }
+    }
+
+    private void putHash(@NotNull ByteBuffer slab, int offset, @NotNull byte[] hash) {
+        for (int i = 0; i != hashLength; i++) {
+            slab.put(offset + KEY_BYTES + i, hash[i]);
+        }
+    }
+
+    @NotNull
+    private ByteBuffer slab(int handle) {
+        return slabs.get(handle >>> SLAB_BITS);
+    }
+
+    private int offset(int handle) {
+        return (handle & (SLAB_RECORDS - 1)) * recordSize;
+    }
+}
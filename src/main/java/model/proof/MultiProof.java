@@ -0,0 +1,24 @@
+package model.proof;
+
+import lombok.EqualsAndHashCode;
+import lombok.Value;
+import model.node.LeafNode;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+// Preorder walk of the part of the tree that covers the proved leaves: every NODE step is followed by
+// its left and right subtrees, LEAF steps take the next of leaves and HASH steps take the next of hashes.
+// Leaves are in key order and include the bounds of absent keys, two leaves are neighbours in the tree
+// exactly when no HASH step lies between them.
+@EqualsAndHashCode(callSuper = false)
+@Value
+public class MultiProof<V, H> extends Proof<V, H> {
+    @NotNull List<Step> steps;
+    @NotNull List<LeafNode<V, H>> leaves;
+    @NotNull List<H> hashes;
+
+    public enum Step {
+        NODE, LEAF, HASH
+    }
+}
@@ -0,0 +1,241 @@
+package model.proof;
+
+import lombok.*;
+import lombok.experimental.*;
+import lombok.var;
+import model.utils.Direction;
+import model.utils.LeafHashFunction;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BinaryOperator;
+
+import static model.utils.Direction.*;
+
+// Checks proofs against a root hash. Links between verified nodes (parent hash, sibling side and hash
+// -> child hash) are cached, so a proof that joins an already verified path is hashed only below it.
+// Thread-safe as long as the hash functions are.
+// The leaf hash must commit to the key: with a value-only one a proof could carry any key, so
+// neither the key of a member nor non-membership would be proven.
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class ProofVerifier<V, H> {
+    public static final int DEFAULT_CACHE_SIZE = 1 << 16;
+    private static final int BATCH_THRESHOLD = 64;
+
+    @NotNull LeafHashFunction<V, H> leafHashFunction;
+    @NotNull BinaryOperator<H> nodeHashFunction;
+    int cacheSize;
+    @NotNull Map<Link, H> verifiedLinks = new ConcurrentHashMap<>();
+
+    public ProofVerifier(@NotNull LeafHashFunction<V, H> leafHashFunction, @NotNull BinaryOperator<H> nodeHashFunction) {
+        this(leafHashFunction, nodeHashFunction, DEFAULT_CACHE_SIZE);
+    }
+
+    // cacheSize == 0 disables the cache
+    public ProofVerifier(
+            @NotNull LeafHashFunction<V, H> leafHashFunction,
+            @NotNull BinaryOperator<H> nodeHashFunction,
+            int cacheSize
+    ) {
+        if (!leafHashFunction.commitsKey()) {
+            throw new IllegalArgumentException("Proofs can only be verified with a leaf hash that commits to the key");
+        }
+        this.leafHashFunction = leafHashFunction;
+        this.nodeHashFunction = nodeHashFunction;
+        this.cacheSize = cacheSize;
+    }
+
+    public boolean verify(@Nullable H rootHash, @NotNull BigInteger key, @NotNull Proof<V, H> proof) {
+        if (proof instanceof MembershipProof) {
+            val membershipProof = (MembershipProof<V, H>) proof;
+            return rootHash != null
+                    && key.equals(membershipProof.getNode().getKey())
+                    && verifyPath(rootHash, membershipProof);
+        }
+
+        if (proof instanceof NonMembershipProof) {
+            val leftBound = ((NonMembershipProof<V, H>) proof).getLeftBoundProof();
+            val rightBound = ((NonMembershipProof<V, H>) proof).getRightBoundProof();
+
+            if (leftBound == null && rightBound == null) {
+                return rootHash == null;
+            }
+            if (rootHash == null) {
+                return false;
+            }
+            if (leftBound != null && (leftBound.getNode().getKey().compareTo(key) >= 0 || !verifyPath(rootHash, leftBound))) {
+                return false;
+            }
+            if (rightBound != null && (rightBound.getNode().getKey().compareTo(key) <= 0 || !verifyPath(rootHash, rightBound))) {
+                return false;
+            }
+            return areNeighbours(leftBound, rightBound);
+        }
+
+        return false;
+    }
+
+    @NotNull
+    public boolean[] verifyAll(
+            @Nullable H rootHash,
+            @NotNull List<BigInteger> keys,
+            @NotNull List<? extends Proof<V, H>> proofs
+    ) {
+        return verifyAll(rootHash, keys, proofs, ForkJoinPool.commonPool());
+    }
+
+    @NotNull
+    public boolean[] verifyAll(
+            @Nullable H rootHash,
+            @NotNull List<BigInteger> keys,
+            @NotNull List<? extends Proof<V, H>> proofs,
+            @NotNull ForkJoinPool pool
+    ) {
+        if (keys.size() != proofs.size()) {
+            throw new IllegalArgumentException("Got " + keys.size() + " keys and " + proofs.size() + " proofs");
+        }
+
+        val results = new boolean[keys.size()];
+        pool.invoke(new VerifyTask(rootHash, keys, proofs, results, 0, results.length));
+        return results;
+    }
+
+    public void clearCache() {
+        verifiedLinks.clear();
+    }
+
+    private boolean verifyPath(@NotNull H rootHash, @NotNull MembershipProof<V, H> proof) {
+        val entries = proof.getProof();
+
+        // Follow the verified links down from the root as far as the proof agrees with them
+        var expected = rootHash;
+        var top = entries.size();
+        if (cacheSize != 0) {
+            while (top != 0) {
+                val entry = entries.get(top - 1);
+                val child = verifiedLinks.get(new Link(cacheKey(expected), entry.getDirection(), cacheKey(entry.getHash())));
+                if (child == null) break;
+                expected = child;
+                top--;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        val hashes = (H[]) new Object[top + 1];
+        var hash = leafHashFunction.apply(proof.getNode().getKey(), proof.getNode().getValue());
+        if (!Objects.deepEquals(hash, proof.getNode().getHash())) {
+            return false;
+        }
+
+        for (int i = 0; i != top; i++) {
+            hashes[i] = hash;
+            val entry = entries.get(i);
+            hash = entry.getDirection() == LEFT
+                    ? nodeHashFunction.apply(entry.getHash(), hash)
+                    : nodeHashFunction.apply(hash, entry.getHash());
+        }
+        hashes[top] = hash;
+
+        if (!Objects.deepEquals(hash, expected)) {
+            return false;
+        }
+
+        if (cacheSize != 0 && top != 0) {
+            if (verifiedLinks.size() + top > cacheSize) {
+                verifiedLinks.clear();
+            }
+            for (int i = 0; i != top; i++) {
+                val entry = entries.get(i);
+                verifiedLinks.put(new Link(cacheKey(hashes[i + 1]), entry.getDirection(), cacheKey(entry.getHash())), hashes[i]);
+            }
+        }
+        return true;
+    }
+
+    // The bounds are neighbours if below the node where their paths split the left bound only
+    // goes right and the right bound only goes left; a missing bound means the other one is
+    // the minimum or the maximum of the tree
+    private boolean areNeighbours(@Nullable MembershipProof<V, H> leftBound, @Nullable MembershipProof<V, H> rightBound) {
+        if (leftBound == null) {
+            //noinspection ConstantConditions
+            return allSiblingsOn(rightBound.getProof(), RIGHT, rightBound.getProof().size());
+        }
+        if (rightBound == null) {
+            return allSiblingsOn(leftBound.getProof(), LEFT, leftBound.getProof().size());
+        }
+
+        val left = leftBound.getProof();
+        val right = rightBound.getProof();
+        var i = left.size() - 1;
+        var j = right.size() - 1;
+        while (i >= 0 && j >= 0 && sameEntry(left.get(i), right.get(j))) {
+            i--;
+            j--;
+        }
+
+        return i >= 0 && j >= 0
+                && left.get(i).getDirection() == RIGHT
+                && right.get(j).getDirection() == LEFT
+                && allSiblingsOn(left, LEFT, i)
+                && allSiblingsOn(right, RIGHT, j);
+    }
+
+    private boolean allSiblingsOn(@NotNull List<MembershipProof.Entry<H>> entries, @NotNull Direction direction, int to) {
+        for (int i = 0; i != to; i++) {
+            if (entries.get(i).getDirection() != direction) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean sameEntry(@NotNull MembershipProof.Entry<H> entry1, @NotNull MembershipProof.Entry<H> entry2) {
+        return entry1.getDirection() == entry2.getDirection() && Objects.deepEquals(entry1.getHash(), entry2.getHash());
+    }
+
+    // Arrays are compared by reference, wrap them to compare content
+    @NotNull
+    private static Object cacheKey(@NotNull Object hash) {
+        return hash instanceof byte[] ? ByteBuffer.wrap((byte[]) hash) : hash;
+    }
+
+    @Value
+    private static class Link {
+        @NotNull Object parent;
+        @NotNull Direction direction;
+        @NotNull Object sibling;
+    }
+
+    @RequiredArgsConstructor
+    private class VerifyTask extends RecursiveAction {
+        @Nullable final H rootHash;
+        @NotNull final List<BigInteger> keys;
+        @NotNull final List<? extends Proof<V, H>> proofs;
+        @NotNull final boolean[] results;
+        final int from;
+        final int to;
+
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH_THRESHOLD) {
+                for (int i = from; i != to; i++) {
+                    results[i] = verify(rootHash, keys.get(i), proofs.get(i));
+                }
+            } else {
+                val middle = (from + to) >>> 1;
+                invokeAll(
+                        new VerifyTask(rootHash, keys, proofs, results, from, middle),
+                        new VerifyTask(rootHash, keys, proofs, results, middle, to)
+                );
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package model.proof.codec;
+
+import lombok.val;
+import model.utils.Direction;
+import org.jetbrains.annotations.NotNull;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+// Reusable read-only view over an encoded membership proof, see ProofCodec for the layout.
+// Reads with absolute gets, so the position of the wrapped buffer is never changed.
+public final class MembershipProofView {
+    private ByteBuffer buffer;
+    private int hashLength;
+    private int keyOffset;
+    private int keyLength;
+    private int valueOffset;
+    private int valueLength;
+    private int leafHashOffset;
+    private int depth;
+    private int directionsOffset;
+    private int hashesOffset;
+    private int end;
+
+    @NotNull
+    public MembershipProofView wrap(@NotNull ByteBuffer buffer, int offset) {
+        if (ProofCodec.readHeader(buffer, offset) != ProofCodec.MEMBERSHIP) {
+            throw new IllegalArgumentException("Not a membership proof");
+        }
+        return wrapRecord(buffer, offset + ProofCodec.HEADER_SIZE, buffer.getShort(offset + 2) & 0xFFFF);
+    }
+
+    // Every field is checked to lie within the buffer before it is read, offsets are summed in long
+    @NotNull
+    MembershipProofView wrapRecord(@NotNull ByteBuffer buffer, int offset, int hashLength) {
+        this.buffer = buffer;
+        this.hashLength = hashLength;
+        keyLength = buffer.getShort(at(buffer, offset, Short.BYTES)) & 0xFFFF;
+        keyOffset = offset + Short.BYTES;
+        if (keyLength == 0) {
+            throw new IllegalArgumentException("Empty key");
+        }
+        if (buffer.get(at(buffer, keyOffset, keyLength)) < 0) {
+            throw new IllegalArgumentException("Negative key");
+        }
+        valueLength = buffer.getInt(at(buffer, (long) keyOffset + keyLength, Integer.BYTES));
+        if (valueLength < 0) {
+            throw new IllegalArgumentException("Negative value length: " + valueLength);
+        }
+        valueOffset = keyOffset + keyLength + Integer.BYTES;
+        leafHashOffset = at(buffer, (long) valueOffset + valueLength, hashLength);
+        depth = buffer.getShort(at(buffer, (long) leafHashOffset + hashLength, Short.BYTES)) & 0xFFFF;
+        directionsOffset = leafHashOffset + hashLength + Short.BYTES;
+        hashesOffset = at(buffer, directionsOffset, (depth + 7) / 8) + (depth + 7) / 8;
+        end = at(buffer, hashesOffset, (long) depth * hashLength) + depth * hashLength;
+        return this;
+    }
+
+    private static int at(@NotNull ByteBuffer buffer, long offset, long length) {
+        if (offset < 0 || offset + length > buffer.limit()) {
+            throw new IllegalArgumentException("Truncated proof");
+        }
+        return (int) offset;
+    }
+
+    // Offset right after the encoded proof
+    public int end() {
+        return end;
+    }
+
+    @NotNull
+    public BigInteger key() {
+        val key = new byte[keyLength];
+        for (int i = 0; i != keyLength; i++) {
+            key[i] = buffer.get(keyOffset + i);
+        }
+        return new BigInteger(key);
+    }
+
+    public int valueLength() {
+        return valueLength;
+    }
+
+    @NotNull
+    public ByteBuffer value() {
+        return slice(valueOffset, valueLength);
+    }
+
+    @NotNull
+    public ByteBuffer leafHash() {
+        return slice(leafHashOffset, hashLength);
+    }
+
+    public void copyLeafHash(@NotNull byte[] dest, int destOffset) {
+        copy(leafHashOffset, dest, destOffset);
+    }
+
+    public int depth() {
+        return depth;
+    }
+
+    // Side of the sibling at entry i, entries go from the leaf up to the root
+    @NotNull
+    public Direction direction(int i) {
+        checkIndex(i);
+        return (buffer.get(directionsOffset + (i >>> 3)) & (1 << (i & 7))) != 0 ? Direction.RIGHT : Direction.LEFT;
+    }
+
+    @NotNull
+    public ByteBuffer hash(int i) {
+        checkIndex(i);
+        return slice(hashesOffset + i * hashLength, hashLength);
+    }
+
+    public void copyHash(int i, @NotNull byte[] dest, int destOffset) {
+        checkIndex(i);
+        copy(hashesOffset + i * hashLength, dest, destOffset);
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= depth) {
+            throw new IndexOutOfBoundsException("Entry " + i + " of " + depth);
+        }
+    }
+
+    private void copy(int offset, @NotNull byte[] dest, int destOffset) {
+        for (int i = 0; i != hashLength; i++) {
+            dest[destOffset + i] = buffer.get(offset + i);
+        }
+    }
+
+    @NotNull
+    private ByteBuffer slice(int offset, int length) {
+        val slice = buffer.duplicate();
+        slice.limit(offset + length).position(offset);
+        return slice.slice();
+    }
+}
@@ -0,0 +1,62 @@
+package model.proof.codec;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+// Reusable read-only view over an encoded non-membership proof, the bound views are reused too
+public final class NonMembershipProofView {
+    private final MembershipProofView leftBound = new MembershipProofView();
+    private final MembershipProofView rightBound = new MembershipProofView();
+    private boolean hasLeftBound;
+    private boolean hasRightBound;
+    private int end;
+
+    @NotNull
+    public NonMembershipProofView wrap(@NotNull ByteBuffer buffer, int offset) {
+        if (ProofCodec.readHeader(buffer, offset) != ProofCodec.NON_MEMBERSHIP) {
+            throw new IllegalArgumentException("Not a non-membership proof");
+        }
+        int hashLength = buffer.getShort(offset + 2) & 0xFFFF;
+        int bounds = buffer.get(offset + ProofCodec.HEADER_SIZE);
+        hasLeftBound = (bounds & 1) != 0;
+        hasRightBound = (bounds & 2) != 0;
+
+        end = offset + ProofCodec.HEADER_SIZE + 1;
+        if (hasLeftBound) {
+            end = leftBound.wrapRecord(buffer, end, hashLength).end();
+        }
+        if (hasRightBound) {
+            end = rightBound.wrapRecord(buffer, end, hashLength).end();
+        }
+        return this;
+    }
+
+    public int end() {
+        return end;
+    }
+
+    public boolean hasLeftBound() {
+        return hasLeftBound;
+    }
+
+    public boolean hasRightBound() {
+        return hasRightBound;
+    }
+
+    @NotNull
+    public MembershipProofView leftBound() {
+        if (!hasLeftBound) {
+            throw new IllegalStateException("No left bound");
+        }
+        return leftBound;
+    }
+
+    @NotNull
+    public MembershipProofView rightBound() {
+        if (!hasRightBound) {
+            throw new IllegalStateException("No right bound");
+        }
+        return rightBound;
+    }
+}
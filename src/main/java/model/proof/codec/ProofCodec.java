@@ -0,0 +1,232 @@
+package model.proof.codec;
+
+import lombok.val;
+import model.node.LeafNode;
+import model.proof.MembershipProof;
+import model.proof.NonMembershipProof;
+import model.proof.Proof;
+import model.utils.Direction;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.function.Function;
+
+// Binary proof format, all numbers big-endian:
+//   header:         [version: u8][kind: u8][hashLength: u16]
+//   membership:     header + record
+//   non-membership: header + [bounds: u8, bit 0 - left, bit 1 - right] + left record? + right record?
+//   record:         [keyLength: u16][key][valueLength: i32][value][leaf hash]
+//                   [depth: u16][directions: ceil(depth / 8) bytes][hashes: depth * hashLength]
+// Entries are stored leaf-first as in MembershipProof, bit i of the direction bitmap
+// (bit i % 8 of byte i / 8, low bit first) is set when the sibling of entry i is on the right.
+public final class ProofCodec<V> {
+    public static final byte VERSION = 1;
+    public static final byte MEMBERSHIP = 0;
+    public static final byte NON_MEMBERSHIP = 1;
+    static final int HEADER_SIZE = 4;
+
+    private final int hashLength;
+    @NotNull private final Function<V, byte[]> valueEncoder;
+    @NotNull private final Function<byte[], V> valueDecoder;
+
+    public ProofCodec(int hashLength, @NotNull Function<V, byte[]> valueEncoder, @NotNull Function<byte[], V> valueDecoder) {
+        if (hashLength <= 0 || hashLength > 0xFFFF) {
+            throw new IllegalArgumentException("Bad hash length: " + hashLength);
+        }
+        this.hashLength = hashLength;
+        this.valueEncoder = valueEncoder;
+        this.valueDecoder = valueDecoder;
+    }
+
+    public int getHashLength() {
+        return hashLength;
+    }
+
+    @NotNull
+    public ByteBuffer encode(@NotNull Proof<V, byte[]> proof) {
+        val encoder = new Encoder(proof);
+        val buffer = ByteBuffer.allocate(encoder.size());
+        encoder.writeTo(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    // Writes at the buffer position and advances it, BufferOverflowException if it does not fit
+    public void encode(@NotNull Proof<V, byte[]> proof, @NotNull ByteBuffer buffer) {
+        new Encoder(proof).writeTo(buffer);
+    }
+
+    public void encode(@NotNull Proof<V, byte[]> proof, @NotNull WritableByteChannel channel) throws IOException {
+        val buffer = encode(proof);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    public int encodedSize(@NotNull Proof<V, byte[]> proof) {
+        return new Encoder(proof).size();
+    }
+
+    // Materializes a proof from the buffer position and advances it past the proof
+    @NotNull
+    public Proof<V, byte[]> decode(@NotNull ByteBuffer buffer) {
+        final Proof<V, byte[]> proof;
+        if (kind(buffer, buffer.position()) == MEMBERSHIP) {
+            val view = new MembershipProofView().wrap(buffer, buffer.position());
+            proof = toProof(view);
+            buffer.position(view.end());
+        } else {
+            val view = new NonMembershipProofView().wrap(buffer, buffer.position());
+            proof = new NonMembershipProof<>(
+                    view.hasLeftBound() ? toProof(view.leftBound()) : null,
+                    view.hasRightBound() ? toProof(view.rightBound()) : null);
+            buffer.position(view.end());
+        }
+        return proof;
+    }
+
+    // Kind of the proof starting at the offset, checks the header against this codec
+    public byte kind(@NotNull ByteBuffer buffer, int offset) {
+        val kind = readHeader(buffer, offset);
+        val length = buffer.getShort(offset + 2) & 0xFFFF;
+        if (length != hashLength) {
+            throw new IllegalArgumentException("Expected hash length " + hashLength + ", got " + length);
+        }
+        return kind;
+    }
+
+    static byte readHeader(@NotNull ByteBuffer buffer, int offset) {
+        val version = buffer.get(offset);
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported proof version: " + version);
+        }
+        val kind = buffer.get(offset + 1);
+        if (kind != MEMBERSHIP && kind != NON_MEMBERSHIP) {
+            throw new IllegalArgumentException("Unknown proof kind: " + kind);
+        }
+        return kind;
+    }
+
+    @NotNull
+    private MembershipProof<V, byte[]> toProof(@NotNull MembershipProofView view) {
+        val value = new byte[view.valueLength()];
+        view.value().get(value);
+        val leafHash = new byte[hashLength];
+        view.copyLeafHash(leafHash, 0);
+
+        val entries = new ArrayList<MembershipProof.Entry<byte[]>>(view.depth());
+        for (int i = 0; i != view.depth(); i++) {
+            val hash = new byte[hashLength];
+            view.copyHash(i, hash, 0);
+            entries.add(new MembershipProof.Entry<>(hash, view.direction(i)));
+        }
+        return new MembershipProof<>(new LeafNode<>(view.key(), valueDecoder.apply(value), leafHash), entries);
+    }
+
+    // Serializes the values once and remembers them between sizing and writing
+    private final class Encoder {
+        @NotNull final Proof<V, byte[]> proof;
+        @Nullable byte[] leftValue;
+        @Nullable byte[] rightValue;
+        long size = HEADER_SIZE;
+
+        Encoder(@NotNull Proof<V, byte[]> proof) {
+            this.proof = proof;
+            if (proof instanceof MembershipProof) {
+                leftValue = valueEncoder.apply(((MembershipProof<V, byte[]>) proof).getNode().getValue());
+                size += recordSize((MembershipProof<V, byte[]>) proof, leftValue);
+            } else if (proof instanceof NonMembershipProof) {
+                val leftBound = ((NonMembershipProof<V, byte[]>) proof).getLeftBoundProof();
+                val rightBound = ((NonMembershipProof<V, byte[]>) proof).getRightBoundProof();
+                size++;
+                if (leftBound != null) {
+                    leftValue = valueEncoder.apply(leftBound.getNode().getValue());
+                    size += recordSize(leftBound, leftValue);
+                }
+                if (rightBound != null) {
+                    rightValue = valueEncoder.apply(rightBound.getNode().getValue());
+                    size += recordSize(rightBound, rightValue);
+                }
+            } else {
+                throw new IllegalArgumentException("Unsupported proof: " + proof.getClass().getSimpleName());
+            }
+        }
+
+        int size() {
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Proof is too large to encode: " + size + " bytes");
+            }
+            return (int) size;
+        }
+
+        void writeTo(@NotNull ByteBuffer buffer) {
+            buffer.put(VERSION);
+            if (proof instanceof MembershipProof) {
+                buffer.put(MEMBERSHIP).putShort((short) hashLength);
+                //noinspection ConstantConditions
+                writeRecord(buffer, (MembershipProof<V, byte[]>) proof, leftValue);
+            } else {
+                val leftBound = ((NonMembershipProof<V, byte[]>) proof).getLeftBoundProof();
+                val rightBound = ((NonMembershipProof<V, byte[]>) proof).getRightBoundProof();
+                buffer.put(NON_MEMBERSHIP).putShort((short) hashLength);
+                buffer.put((byte) ((leftBound != null ? 1 : 0) | (rightBound != null ? 2 : 0)));
+                if (leftBound != null) {
+                    //noinspection ConstantConditions
+                    writeRecord(buffer, leftBound, leftValue);
+                }
+                if (rightBound != null) {
+                    //noinspection ConstantConditions
+                    writeRecord(buffer, rightBound, rightValue);
+                }
+            }
+        }
+
+        private long recordSize(@NotNull MembershipProof<V, byte[]> proof, @NotNull byte[] value) {
+            val key = proof.getNode().getKey();
+            if (key.signum() < 0) {
+                throw new IllegalArgumentException("Negative key: " + key);
+            }
+            val keyLength = key.toByteArray().length;
+            val depth = proof.getProof().size();
+            if (keyLength > 0xFFFF || depth > 0xFFFF) {
+                throw new IllegalArgumentException("Proof is too large to encode");
+            }
+            return (long) Short.BYTES + keyLength + Integer.BYTES + value.length + hashLength
+                    + Short.BYTES + (depth + 7) / 8 + (long) depth * hashLength;
+        }
+
+        private void writeRecord(@NotNull ByteBuffer buffer, @NotNull MembershipProof<V, byte[]> proof, @NotNull byte[] value) {
+            val key = proof.getNode().getKey().toByteArray();
+            buffer.putShort((short) key.length).put(key);
+            buffer.putInt(value.length).put(value);
+            putHash(buffer, proof.getNode().getHash());
+
+            val entries = proof.getProof();
+            buffer.putShort((short) entries.size());
+            for (int from = 0; from < entries.size(); from += 8) {
+                int bits = 0;
+                for (int i = from; i != Math.min(from + 8, entries.size()); i++) {
+                    if (entries.get(i).getDirection() == Direction.RIGHT) {
+                        bits |= 1 << (i - from);
+                    }
+                }
+                buffer.put((byte) bits);
+            }
+            for (val entry : entries) {
+                putHash(buffer, entry.getHash());
+            }
+        }
+
+        private void putHash(@NotNull ByteBuffer buffer, @NotNull byte[] hash) {
+            if (hash.length != hashLength) {
+                throw new IllegalArgumentException("Expected hash length " + hashLength + ", got " + hash.length);
+            }
+            buffer.put(hash);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package model.store;
+
+import lombok.val;
+import lombok.var;
+import model.utils.UInt256;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Decoded nodes of a SegmentStore, bounded by an estimate of their heap size. Nodes in the top
+// pinnedLevels levels are pinned within a reserved quarter of maxBytes and never evicted. When the
+// reserve is full a node is pinned only by unpinning a deeper one; writes move nodes down, so the
+// level is checked again on every access. The other nodes are evicted with CLOCK: a node referenced
+// since the hand last passed gets a second chance. The cache never holds more than maxBytes.
+// Not thread-safe, it belongs to a single tree.
+public final class NodeCache {
+    public static final long DEFAULT_MAX_BYTES = 1 << 26;
+    public static final int DEFAULT_PINNED_LEVELS = 10;
+
+    private final SegmentStore store;
+    private final long maxBytes;
+    private final long maxPinnedBytes;
+    private final int pinnedLevels;
+    private final Map<Long, StoredNode> nodes = new HashMap<>();
+    private final ArrayList<StoredNode> clock = new ArrayList<>();
+    // Pinned nodes by level
+    private final List<ArrayList<StoredNode>> pinned = new ArrayList<>();
+
+    private int hand;
+    private long bytes;
+    private long pinnedBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public NodeCache(@NotNull SegmentStore store, long maxBytes, int pinnedLevels) {
+        this.store = store;
+        this.maxBytes = maxBytes;
+        this.maxPinnedBytes = maxBytes / 4;
+        // A path has at most one inner node per key bit
+        this.pinnedLevels = Math.min(pinnedLevels, UInt256.BITS + 1);
+        for (var i = 0; i < this.pinnedLevels; i++) {
+            pinned.add(new ArrayList<>());
+        }
+    }
+
+    // depth is the distance from the root, it decides whether the node is pinned
+    @NotNull
+    public StoredNode get(long address, int depth) {
+        var node = nodes.get(address);
+        if (node != null) {
+            hits++;
+            node.referenced = true;
+            if (node.pinnedDepth != depth && (node.pinnedDepth >= 0 || depth < pinnedLevels)) {
+                if (node.pinnedDepth >= 0) {
+                    unpin(node);
+                } else {
+                    removeFromClock(node);
+                }
+                if (!pin(node, depth)) {
+                    addToClock(node);
+                }
+            }
+            return node;
+        }
+
+        misses++;
+        node = store.read(address);
+        put(node, depth);
+        return node;
+    }
+
+    // Caches a node that was just written, so that the next traversal does not read it back
+    public void put(@NotNull StoredNode node, int depth) {
+        if (nodes.putIfAbsent(node.getAddress(), node) != null) return;
+
+        if (!pin(node, depth)) {
+            addToClock(node);
+        }
+        bytes += node.size();
+        evict();
+    }
+
+    // Drops a node that is no longer reachable
+    public void invalidate(long address) {
+        val node = nodes.remove(address);
+        if (node == null) return;
+
+        bytes -= node.size();
+        if (node.pinnedDepth >= 0) {
+            unpin(node);
+        } else {
+            removeFromClock(node);
+        }
+    }
+
+    public void clear() {
+        nodes.clear();
+        clock.clear();
+        for (val level : pinned) {
+            level.clear();
+        }
+        hand = 0;
+        bytes = 0;
+        pinnedBytes = 0;
+    }
+
+    public long hits() {
+        return hits;
+    }
+
+    public long misses() {
+        return misses;
+    }
+
+    public long evictions() {
+        return evictions;
+    }
+
+    public long sizeInBytes() {
+        return bytes;
+    }
+
+    public long pinnedBytes() {
+        return pinnedBytes;
+    }
+
+    public int nodeCount() {
+        return nodes.size();
+    }
+
+    // Makes room by moving the deepest pinned nodes below depth to the clock, fails when they
+    // do not free enough
+    private boolean pin(@NotNull StoredNode node, int depth) {
+        if (depth >= pinnedLevels || node.size() > maxPinnedBytes) return false;
+
+        var level = pinnedLevels - 1;
+        while (pinnedBytes + node.size() > maxPinnedBytes) {
+            while (level > depth && pinned.get(level).isEmpty()) level--;
+            if (level == depth) return false;
+
+            val deeper = pinned.get(level);
+            val demoted = deeper.get(deeper.size() - 1);
+            unpin(demoted);
+            addToClock(demoted);
+        }
+
+        val nodesAtDepth = pinned.get(depth);
+        node.pinnedDepth = depth;
+        node.slot = nodesAtDepth.size();
+        nodesAtDepth.add(node);
+        pinnedBytes += node.size();
+        return true;
+    }
+
+    private void unpin(@NotNull StoredNode node) {
+        remove(pinned.get(node.pinnedDepth), node);
+        node.pinnedDepth = -1;
+        pinnedBytes -= node.size();
+    }
+
+    // Pinned nodes take at most a quarter of maxBytes, so the clock alone can always free enough.
+    // Every node on it gets at most one second chance, the hand passes each node at most twice.
+    private void evict() {
+        while (bytes > maxBytes && !clock.isEmpty()) {
+            if (hand >= clock.size()) {
+                hand = 0;
+            }
+            val node = clock.get(hand);
+            if (node.referenced) {
+                node.referenced = false;
+                hand++;
+            } else {
+                nodes.remove(node.getAddress());
+                bytes -= node.size();
+                removeFromClock(node);
+                evictions++;
+            }
+        }
+    }
+
+    private void addToClock(@NotNull StoredNode node) {
+        node.slot = clock.size();
+        clock.add(node);
+    }
+
+    private void removeFromClock(@NotNull StoredNode node) {
+        remove(clock, node);
+    }
+
+    // Moves the last node into the slot of the removed one
+    private static void remove(@NotNull ArrayList<StoredNode> list, @NotNull StoredNode node) {
+        val last = list.remove(list.size() - 1);
+        if (last != node) {
+            last.slot = node.slot;
+            list.set(node.slot, last);
+        }
+        node.slot = -1;
+    }
+}
@@ -0,0 +1,368 @@
+package model.store;
+
+import lombok.val;
+import lombok.var;
+import model.utils.UInt256;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+import static java.nio.file.StandardOpenOption.*;
+
+// Append-only node records in memory-mapped segment files of a directory, addressed by
+// segment << 32 | offset. Records never change once written, a node is identified by its hash
+// and refers to its children by address:
+//   leaf:  [0: u8][key: 4 longs][hash][valueLength: i32][value]
+//   inner: [1: u8][key: 4 longs][hash][left: i64][right: i64]
+// The root address and the append position live in a small root file that is replaced
+// atomically by commit(). Segments are mapped on first access, so opening reads only that file.
+public final class SegmentStore implements AutoCloseable {
+    public static final long NULL = -1;
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 26;
+
+    private static final int MAGIC = 0x43534d54;
+    private static final int VERSION = 1;
+    private static final String ROOT_FILE = "root";
+    private static final byte LEAF = 0;
+    private static final byte INNER = 1;
+    private static final int KEY_OFFSET = 1;
+    private static final int HASH_OFFSET = KEY_OFFSET + UInt256.BITS / Byte.SIZE;
+
+    private final Path directory;
+    private final int hashLength;
+    private final int segmentSize;
+    private final int payloadOffset;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private final BitSet unflushed = new BitSet();
+
+    private long root;
+    private int appendSegment;
+    private int appendOffset;
+
+    private SegmentStore(@NotNull Path directory, int hashLength, int segmentSize) {
+        this.directory = directory;
+        this.hashLength = hashLength;
+        this.segmentSize = segmentSize;
+        this.payloadOffset = HASH_OFFSET + hashLength;
+    }
+
+    // Creates the directory and an empty store if there is no root file yet
+    @NotNull
+    public static SegmentStore open(@NotNull Path directory, int hashLength, int segmentSize) throws IOException {
+        if (hashLength <= 0) {
+            throw new IllegalArgumentException("Hash length must be positive: " + hashLength);
+        }
+        Files.createDirectories(directory);
+        val store = new SegmentStore(directory, hashLength, segmentSize);
+        val rootFile = directory.resolve(ROOT_FILE);
+        if (Files.exists(rootFile)) {
+            store.readRoot(rootFile);
+        } else {
+            store.root = NULL;
+        }
+        return store;
+    }
+
+    public int getHashLength() {
+        return hashLength;
+    }
+
+    // Root address of the last commit
+    public long root() {
+        return root;
+    }
+
+    // Makes every record written so far durable, then atomically points the store at root
+    public void commit(long root) throws IOException {
+        for (int segment = unflushed.nextSetBit(0); segment >= 0; segment = unflushed.nextSetBit(segment + 1)) {
+            val buffer = segments.get(segment);
+            if (buffer != null) {
+                buffer.force();
+            }
+        }
+        unflushed.clear();
+
+        val content = ByteBuffer.allocate(4 * Integer.BYTES + Long.BYTES + 2 * Integer.BYTES)
+                .putInt(MAGIC)
+                .putInt(VERSION)
+                .putInt(hashLength)
+                .putInt(segmentSize)
+                .putLong(root)
+                .putInt(appendSegment)
+                .putInt(appendOffset);
+        content.flip();
+
+        val tmp = directory.resolve(ROOT_FILE + ".tmp");
+        try (val channel = FileChannel.open(tmp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, directory.resolve(ROOT_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        this.root = root;
+    }
+
+    public long appendLeaf(@NotNull UInt256 key, @NotNull byte[] hash, @NotNull byte[] value) {
+        val address = reserve(payloadOffset + Integer.BYTES + value.length);
+        val buffer = map(segment(address), true);
+        val offset = offset(address);
+        buffer.put(offset, LEAF);
+        for (int i = 0; i != 4; i++) {
+            buffer.putLong(offset + KEY_OFFSET + i * Long.BYTES, key.getWord(i));
+        }
+        putHash(buffer, offset, hash);
+        buffer.putInt(offset + payloadOffset, value.length);
+        for (int i = 0; i != value.length; i++) {
+            buffer.put(offset + payloadOffset + Integer.BYTES + i, value[i]);
+        }
+        return address;
+    }
+
+    // The key of an inner node is the key of its right child
+    public long appendInner(long left, long right, @NotNull byte[] hash) {
+        val address = reserve(payloadOffset + 2 * Long.BYTES);
+        val buffer = map(segment(address), true);
+        val offset = offset(address);
+        val rightBuffer = buffer(right);
+        val rightOffset = offset(right);
+        buffer.put(offset, INNER);
+        for (int i = 0; i != 4; i++) {
+            buffer.putLong(offset + KEY_OFFSET + i * Long.BYTES, rightBuffer.getLong(rightOffset + KEY_OFFSET + i * Long.BYTES));
+        }
+        putHash(buffer, offset, hash);
+        buffer.putLong(offset + payloadOffset, left);
+        buffer.putLong(offset + payloadOffset + Long.BYTES, right);
+        return address;
+    }
+
+    @NotNull
+    public StoredNode read(long address) {
+        return isLeaf(address)
+                ? new StoredNode(address, key(address), hash(address), NULL, NULL, value(address))
+                : new StoredNode(address, key(address), hash(address), left(address), right(address), null);
+    }
+
+    public boolean isLeaf(long address) {
+        return buffer(address).get(offset(address)) == LEAF;
+    }
+
+    public long left(long address) {
+        return buffer(address).getLong(offset(address) + payloadOffset);
+    }
+
+    public long right(long address) {
+        return buffer(address).getLong(offset(address) + payloadOffset + Long.BYTES);
+    }
+
+    @NotNull
+    public UInt256 key(long address) {
+        val buffer = buffer(address);
+        val offset = offset(address) + KEY_OFFSET;
+        return new UInt256(
+                buffer.getLong(offset),
+                buffer.getLong(offset + Long.BYTES),
+                buffer.getLong(offset + 2 * Long.BYTES),
+                buffer.getLong(offset + 3 * Long.BYTES)
+        );
+    }
+
+    @NotNull
+    public byte[] hash(long address) {
+        val hash = new byte[hashLength];
+        copyHash(address, hash, 0);
+        return hash;
+    }
+
+    public void copyHash(long address, @NotNull byte[] dest, int destOffset) {
+        val buffer = buffer(address);
+        val offset = offset(address) + HASH_OFFSET;
+        for (int i = 0; i != hashLength; i++) {
+            dest[destOffset + i] = buffer.get(offset + i);
+        }
+    }
+
+    @NotNull
+    public byte[] value(long address) {
+        val buffer = buffer(address);
+        val offset = offset(address) + payloadOffset;
+        val value = new byte[buffer.getInt(offset)];
+        for (int i = 0; i != value.length; i++) {
+            value[i] = buffer.get(offset + Integer.BYTES + i);
+        }
+        return value;
+    }
+
+    // Same value as UInt256.distance(key(address), key)
+    public int distance(long address, @NotNull UInt256 key) {
+        val buffer = buffer(address);
+        val offset = offset(address) + KEY_OFFSET;
+        for (int i = 0; i != 4; i++) {
+            val x = buffer.getLong(offset + i * Long.BYTES) ^ key.getWord(i);
+            if (x != 0) {
+                return (4 - i) * Long.SIZE - Long.numberOfLeadingZeros(x);
+            }
+        }
+        return 0;
+    }
+
+    public int compareKey(long address, @NotNull UInt256 key) {
+        val buffer = buffer(address);
+        val offset = offset(address) + KEY_OFFSET;
+        for (int i = 0; i != 4; i++) {
+            val word = buffer.getLong(offset + i * Long.BYTES);
+            if (word != key.getWord(i)) {
+                return Long.compareUnsigned(word, key.getWord(i));
+            }
+        }
+        return 0;
+    }
+
+    // Segments in which nodes reachable from root take less than minLiveRatio of the space get
+    // their live nodes appended again, together with the ancestors that point to them. The new
+    // root is committed before those segments are deleted, so a crash leaves a consistent store.
+    public long compact(long root, double minLiveRatio) throws IOException {
+        val live = new long[appendSegment + 1];
+        if (root != NULL) {
+            val stack = new ArrayDeque<Long>();
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                long node = stack.pop();
+                live[segment(node)] += recordSize(node);
+                if (!isLeaf(node)) {
+                    stack.push(left(node));
+                    stack.push(right(node));
+                }
+            }
+        }
+
+        val victims = new boolean[appendSegment + 1];
+        var found = false;
+        for (int segment = 0; segment != appendSegment; segment++) {
+            if (Files.exists(segmentPath(segment)) && live[segment] < minLiveRatio * segmentSize) {
+                victims[segment] = true;
+                found = true;
+            }
+        }
+        if (!found) return root;
+
+        val newRoot = root == NULL ? NULL : relocate(root, victims);
+        commit(newRoot);
+        for (int segment = 0; segment != victims.length; segment++) {
+            if (victims[segment]) {
+                segments.set(segment, null);
+                Files.deleteIfExists(segmentPath(segment));
+            }
+        }
+        return newRoot;
+    }
+
+    @Override
+    public void close() {
+        segments.clear();
+        unflushed.clear();
+    }
+
+    private long relocate(long node, @NotNull boolean[] victims) {
+        if (isLeaf(node)) {
+            return victims[segment(node)] ? appendLeaf(key(node), hash(node), value(node)) : node;
+        }
+
+        val left = left(node);
+        val right = right(node);
+        val newLeft = relocate(left, victims);
+        val newRight = relocate(right, victims);
+        return newLeft != left || newRight != right || victims[segment(node)]
+                ? appendInner(newLeft, newRight, hash(node))
+                : node;
+    }
+
+    private int recordSize(long address) {
+        return isLeaf(address)
+                ? payloadOffset + Integer.BYTES + buffer(address).getInt(offset(address) + payloadOffset)
+                : payloadOffset + 2 * Long.BYTES;
+    }
+
+    private long reserve(int size) {
+        if (size > segmentSize) {
+            throw new IllegalArgumentException("Record of " + size + " bytes does not fit in a segment");
+        }
+        if (appendOffset + size > segmentSize) {
+            appendSegment++;
+            appendOffset = 0;
+        }
+        val address = (long) appendSegment << 32 | appendOffset;
+        appendOffset += size;
+        unflushed.set(appendSegment);
+        return address;
+    }
+
+    private void readRoot(@NotNull Path rootFile) throws IOException {
+        val content = ByteBuffer.wrap(Files.readAllBytes(rootFile));
+        if (content.getInt() != MAGIC || content.getInt() != VERSION) {
+            throw new IOException("Not a node store root file: " + rootFile);
+        }
+        if (content.getInt() != hashLength || content.getInt() != segmentSize) {
+            throw new IOException("Store at " + directory + " has a different hash length or segment size");
+        }
+        root = content.getLong();
+        appendSegment = content.getInt();
+        appendOffset = content.getInt();
+    }
+
+    @NotNull
+    private MappedByteBuffer buffer(long address) {
+        return map(segment(address), false);
+    }
+
+    // Only appends create segment files, a read from a missing segment is a dangling address
+    @NotNull
+    private MappedByteBuffer map(int segment, boolean create) {
+        while (segments.size() <= segment) {
+            segments.add(null);
+        }
+        var buffer = segments.get(segment);
+        if (buffer == null) {
+            val path = segmentPath(segment);
+            try (val channel = create
+                    ? FileChannel.open(path, CREATE, READ, WRITE)
+                    : FileChannel.open(path, READ, WRITE)) {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            } catch (NoSuchFileException e) {
+                throw new UncheckedIOException("Segment " + segment + " of the store at " + directory + " is missing", e);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            segments.set(segment, buffer);
+        }
+        return buffer;
+    }
+
+    @NotNull
+    private Path segmentPath(int segment) {
+        return directory.resolve(String.format("segment-%08d", segment));
+    }
+
+    private void putHash(@NotNull ByteBuffer buffer, int offset, @NotNull byte[] hash) {
+        if (hash.length != hashLength) {
+            throw new IllegalArgumentException("Expected " + hashLength + " byte hash, got " + hash.length);
+        }
+        for (int i = 0; i != hashLength; i++) {
+            buffer.put(offset + HASH_OFFSET + i, hash[i]);
+        }
+    }
+
+    private static int segment(long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+}
@@ -0,0 +1,45 @@
+package model.store;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import model.utils.UInt256;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+// A node record of a SegmentStore decoded on the heap. Leaves have no children and carry a value.
+// The arrays are shared with the cache and must not be modified.
+@Getter
+public final class StoredNode {
+    // Rough heap footprint of the object, its key and the array headers
+    private static final int OVERHEAD = 160;
+
+    private final long address;
+    @NotNull private final UInt256 key;
+    @NotNull private final byte[] hash;
+    private final long left;
+    private final long right;
+    @Nullable private final byte[] value;
+
+    @Getter(AccessLevel.NONE) boolean referenced;
+    // Level the node is pinned at, -1 when it is on the clock
+    @Getter(AccessLevel.NONE) int pinnedDepth = -1;
+    // Index in the clock or in the list of its pinned level
+    @Getter(AccessLevel.NONE) int slot = -1;
+
+    public StoredNode(long address, @NotNull UInt256 key, @NotNull byte[] hash, long left, long right, @Nullable byte[] value) {
+        this.address = address;
+        this.key = key;
+        this.hash = hash;
+        this.left = left;
+        this.right = right;
+        this.value = value;
+    }
+
+    public boolean isLeaf() {
+        return left == SegmentStore.NULL;
+    }
+
+    int size() {
+        return OVERHEAD + hash.length + (value == null ? 0 : value.length);
+    }
+}
@@ -0,0 +1,98 @@
+package model.utils;
+
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+
+import java.math.BigInteger;
+
+// Hash functions over byte arrays for trees with byte[] hashes. Implementations must be safe to
+// call from any thread and write results into the caller's buffers instead of allocating them.
+public interface HashEngine {
+    int hashLength();
+
+    void hashLeaf(@NotNull byte[] value, int offset, int length, @NotNull byte[] out, int outOffset);
+
+    // Leaf hash committing to the key as well: the key bytes are fed with their length before the value
+    void hashKeyedLeaf(
+            @NotNull byte[] key,
+            int keyOffset,
+            int keyLength,
+            @NotNull byte[] value,
+            int offset,
+            int length,
+            @NotNull byte[] out,
+            int outOffset
+    );
+
+    // Same hash as for the BigInteger form of the unsigned key. The defaults copy its bytes into
+    // a small array, Sha256 feeds them to the digest directly.
+    default void hashKeyedLeaf(long key, @NotNull byte[] value, int offset, int length, @NotNull byte[] out, int outOffset) {
+        val keyBytes = new byte[Utils.byteArrayLength(key)];
+        for (int i = 0; i != keyBytes.length; i++) {
+            keyBytes[keyBytes.length - 1 - i] = Utils.getByte(key, i);
+        }
+        hashKeyedLeaf(keyBytes, 0, keyBytes.length, value, offset, length, out, outOffset);
+    }
+
+    default void hashKeyedLeaf(
+            @NotNull UInt256 key,
+            @NotNull byte[] value,
+            int offset,
+            int length,
+            @NotNull byte[] out,
+            int outOffset
+    ) {
+        val keyBytes = new byte[key.byteArrayLength()];
+        for (int i = 0; i != keyBytes.length; i++) {
+            keyBytes[keyBytes.length - 1 - i] = key.getByte(i);
+        }
+        hashKeyedLeaf(keyBytes, 0, keyBytes.length, value, offset, length, out, outOffset);
+    }
+
+    void hashNode(
+            @NotNull byte[] left,
+            int leftOffset,
+            @NotNull byte[] right,
+            int rightOffset,
+            @NotNull byte[] out,
+            int outOffset
+    );
+
+    // Hashes count pairs laid out as [left 0][right 0][left 1][right 1]... into [hash 0][hash 1]...
+    // out may be children itself. CSMTBuilder.fromSorted hashes inner nodes through it, engines
+    // with a multi-buffer or vectorized implementation override this.
+    default void hashPairs(@NotNull byte[] children, int count, @NotNull byte[] out) {
+        val length = hashLength();
+        for (int i = 0; i != count; i++) {
+            hashNode(children, 2 * i * length, children, (2 * i + 1) * length, out, i * length);
+        }
+    }
+
+    @NotNull
+    default byte[] hashLeaf(@NotNull byte[] value) {
+        val out = new byte[hashLength()];
+        hashLeaf(value, 0, value.length, out, 0);
+        return out;
+    }
+
+    // The key is taken as BigInteger.toByteArray, so a key hashes the same whatever type held it
+    @NotNull
+    default byte[] hashKeyedLeaf(@NotNull BigInteger key, @NotNull byte[] value) {
+        val keyBytes = key.toByteArray();
+        val out = new byte[hashLength()];
+        hashKeyedLeaf(keyBytes, 0, keyBytes.length, value, 0, value.length, out, 0);
+        return out;
+    }
+
+    @NotNull
+    default byte[] hashNode(@NotNull byte[] left, @NotNull byte[] right) {
+        val out = new byte[hashLength()];
+        hashNode(left, 0, right, 0, out, 0);
+        return out;
+    }
+
+    @NotNull
+    static HashEngine sha256() {
+        return Sha256.INSTANCE;
+    }
+}
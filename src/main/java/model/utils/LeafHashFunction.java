@@ -0,0 +1,87 @@
+package model.utils;
+
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+
+import java.math.BigInteger;
+import java.util.function.Function;
+
+// Hashes a leaf from its key and value. Functions that commit to the key let ProofVerifier trust
+// the key of a proven leaf; ofValue adapts a value-only hash, which leaves the key unproven.
+@FunctionalInterface
+public interface LeafHashFunction<V, H> {
+    @NotNull
+    H apply(@NotNull BigInteger key, @NotNull V value);
+
+    // Fixed-width trees hash their leaves through these. The defaults convert the key, ofValue
+    // and keyed skip the BigInteger.
+    @NotNull
+    default H apply(long key, @NotNull V value) {
+        return apply(Utils.toUnsignedBigInteger(key), value);
+    }
+
+    @NotNull
+    default H apply(@NotNull UInt256 key, @NotNull V value) {
+        return apply(key.toBigInteger(), value);
+    }
+
+    default boolean commitsKey() {
+        return true;
+    }
+
+    @NotNull
+    static <V, H> LeafHashFunction<V, H> ofValue(@NotNull Function<V, H> valueHashFunction) {
+        return new LeafHashFunction<V, H>() {
+            @NotNull
+            @Override
+            public H apply(@NotNull BigInteger key, @NotNull V value) {
+                return valueHashFunction.apply(value);
+            }
+
+            @NotNull
+            @Override
+            public H apply(long key, @NotNull V value) {
+                return valueHashFunction.apply(value);
+            }
+
+            @NotNull
+            @Override
+            public H apply(@NotNull UInt256 key, @NotNull V value) {
+                return valueHashFunction.apply(value);
+            }
+
+            @Override
+            public boolean commitsKey() {
+                return false;
+            }
+        };
+    }
+
+    // HashEngine.hashKeyedLeaf for every key type, fixed-width keys go to the engine as they are
+    @NotNull
+    static LeafHashFunction<byte[], byte[]> keyed(@NotNull HashEngine engine) {
+        return new LeafHashFunction<byte[], byte[]>() {
+            @NotNull
+            @Override
+            public byte[] apply(@NotNull BigInteger key, @NotNull byte[] value) {
+                return engine.hashKeyedLeaf(key, value);
+            }
+
+            @NotNull
+            @Override
+            public byte[] apply(long key, @NotNull byte[] value) {
+                val out = new byte[engine.hashLength()];
+                engine.hashKeyedLeaf(key, value, 0, value.length, out, 0);
+                return out;
+            }
+
+            @NotNull
+            @Override
+            public byte[] apply(@NotNull UInt256 key, @NotNull byte[] value) {
+                val out = new byte[engine.hashLength()];
+                engine.hashKeyedLeaf(key, value, 0, value.length, out, 0);
+                return out;
+            }
+        };
+    }
+}
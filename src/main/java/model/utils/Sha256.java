@@ -0,0 +1,160 @@
+package model.utils;
+
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+
+import java.math.BigInteger;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+// SHA-256 with a 0 byte before leaf values and 1 and 2 before the left and right child hashes.
+// Keyed leaves put the key, after its length as two bytes, between the 0 byte and the value.
+// Every thread hashes with its own MessageDigest, the prefixes and fixed-width keys are fed with update().
+public final class Sha256 implements HashEngine {
+    public static final Sha256 INSTANCE = new Sha256();
+    public static final int HASH_LENGTH = 32;
+
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte LEFT_PREFIX = 1;
+    private static final byte RIGHT_PREFIX = 2;
+
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private Sha256() {
+    }
+
+    // Value-only leaf hash for Base64 string values
+    @NotNull
+    public static byte[] leafHash(@NotNull String value) {
+        return INSTANCE.hashLeaf(Base64.getDecoder().decode(value));
+    }
+
+    // Leaf hash function of CSMTImpl.createDefault, values are Base64 strings
+    @NotNull
+    public static byte[] keyedLeafHash(@NotNull BigInteger key, @NotNull String value) {
+        return INSTANCE.hashKeyedLeaf(key, Base64.getDecoder().decode(value));
+    }
+
+    // Node hash function of CSMTImpl.createDefault
+    @NotNull
+    public static byte[] nodeHash(@NotNull byte[] left, @NotNull byte[] right) {
+        return INSTANCE.hashNode(left, right);
+    }
+
+    @Override
+    public int hashLength() {
+        return HASH_LENGTH;
+    }
+
+    @Override
+    public void hashLeaf(@NotNull byte[] value, int offset, int length, @NotNull byte[] out, int outOffset) {
+        val digest = DIGEST.get();
+        digest.update(LEAF_PREFIX);
+        digest.update(value, offset, length);
+        finish(digest, out, outOffset);
+    }
+
+    @Override
+    public void hashKeyedLeaf(
+            @NotNull byte[] key,
+            int keyOffset,
+            int keyLength,
+            @NotNull byte[] value,
+            int offset,
+            int length,
+            @NotNull byte[] out,
+            int outOffset
+    ) {
+        if (keyLength > 0xFFFF) {
+            throw new IllegalArgumentException("Key of " + keyLength + " bytes is too long");
+        }
+        val digest = startKeyedLeaf(keyLength);
+        digest.update(key, keyOffset, keyLength);
+        digest.update(value, offset, length);
+        finish(digest, out, outOffset);
+    }
+
+    @Override
+    public void hashKeyedLeaf(long key, @NotNull byte[] value, int offset, int length, @NotNull byte[] out, int outOffset) {
+        val keyLength = Utils.byteArrayLength(key);
+        val digest = startKeyedLeaf(keyLength);
+        for (int i = keyLength - 1; i >= 0; i--) {
+            digest.update(Utils.getByte(key, i));
+        }
+        digest.update(value, offset, length);
+        finish(digest, out, outOffset);
+    }
+
+    @Override
+    public void hashKeyedLeaf(
+            @NotNull UInt256 key,
+            @NotNull byte[] value,
+            int offset,
+            int length,
+            @NotNull byte[] out,
+            int outOffset
+    ) {
+        val keyLength = key.byteArrayLength();
+        val digest = startKeyedLeaf(keyLength);
+        for (int i = keyLength - 1; i >= 0; i--) {
+            digest.update(key.getByte(i));
+        }
+        digest.update(value, offset, length);
+        finish(digest, out, outOffset);
+    }
+
+    @Override
+    public void hashNode(
+            @NotNull byte[] left,
+            int leftOffset,
+            @NotNull byte[] right,
+            int rightOffset,
+            @NotNull byte[] out,
+            int outOffset
+    ) {
+        val digest = DIGEST.get();
+        digest.update(LEFT_PREFIX);
+        digest.update(left, leftOffset, HASH_LENGTH);
+        digest.update(RIGHT_PREFIX);
+        digest.update(right, rightOffset, HASH_LENGTH);
+        finish(digest, out, outOffset);
+    }
+
+    @Override
+    public void hashPairs(@NotNull byte[] children, int count, @NotNull byte[] out) {
+        val digest = DIGEST.get();
+        for (int i = 0; i != count; i++) {
+            digest.update(LEFT_PREFIX);
+            digest.update(children, 2 * i * HASH_LENGTH, HASH_LENGTH);
+            digest.update(RIGHT_PREFIX);
+            digest.update(children, (2 * i + 1) * HASH_LENGTH, HASH_LENGTH);
+            finish(digest, out, i * HASH_LENGTH);
+        }
+    }
+
+    @NotNull
+    private static MessageDigest startKeyedLeaf(int keyLength) {
+        val digest = DIGEST.get();
+        digest.update(LEAF_PREFIX);
+        digest.update((byte) (keyLength >>> 8));
+        digest.update((byte) keyLength);
+        return digest;
+    }
+
+    private static void finish(@NotNull MessageDigest digest, @NotNull byte[] out, int outOffset) {
+        try {
+            digest.digest(out, outOffset, HASH_LENGTH);
+        } catch (DigestException e) {
+            digest.reset();
+            throw new IllegalArgumentException("No room for a hash at " + outOffset + " of " + out.length, e);
+        }
+    }
+}
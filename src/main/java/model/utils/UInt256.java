@@ -0,0 +1,118 @@
+package model.utils;
+
+import lombok.EqualsAndHashCode;
+import org.jetbrains.annotations.NotNull;
+
+import java.math.BigInteger;
+
+// Unsigned 256-bit key, word0 holds the most significant bits
+@EqualsAndHashCode
+public final class UInt256 implements Comparable<UInt256> {
+    public static final int BITS = 256;
+
+    private final long word0;
+    private final long word1;
+    private final long word2;
+    private final long word3;
+
+    public UInt256(long word0, long word1, long word2, long word3) {
+        this.word0 = word0;
+        this.word1 = word1;
+        this.word2 = word2;
+        this.word3 = word3;
+    }
+
+    @NotNull
+    public static UInt256 valueOf(@NotNull BigInteger value) {
+        if (value.signum() < 0 || value.bitLength() > BITS) {
+            throw new IllegalArgumentException("Key is not an unsigned 256-bit value: " + value);
+        }
+        return new UInt256(
+                value.shiftRight(192).longValue(),
+                value.shiftRight(128).longValue(),
+                value.shiftRight(64).longValue(),
+                value.longValue()
+        );
+    }
+
+    @NotNull
+    public static UInt256 valueOf(@NotNull byte[] bytes) {
+        if (bytes.length != BITS / Byte.SIZE) {
+            throw new IllegalArgumentException("Expected " + BITS / Byte.SIZE + " bytes, got " + bytes.length);
+        }
+        return new UInt256(word(bytes, 0), word(bytes, 8), word(bytes, 16), word(bytes, 24));
+    }
+
+    private static long word(@NotNull byte[] bytes, int offset) {
+        long result = 0;
+        for (int i = offset; i != offset + Long.BYTES; i++) {
+            result = (result << Byte.SIZE) | (bytes[i] & 0xFF);
+        }
+        return result;
+    }
+
+    public long getWord(int index) {
+        switch (index) {
+            case 0: return word0;
+            case 1: return word1;
+            case 2: return word2;
+            case 3: return word3;
+            default: throw new IndexOutOfBoundsException("Word index: " + index);
+        }
+    }
+
+    public boolean testBit(int bit) {
+        return (getWord(3 - bit / Long.SIZE) & (1L << bit)) != 0;
+    }
+
+    public int bitLength() {
+        if (word0 != 0) return 4 * Long.SIZE - Long.numberOfLeadingZeros(word0);
+        if (word1 != 0) return 3 * Long.SIZE - Long.numberOfLeadingZeros(word1);
+        if (word2 != 0) return 2 * Long.SIZE - Long.numberOfLeadingZeros(word2);
+        return Long.SIZE - Long.numberOfLeadingZeros(word3);
+    }
+
+    // Length of toBigInteger().toByteArray(), the sign bit needs a leading zero byte
+    public int byteArrayLength() {
+        return bitLength() / Byte.SIZE + 1;
+    }
+
+    // Byte of toBigInteger().toByteArray() counted from the least significant one
+    public byte getByte(int index) {
+        if (index >= BITS / Byte.SIZE) return 0;
+        return (byte) (getWord(3 - index / Long.BYTES) >>> (index % Long.BYTES * Byte.SIZE));
+    }
+
+    @NotNull
+    public BigInteger toBigInteger() {
+        return Utils.toUnsignedBigInteger(word0).shiftLeft(192)
+                .or(Utils.toUnsignedBigInteger(word1).shiftLeft(128))
+                .or(Utils.toUnsignedBigInteger(word2).shiftLeft(64))
+                .or(Utils.toUnsignedBigInteger(word3));
+    }
+
+    // Same value as Utils.distance on the BigInteger form of both keys
+    public static int distance(@NotNull UInt256 key1, @NotNull UInt256 key2) {
+        long x = key1.word0 ^ key2.word0;
+        if (x != 0) return 4 * Long.SIZE - Long.numberOfLeadingZeros(x);
+        x = key1.word1 ^ key2.word1;
+        if (x != 0) return 3 * Long.SIZE - Long.numberOfLeadingZeros(x);
+        x = key1.word2 ^ key2.word2;
+        if (x != 0) return 2 * Long.SIZE - Long.numberOfLeadingZeros(x);
+        x = key1.word3 ^ key2.word3;
+        return Long.SIZE - Long.numberOfLeadingZeros(x);
+    }
+
+    @Override
+    public int compareTo(@NotNull UInt256 other) {
+        if (word0 != other.word0) return Long.compareUnsigned(word0, other.word0);
+        if (word1 != other.word1) return Long.compareUnsigned(word1, other.word1);
+        if (word2 != other.word2) return Long.compareUnsigned(word2, other.word2);
+        return Long.compareUnsigned(word3, other.word3);
+    }
+
+    @Override
+    public String toString() {
+        return toBigInteger().toString();
+    }
+}
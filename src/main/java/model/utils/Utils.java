@@ -15,6 +15,14 @@ public class Utils {
         return log2(key1.xor(key2));
     }
 
+    public static int distance(long key1, long key2) {
+        return Long.SIZE - Long.numberOfLeadingZeros(key1 ^ key2);
+    }
+
+    public static int distance(@NotNull UInt256 key1, @NotNull UInt256 key2) {
+        return UInt256.distance(key1, key2);
+    }
+
     private static int log2(@NotNull BigInteger x) {
         if (x.equals(BigInteger.ZERO)) {
             return 0;
@@ -22,6 +30,29 @@ public class Utils {
         return BigIntegerMath.log2(x, RoundingMode.FLOOR) + 1;
     }
 
+    public static long toUnsignedLong(@NotNull BigInteger key) {
+        if (key.signum() < 0 || key.bitLength() > Long.SIZE) {
+            throw new IllegalArgumentException("Key is not an unsigned 64-bit value: " + key);
+        }
+        return key.longValue();
+    }
+
+    @NotNull
+    public static BigInteger toUnsignedBigInteger(long key) {
+        val result = BigInteger.valueOf(key & Long.MAX_VALUE);
+        return key < 0 ? result.setBit(Long.SIZE - 1) : result;
+    }
+
+    // Length of toUnsignedBigInteger(key).toByteArray()
+    public static int byteArrayLength(long key) {
+        return (Long.SIZE - Long.numberOfLeadingZeros(key)) / Byte.SIZE + 1;
+    }
+
+    // Byte of toUnsignedBigInteger(key).toByteArray() counted from the least significant one
+    public static byte getByte(long key, int index) {
+        return index >= Long.BYTES ? 0 : (byte) (key >>> (index * Byte.SIZE));
+    }
+
     @NotNull
     public static byte[] concatenate(@NotNull byte[]... arrays) {
         var len = 0;
@@ -0,0 +1,264 @@
+package model.wal;
+
+import lombok.val;
+import lombok.var;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.*;
+
+// Mutation log in a preallocated file, all numbers big-endian:
+//   header: [magic: i32][generation: i64]
+//   record: [length: i32][crc32: i32][generation: i64][op: u8][keyLength: u16][key][valueLength: i32][value]
+// The CRC covers everything after it. Replay stops at the first record that is torn or belongs
+// to an older generation, so reset() only has to bump the generation in the header.
+// Appends are cheap positional writes; sync() makes them durable, and threads that call it
+// while another thread is forcing the file wait for that fsync or share the next one.
+public final class WriteAheadLog implements AutoCloseable {
+    public static final long DEFAULT_PREALLOCATION = 1 << 26;
+
+    private static final int MAGIC = 0x43534d57;
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES;
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+    private static final byte INSERT = 0;
+    private static final byte REMOVE = 1;
+    private static final int ZERO_CHUNK = 1 << 16;
+
+    public interface Visitor {
+        void insert(@NotNull BigInteger key, @NotNull byte[] value);
+
+        void remove(@NotNull BigInteger key);
+    }
+
+    private final FileChannel channel;
+    private final long preallocation;
+    private final Object lock = new Object();
+    private final CRC32 crc = new CRC32();
+
+    private long generation;
+    // Sum of the ends of the older generations: positions handed out never go back across reset()
+    private long base;
+    private long position;
+    private long allocated;
+    private long durable;
+    private boolean syncing;
+    private boolean grown;
+    private long syncCount;
+
+    private WriteAheadLog(@NotNull FileChannel channel, long preallocation) {
+        this.channel = channel;
+        this.preallocation = preallocation;
+    }
+
+    // Replays the records of the current generation into visitor and positions the log after them
+    @NotNull
+    public static WriteAheadLog open(@NotNull Path file, long preallocation, @NotNull Visitor visitor) throws IOException {
+        val log = new WriteAheadLog(FileChannel.open(file, CREATE, READ, WRITE), preallocation);
+        try {
+            log.allocated = log.channel.size();
+            if (log.allocated < HEADER_SIZE) {
+                log.writeHeader(1);
+            } else {
+                log.readHeader();
+            }
+            log.replay(visitor);
+            log.durable = log.position;
+        } catch (IOException | RuntimeException e) {
+            log.channel.close();
+            throw e;
+        }
+        return log;
+    }
+
+    // Returns the log position to pass to sync(), it keeps growing across reset()
+    public long appendInsert(@NotNull BigInteger key, @NotNull byte[] value) throws IOException {
+        return append(INSERT, key, value);
+    }
+
+    public long appendRemove(@NotNull BigInteger key) throws IOException {
+        return append(REMOVE, key, null);
+    }
+
+    // Returns once everything appended up to position is on disk
+    public void sync(long position) throws IOException {
+        while (true) {
+            final long target;
+            final boolean metadata;
+            synchronized (lock) {
+                while (syncing && durable < position) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for the log to sync", e);
+                    }
+                }
+                if (durable >= position) return;
+
+                syncing = true;
+                target = base + this.position;
+                metadata = grown;
+                grown = false;
+            }
+
+            var success = false;
+            try {
+                channel.force(metadata);
+                success = true;
+            } finally {
+                synchronized (lock) {
+                    syncing = false;
+                    if (success) {
+                        durable = Math.max(durable, target);
+                        syncCount++;
+                    } else {
+                        grown |= metadata;
+                    }
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    public void sync() throws IOException {
+        long position;
+        synchronized (lock) {
+            position = base + this.position;
+        }
+        sync(position);
+    }
+
+    // Drops every record, to be called once their effect is saved elsewhere (e.g. a checkpoint).
+    // Writers waiting to sync an older record return at once, as it no longer needs to be durable.
+    public void reset() throws IOException {
+        synchronized (lock) {
+            val end = base + position;
+            writeHeader(generation + 1);
+            channel.force(false);
+            base = end;
+            durable = base + position;
+            lock.notifyAll();
+        }
+    }
+
+    // Number of fsyncs so far, each of them may cover many appends
+    public long syncCount() {
+        synchronized (lock) {
+            return syncCount;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private long append(byte op, @NotNull BigInteger key, byte[] value) throws IOException {
+        val keyBytes = key.toByteArray();
+        if (keyBytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("Key is too large for the log: " + keyBytes.length + " bytes");
+        }
+        val payload = Long.BYTES + 1 + Short.BYTES + keyBytes.length + (value == null ? 0 : Integer.BYTES + value.length);
+        val record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload);
+        record.putInt(payload).putInt(0);
+
+        synchronized (lock) {
+            record.putLong(generation).put(op).putShort((short) keyBytes.length).put(keyBytes);
+            if (value != null) {
+                record.putInt(value.length).put(value);
+            }
+            crc.reset();
+            crc.update(record.array(), RECORD_HEADER_SIZE, payload);
+            record.putInt(Integer.BYTES, (int) crc.getValue());
+            record.flip();
+
+            ensureAllocated(position + record.remaining());
+            writeFully(record, position);
+            position += RECORD_HEADER_SIZE + payload;
+            return base + position;
+        }
+    }
+
+    private void replay(@NotNull Visitor visitor) throws IOException {
+        position = HEADER_SIZE;
+        val header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (position + RECORD_HEADER_SIZE <= allocated) {
+            header.clear();
+            readFully(header, position);
+            val length = header.getInt(0);
+            if (length < Long.BYTES + 1 + Short.BYTES || position + RECORD_HEADER_SIZE + length > allocated) return;
+
+            val payload = ByteBuffer.allocate(length);
+            readFully(payload, position + RECORD_HEADER_SIZE);
+            crc.reset();
+            crc.update(payload.array(), 0, length);
+            if ((int) crc.getValue() != header.getInt(Integer.BYTES) || payload.getLong(0) != generation) return;
+
+            payload.position(Long.BYTES);
+            val op = payload.get();
+            val key = new byte[payload.getShort() & 0xFFFF];
+            payload.get(key);
+            if (op == INSERT) {
+                val value = new byte[payload.getInt()];
+                payload.get(value);
+                visitor.insert(new BigInteger(key), value);
+            } else {
+                visitor.remove(new BigInteger(key));
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+    }
+
+    private void readHeader() throws IOException {
+        val header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header, 0);
+        if (header.getInt(0) != MAGIC) {
+            throw new IOException("Not a CSMT write-ahead log");
+        }
+        generation = header.getLong(Integer.BYTES);
+    }
+
+    private void writeHeader(long generation) throws IOException {
+        val header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putLong(generation);
+        header.flip();
+        ensureAllocated(HEADER_SIZE);
+        writeFully(header, 0);
+        this.generation = generation;
+        this.position = HEADER_SIZE;
+    }
+
+    // Extends the file with zeros ahead of the writes, so that syncing appends rarely changes its size
+    private void ensureAllocated(long end) throws IOException {
+        if (end <= allocated) return;
+
+        val newSize = Math.max(end, allocated + preallocation);
+        val zeros = ByteBuffer.allocate(ZERO_CHUNK);
+        for (long offset = allocated; offset < newSize; offset += ZERO_CHUNK) {
+            zeros.clear();
+            zeros.limit((int) Math.min(ZERO_CHUNK, newSize - offset));
+            writeFully(zeros, offset);
+        }
+        allocated = newSize;
+        grown = true;
+    }
+
+    private void writeFully(@NotNull ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset);
+        }
+    }
+
+    private void readFully(@NotNull ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            val read = channel.read(buffer, offset);
+            if (read < 0) throw new IOException("Unexpected end of log");
+            offset += read;
+        }
+    }
+}
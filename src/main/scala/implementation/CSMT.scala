@@ -59,9 +59,8 @@ object CSMT {
   def getProof(root: Node, k: BigInt): MembershipProof = {
     val result = getProofImpl(root, k)
     result match {
-      case ProofPairList((a, b) :: tail) =>
-        val (value, hash) :: proof = ((a, b) :: tail).reverse
-        ProofResult(k, value, hash, proof)
+      case ProofPairList(value, hash, proof) =>
+        ProofResult(k, value, hash, proof.reverse)
       case IntFlagNoProof(key, MINRS) => NoProofList(List(getProof(root, key.toString.toInt), null))
       case FlagIntNoProof(MAXLS, key) => NoProofList(List(null, getProof(root, key.toString.toInt)))
       case IntIntNoProof(key1, key2) => NoProofList(List(getProof(root, key1.toString.toInt), getProof(root, key2.toString.toInt)))
@@ -70,7 +69,7 @@ object CSMT {
   }
 
   def getProofImpl(root: Node, k: BigInt): MembershipProof = root match {
-    case Node(key, value, hash, null, null) => ProofPairList(List((null, null), (value, root.hash)))
+    case Node(key, value, hash, null, null) => ProofPairList(value, root.hash, Nil)
     case _ =>
       val left = root.left
       val right = root.right
@@ -90,7 +89,7 @@ object CSMT {
   def getProofImpl(sibling: Node, direction: String, root: Node, k: BigInt): MembershipProof = root match {
     case Node(key, value, hash, null, null) =>
       if (key == k)
-        ProofPairList(List((sibling.hash, reverse(direction)), (value, root.hash)))
+        ProofPairList(value, root.hash, List((sibling.hash, reverse(direction))))
       else
         nonMemberShipProof(k, root, direction, sibling)
     case _ =>
@@ -110,7 +109,7 @@ object CSMT {
   }
 
   def resultDirectionMatcher(result: MembershipProof, direction: String, sibling: Node, k: BigInt): MembershipProof = (result, direction) match {
-    case (ProofPairList((a, b) :: tail), _) => ProofPairList((sibling.hash, reverse(direction)) :: (a, b) :: tail)
+    case (ProofPairList(value, hash, list), _) => ProofPairList(value, hash, (sibling.hash, reverse(direction)) :: list)
     case (IntFlagNoProof(key, MINRS), "L") => IntIntNoProof(key, minInSubtree(sibling))
     case (FlagIntNoProof(MAXLS, key), "R") => IntIntNoProof(maxInSubtree(sibling), key)
     case _ => result
@@ -1,3 +1,3 @@
 package implementation.utils
 
-case class Node(key: BigInt, value: String, hash: String, left: Node, right: Node)
\ No newline at end of file
+case class Node(key: BigInt, value: String, hash: Array[Byte], left: Node, right: Node)
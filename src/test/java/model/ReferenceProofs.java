@@ -0,0 +1,211 @@
+package model;
+
+import lombok.*;
+import lombok.experimental.*;
+import model.node.*;
+import model.node.Node;
+import model.proof.*;
+import model.utils.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigInteger;
+import java.util.*;
+
+import static model.utils.Direction.*;
+import static model.utils.Utils.distance;
+
+// The getProof of CSMTSnapshot before it took a single descent: the bounds of a missing key are
+// found first, then each proof is collected by its own walk from the root. Kept as a reference.
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class ReferenceProofs<V, H> {
+    @Nullable Node<H> root;
+
+    public ReferenceProofs(@NotNull CSMTSnapshot<V, H> snapshot) {
+        this.root = snapshot.getRoot();
+    }
+
+    @NotNull
+    public Proof<V, H> getProof(@NotNull BigInteger key) {
+        if (root == null) {
+            return new NonMembershipProof<>(null, null);
+        }
+
+        if (root instanceof LeafNode) {
+            val rootProof = new MembershipProof<V, H>((LeafNode<V, H>) root, Collections.emptyList());
+
+            if (key.equals(root.getKey())) {
+                return rootProof;
+            }
+
+            return key.compareTo(root.getKey()) < 0
+                    ? new NonMembershipProof<>(null, rootProof)
+                    : new NonMembershipProof<>(rootProof, null);
+        } else {
+            val bounds = findBounds((InnerNode<H>) root, key);
+
+            val leftBound = bounds.getFirst();
+            val rightBound = bounds.getSecond();
+
+            val castedRoot = (InnerNode<H>) root;
+
+            if (leftBound != null && leftBound.equals(rightBound)) {
+                return findProof(castedRoot, leftBound);
+            }
+
+            if (leftBound != null && rightBound != null) {
+                return new NonMembershipProof<>(findProof(castedRoot, leftBound), findProof(castedRoot, rightBound));
+            }
+
+            if (leftBound == null) {
+                //noinspection ConstantConditions
+                return new NonMembershipProof<>(null, findProof(castedRoot, rightBound));
+            }
+
+            return new NonMembershipProof<>(findProof(castedRoot, leftBound), null);
+        }
+    }
+
+    @NotNull
+    private MembershipProof<V, H> findProof(@NotNull InnerNode<H> root, @NotNull BigInteger key) {
+        val left = root.getLeft();
+        val right = root.getRight();
+
+        val leftDistance = distance(key, left.getKey());
+        val rightDistance = distance(key, right.getKey());
+
+        val result = leftDistance < rightDistance
+                ? findProof(right, LEFT, left, key)
+                : findProof(left, RIGHT, right, key);
+
+        return new MembershipProof<>(result.getSecond(), result.getFirst());
+    }
+
+    @NotNull
+    private Pair<List<MembershipProof.Entry<H>>, LeafNode<V, H>> findProof(
+            @NotNull Node<H> sibling,
+            @NotNull Direction direction,
+            @NotNull Node<H> node,
+            @NotNull BigInteger key
+    ) {
+        if (node instanceof LeafNode) {
+            //noinspection ArraysAsListWithZeroOrOneArgument
+            return Pair.of(
+                    new ArrayList<>(Arrays.asList(
+                            new MembershipProof.Entry<>(
+                                    sibling.getHash(),
+                                    direction.reverse()
+                            )
+                    )),
+                    (LeafNode<V, H>) node
+            );
+        } else {
+            val left = ((InnerNode<H>) node).getLeft();
+            val right = ((InnerNode<H>) node).getRight();
+
+            val leftDistance = distance(key, left.getKey());
+            val rightDistance = distance(key, right.getKey());
+
+            val result = leftDistance < rightDistance
+                    ? findProof(right, LEFT, left, key)
+                    : findProof(left, RIGHT, right, key);
+
+
+            val proof = result.getFirst();
+            //noinspection ConstantConditions
+            proof.add(new MembershipProof.Entry<>(sibling.getHash(), direction.reverse()));
+            return Pair.of(proof, result.getSecond());
+        }
+    }
+
+    @NotNull
+    private Pair<BigInteger, BigInteger> findBounds(@NotNull InnerNode<H> root, @NotNull BigInteger key) {
+        val left = root.getLeft();
+        val right = root.getRight();
+
+        val leftDistance = distance(key, left.getKey());
+        val rightDistance = distance(key, right.getKey());
+
+        if (leftDistance == rightDistance) {
+            return key.compareTo(root.getKey()) > 0
+                    ? Pair.of(right.getKey(), null)
+                    : Pair.of(null, minInSubtree(left));
+        }
+
+        return leftDistance < rightDistance
+                ? findBounds(right, LEFT, left, key)
+                : findBounds(left, RIGHT, right, key);
+    }
+
+    @NotNull
+    private Pair<BigInteger, BigInteger> findBounds(
+            @NotNull Node<H> sibling,
+            @NotNull Direction direction,
+            @NotNull Node<H> node,
+            @NotNull BigInteger key
+    ) {
+        if (node instanceof LeafNode) {
+            return key.equals(node.getKey())
+                    ? Pair.of(key, key)
+                    : findBounds(key, node, direction, sibling);
+        } else {
+            val left = ((InnerNode<H>) node).getLeft();
+            val right = ((InnerNode<H>) node).getRight();
+
+            val leftDistance = distance(key, left.getKey());
+            val rightDistance = distance(key, right.getKey());
+
+            if (leftDistance == rightDistance) {
+                return findBounds(key, node, direction, sibling);
+            }
+
+            val result = leftDistance < rightDistance
+                    ? findBounds(right, LEFT, left, key)
+                    : findBounds(left, RIGHT, right, key);
+
+            if (result.getSecond() == null && direction == LEFT) {
+                return Pair.of(result.getFirst(), minInSubtree(sibling));
+            }
+
+            if (result.getFirst() == null && direction == RIGHT) {
+                return Pair.of(maxInSubtree(sibling), result.getSecond());
+            }
+
+            return result;
+        }
+    }
+
+    @NotNull
+    private Pair<BigInteger, BigInteger> findBounds(
+            @NotNull BigInteger key,
+            @NotNull Node<H> node,
+            @NotNull Direction direction,
+            @NotNull Node<H> sibling
+    ) {
+        if (key.compareTo(node.getKey()) > 0 && direction == LEFT) {
+            return Pair.of(node.getKey(), minInSubtree(sibling));
+        }
+        if (key.compareTo(node.getKey()) > 0 && direction == RIGHT) {
+            return Pair.of(node.getKey(), null);
+        }
+        if (key.compareTo(node.getKey()) <= 0 && direction == LEFT) {
+            return Pair.of(null, minInSubtree(node));
+        } else {
+            return Pair.of(maxInSubtree(sibling), minInSubtree(node));
+        }
+    }
+
+    @NotNull
+    private BigInteger maxInSubtree(@NotNull Node<H> node) {
+        return node.getKey();
+    }
+
+    @NotNull
+    private BigInteger minInSubtree(@NotNull Node<H> node) {
+        if (node instanceof LeafNode) {
+            return node.getKey();
+        } else {
+            return minInSubtree(((InnerNode<H>) node).getLeft());
+        }
+    }
+}
@@ -1,8 +1,19 @@
 package model;
 
+import model.proof.MembershipProof;
+import model.proof.NonMembershipProof;
+import model.proof.Proof;
+
+import java.util.Objects;
 import java.util.function.BinaryOperator;
 import java.util.function.Function;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
 public final class TestUtils {
 
     public static final Function<Integer, Integer> SIMPLE_LEAF_FUNC = (it) -> it;
@@ -25,4 +36,32 @@ public final class TestUtils {
     public static int log2(final int x) {
         return (int) Math.ceil(Math.log(x) / Math.log(2));
     }
+
+    public static <V> void assertProofEquals(Proof<V, byte[]> expected, Proof<V, byte[]> actual) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+        assertNotNull(actual);
+        assertEquals(expected.getClass(), actual.getClass());
+
+        if (expected instanceof NonMembershipProof) {
+            assertProofEquals(((NonMembershipProof<V, byte[]>) expected).getLeftBoundProof(),
+                    ((NonMembershipProof<V, byte[]>) actual).getLeftBoundProof());
+            assertProofEquals(((NonMembershipProof<V, byte[]>) expected).getRightBoundProof(),
+                    ((NonMembershipProof<V, byte[]>) actual).getRightBoundProof());
+            return;
+        }
+
+        MembershipProof<V, byte[]> expectedProof = (MembershipProof<V, byte[]>) expected;
+        MembershipProof<V, byte[]> actualProof = (MembershipProof<V, byte[]>) actual;
+        assertEquals(expectedProof.getNode().getKey(), actualProof.getNode().getKey());
+        assertTrue(Objects.deepEquals(expectedProof.getNode().getValue(), actualProof.getNode().getValue()));
+        assertArrayEquals(expectedProof.getNode().getHash(), actualProof.getNode().getHash());
+        assertEquals(expectedProof.getProof().size(), actualProof.getProof().size());
+        for (int i = 0; i != expectedProof.getProof().size(); i++) {
+            assertEquals(expectedProof.getProof().get(i).getDirection(), actualProof.getProof().get(i).getDirection());
+            assertArrayEquals(expectedProof.getProof().get(i).getHash(), actualProof.getProof().get(i).getHash());
+        }
+    }
 }
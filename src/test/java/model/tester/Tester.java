@@ -1,18 +1,71 @@
 package model.tester;
 
 import model.CSMT;
+import model.CSMTBuilder;
+import model.Checkpoint;
+import model.DurableCSMT;
 import model.CSMTImpl;
+import model.CSMTSnapshot;
+import model.ConcurrentCSMT;
+import model.LongCSMTImpl;
+import model.MappedCSMTImpl;
+import model.OffHeapCSMTImpl;
+import model.ReferenceProofs;
+import model.ShardedCSMT;
+import model.UInt256CSMTImpl;
+import model.VersionedCSMT;
+import model.feed.ChangeFeed;
+import model.feed.ChangeRecord;
+import model.feed.FeedFollower;
+import model.metrics.CSMTMetrics;
+import model.metrics.Histogram;
+import model.metrics.JmxMetricsRegistry;
 import model.TestUtils;
+import model.TreeDiff;
 import model.node.LeafNode;
 import model.proof.MembershipProof;
+import model.proof.MultiProof;
+import model.proof.NonMembershipProof;
 import model.proof.Proof;
+import model.proof.ProofVerifier;
+import model.proof.codec.MembershipProofView;
+import model.proof.codec.NonMembershipProofView;
+import model.proof.codec.ProofCodec;
+import model.utils.HashEngine;
+import model.utils.LeafHashFunction;
+import model.utils.Sha256;
+import model.utils.UInt256;
+import model.utils.Utils;
+import model.wal.WriteAheadLog;
+import org.jetbrains.annotations.NotNull;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
 import java.math.BigInteger;
-import java.util.Iterator;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
-import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.*;
 
 public class Tester {
 
@@ -90,139 +143,1673 @@ public class Tester {
         checkProofs(test, tree);
     }
 
-    private void checkProofs(TestFactory.Test test, CSMT<String, byte[]> tree) {
-        final int high = TestUtils.log2(test.input.length);
+    @Test
+    public void CSMTApplyBatchTest() {
+        Random random = new Random(1);
+        CSMT<String, byte[]> batchTree = new CSMTImpl<>(
+                TestUtils.LEAF_HASH_FUNCTION,
+                TestUtils.NODE_HASH_FUNCTION);
+        CSMT<String, byte[]> tree = new CSMTImpl<>(
+                TestUtils.LEAF_HASH_FUNCTION,
+                TestUtils.NODE_HASH_FUNCTION);
 
-        for (int i = 0; i != test.input.length; i++) {
-            Proof proof = tree.getProof(BigInteger.valueOf(i));
+        final int range = 4096;
+        for (int round = 0; round != 30; round++) {
+            SortedMap<BigInteger, String> puts = new TreeMap<>();
+            Set<BigInteger> deletes = new HashSet<>();
+            final int putCount = random.nextInt(300);
+            final int deleteCount = random.nextInt(300);
+            for (int i = 0; i != putCount; i++) {
+                puts.put(BigInteger.valueOf(random.nextInt(range)), TestFactory.getRandomString(10));
+            }
+            for (int i = 0; i != deleteCount; i++) {
+                deletes.add(BigInteger.valueOf(random.nextInt(range)));
+            }
+
+            batchTree.applyBatch(puts, deletes);
+            for (BigInteger key : deletes) {
+                tree.remove(key);
+            }
+            for (Map.Entry<BigInteger, String> entry : puts.entrySet()) {
+                tree.insert(entry.getKey(), entry.getValue());
+            }
+
+            assertArrayEquals(tree.rootHash(), batchTree.rootHash());
+            for (int i = 0; i < range; i += 7) {
+                TestUtils.assertProofEquals(tree.getProof(BigInteger.valueOf(i)), batchTree.getProof(BigInteger.valueOf(i)));
+            }
+        }
+    }
+
+    @Test
+    public void primitiveKeyCSMTTest() {
+        Random random = new Random(2);
+        checkSameProofs(random, new LongCSMTImpl<>(TestUtils.LEAF_HASH_FUNCTION, TestUtils.NODE_HASH_FUNCTION), 64);
+        checkSameProofs(random, new UInt256CSMTImpl<>(TestUtils.LEAF_HASH_FUNCTION, TestUtils.NODE_HASH_FUNCTION), 256);
+        checkSameProofs(random, new UInt256CSMTImpl<>(TestUtils.LEAF_HASH_FUNCTION, TestUtils.NODE_HASH_FUNCTION), 12);
+    }
+
+    @Test
+    public void offHeapCSMTTest() {
+        Random random = new Random(3);
+        try (OffHeapCSMTImpl<String> tree = new OffHeapCSMTImpl<>(
+                TestUtils.LEAF_HASH_FUNCTION,
+                TestUtils.NODE_HASH_FUNCTION,
+                32)) {
+            checkSameProofs(random, tree, 256);
+        }
+        try (OffHeapCSMTImpl<String> tree = new OffHeapCSMTImpl<>(
+                TestUtils.LEAF_HASH_FUNCTION,
+                TestUtils.NODE_HASH_FUNCTION,
+                32)) {
+            checkSameProofs(random, tree, 12);
+        }
+
+        try (OffHeapCSMTImpl<String> tree = new OffHeapCSMTImpl<>(
+                TestUtils.LEAF_HASH_FUNCTION,
+                TestUtils.NODE_HASH_FUNCTION,
+                32)) {
+            for (int round = 0; round != 3; round++) {
+                for (int i = 0; i != 1000; i++) {
+                    tree.insert(BigInteger.valueOf(i), "abc");
+                }
+                assertEquals(2 * 1000 - 1, tree.nodeCount());
+                for (int i = 0; i != 1000; i++) {
+                    tree.remove(BigInteger.valueOf(i));
+                }
+                assertEquals(0, tree.nodeCount());
+                assertNull(tree.rootHash());
+            }
+            assertTrue(tree.capacity() < 2 * 2 * 1000);
+        }
+    }
+
+    @Test
+    public void nonMembershipBelowMinimumTest() {
+        CSMT<String, byte[]> tree = new CSMTImpl<>(
+                TestUtils.LEAF_HASH_FUNCTION,
+                TestUtils.NODE_HASH_FUNCTION);
+        tree.insert(BigInteger.valueOf(8), "abc");
+        tree.insert(BigInteger.valueOf(9), "cde");
+        tree.insert(BigInteger.valueOf(12), "efg");
+
+        NonMembershipProof<String, byte[]> proof = (NonMembershipProof<String, byte[]>) tree.getProof(BigInteger.ONE);
+        assertNull(proof.getLeftBoundProof());
+        assertEquals(BigInteger.valueOf(8), proof.getRightBoundProof().getNode().getKey());
+    }
+
+    @Test
+    public void referenceProofTest() {
+        Random random = new Random(9);
+        for (int round = 0; round != 300; round++) {
+            CSMTImpl<String, byte[]> tree = new CSMTImpl<>(TestUtils.LEAF_HASH_FUNCTION, TestUtils.NODE_HASH_FUNCTION);
+            // Dense ranges give runs of adjacent keys, sparse ones deep skipped subtrees
+            int range = round % 3 == 0 ? 64 : 1 << (4 + random.nextInt(26));
+            int size = round < 20 ? 1 : 1 + random.nextInt(Math.min(range, 200));
+            TreeSet<BigInteger> keys = new TreeSet<>();
+            for (int i = 0; i != size; i++) {
+                BigInteger key = BigInteger.valueOf(random.nextInt(range));
+                keys.add(key);
+                tree.insert(key, "v" + key);
+            }
+
+            CSMTSnapshot<String, byte[]> snapshot = tree.snapshot();
+            ReferenceProofs<String, byte[]> reference = new ReferenceProofs<>(snapshot);
+            Set<BigInteger> probes = new TreeSet<>();
+            for (BigInteger key : keys) {
+                probes.add(key);
+                probes.add(key.add(BigInteger.ONE));
+                if (key.signum() > 0) {
+                    probes.add(key.subtract(BigInteger.ONE));
+                }
+            }
+            probes.add(BigInteger.ZERO);
+            probes.add(keys.last().add(BigInteger.valueOf(1 + random.nextInt(range))));
+            probes.add(keys.last().shiftLeft(1).add(BigInteger.ONE));
+            for (int i = 0; i != 50; i++) {
+                probes.add(BigInteger.valueOf(random.nextInt(2 * range)));
+            }
+            for (BigInteger probe : probes) {
+                TestUtils.assertProofEquals(reference.getProof(probe), snapshot.getProof(probe));
+            }
+        }
+    }
+
+    @Test
+    public void snapshotTest() throws Exception {
+        CSMTImpl<String, byte[]> tree = new CSMTImpl<>(
+                TestUtils.LEAF_HASH_FUNCTION,
+                TestUtils.NODE_HASH_FUNCTION);
 
+        final int count = 1000;
+        for (int i = 0; i != count; i++) {
+            tree.insert(BigInteger.valueOf(i), TestFactory.getRandomString(10));
+        }
+        CSMTSnapshot<String, byte[]> snapshot = tree.snapshot();
+        byte[] rootHash = snapshot.rootHash();
+
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i != count; i++) {
+                tree.remove(BigInteger.valueOf(i));
+                tree.insert(BigInteger.valueOf(count + i), TestFactory.getRandomString(10));
+            }
+        });
+        ExecutorService readers = Executors.newFixedThreadPool(4);
+        List<Future<?>> results = new ArrayList<>();
+        writer.start();
+        for (int r = 0; r != 4; r++) {
+            results.add(readers.submit(() -> {
+                for (int i = 0; i != count; i++) {
+                    Proof<String, byte[]> proof = snapshot.getProof(BigInteger.valueOf(i));
+                    assertTrue(proof instanceof MembershipProof);
+                    assertEquals(BigInteger.valueOf(i), ((MembershipProof<String, byte[]>) proof).getNode().getKey());
+                    tree.snapshot().getProof(BigInteger.valueOf(i));
+                }
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+        writer.join();
+        readers.shutdown();
+
+        assertArrayEquals(rootHash, snapshot.rootHash());
+        assertTrue(tree.getProof(BigInteger.ZERO) instanceof NonMembershipProof);
+        assertTrue(tree.getProof(BigInteger.valueOf(2 * count - 1)) instanceof MembershipProof);
+    }
+
+    @Test
+    public void multiProofTest() {
+        Random random = new Random(4);
+        CSMTImpl<String, byte[]> tree = new CSMTImpl<>(
+                TestUtils.LEAF_HASH_FUNCTION,
+                TestUtils.NODE_HASH_FUNCTION);
+        for (int i = 0; i != 3000; i++) {
+            tree.insert(BigInteger.valueOf(random.nextInt(1 << 20)), TestFactory.getRandomString(10));
+        }
+
+        for (int round = 0; round != 50; round++) {
+            List<BigInteger> keys = new ArrayList<>();
+            final int count = 1 + random.nextInt(200);
+            for (int i = 0; i != count; i++) {
+                keys.add(BigInteger.valueOf(random.nextInt((1 << 20) + 10)));
+            }
+            MultiProof<String, byte[]> multiProof = tree.getProofs(keys);
+
+            Set<BigInteger> expectedLeaves = new TreeSet<>();
+            int entries = 0;
+            for (BigInteger key : keys) {
+                Proof<String, byte[]> proof = tree.getProof(key);
+                List<MembershipProof<String, byte[]>> proofs = new ArrayList<>();
+                if (proof instanceof MembershipProof) {
+                    proofs.add((MembershipProof<String, byte[]>) proof);
+                } else {
+                    proofs.add(((NonMembershipProof<String, byte[]>) proof).getLeftBoundProof());
+                    proofs.add(((NonMembershipProof<String, byte[]>) proof).getRightBoundProof());
+                }
+                for (MembershipProof<String, byte[]> boundProof : proofs) {
+                    if (boundProof != null) {
+                        expectedLeaves.add(boundProof.getNode().getKey());
+                        entries += boundProof.getProof().size();
+                    }
+                }
+            }
+
+            List<BigInteger> leaves = new ArrayList<>();
+            for (LeafNode<String, byte[]> leaf : multiProof.getLeaves()) {
+                leaves.add(leaf.getKey());
+            }
+            assertEquals(new ArrayList<>(expectedLeaves), leaves);
+            assertTrue(multiProof.getHashes().size() <= entries);
+
+            Iterator<MultiProof.Step> steps = multiProof.getSteps().iterator();
+            assertArrayEquals(tree.rootHash(), multiProofRoot(steps,
+                    multiProof.getLeaves().iterator(), multiProof.getHashes().iterator()));
+            assertFalse(steps.hasNext());
+        }
+    }
+
+    @Test
+    public void proofVerifierTest() {
+        Random random = new Random(5);
+        // Default hash functions are thread-safe, verifyAll below runs in parallel
+        CSMTImpl<String, byte[]> tree = CSMTImpl.createKeyed();
+        ProofVerifier<String, byte[]> verifier = tree.verifier();
+        assertTrue(verifier.verify(tree.rootHash(), BigInteger.ONE, tree.getProof(BigInteger.ONE)));
+
+        for (int i = 0; i != 2000; i++) {
+            tree.insert(BigInteger.valueOf(2 * random.nextInt(1 << 16)), randomBase64(random));
+        }
+        byte[] rootHash = tree.rootHash();
+
+        List<BigInteger> keys = new ArrayList<>();
+        List<Proof<String, byte[]>> proofs = new ArrayList<>();
+        for (int i = 0; i < (1 << 17) + 2; i += 1 + random.nextInt(30)) {
+            BigInteger key = BigInteger.valueOf(i);
+            Proof<String, byte[]> proof = tree.getProof(key);
+            assertTrue(verifier.verify(rootHash, key, proof));
             if (proof instanceof MembershipProof) {
-                MembershipProof membershipProof = (MembershipProof) proof;
-                LeafNode leaf = membershipProof.getNode();
+                assertFalse(verifier.verify(rootHash, key.add(BigInteger.valueOf(2)), proof));
+            }
+            keys.add(key);
+            proofs.add(proof);
+        }
+        for (boolean verified : CSMTImpl.createKeyed().verifier().verifyAll(rootHash, keys, proofs)) {
+            assertTrue(verified);
+        }
 
-                assertArrayEquals(test.hashes[0][i], (byte[]) leaf.getHash());
+        BigInteger key = keys.get(keys.size() / 2);
+        while (!(tree.getProof(key) instanceof MembershipProof)) {
+            key = key.add(BigInteger.ONE);
+        }
+        MembershipProof<String, byte[]> proof = (MembershipProof<String, byte[]>) tree.getProof(key);
+        byte[] otherRoot = rootHash.clone();
+        otherRoot[0]++;
+        assertFalse(verifier.verify(otherRoot, key, proof));
 
-                int index = i;
-                Iterator proofIterator = membershipProof.getProof().iterator();
-                for (int h = 0; h != high; h++) {
-                    int currIndex = index % 2 == 0 ? index + 1 : index - 1;
-                    byte[] testHash = test.hashes[h][currIndex];
-                    if (testHash != null) {
-                        byte[] currHash = (byte[]) ((MembershipProof.Entry) proofIterator.next()).getHash();
-                        assertArrayEquals("at index=" + i + " at level: " + h, testHash, currHash);
+        String value = randomBase64(random);
+        LeafNode<String, byte[]> forged = new LeafNode<>(key, value, Sha256.keyedLeafHash(key, value));
+        assertFalse(verifier.verify(rootHash, key, new MembershipProof<>(forged, proof.getProof())));
+
+        // Bounds that are both in the tree but are not neighbours
+        BigInteger next = key.add(BigInteger.ONE);
+        while (!(tree.getProof(next) instanceof MembershipProof)) {
+            next = next.add(BigInteger.ONE);
+        }
+        NonMembershipProof<String, byte[]> bounds = (NonMembershipProof<String, byte[]>) tree.getProof(next.add(BigInteger.ONE));
+        assertFalse(verifier.verify(rootHash, next, new NonMembershipProof<>(proof, bounds.getRightBoundProof())));
+        assertFalse(verifier.verify(rootHash, next.add(BigInteger.ONE), new NonMembershipProof<>(null, bounds.getRightBoundProof())));
+        assertFalse(verifier.verify(rootHash, key, new NonMembershipProof<>(null, null)));
+    }
+
+    @Test
+    public void rewrittenKeyProofTest() {
+        CSMTImpl<String, byte[]> tree = CSMTImpl.createKeyed();
+        for (int key = 10; key <= 40; key += 10) {
+            tree.insert(BigInteger.valueOf(key), randomBase64(new Random(key)));
+        }
+        byte[] rootHash = tree.rootHash();
+        ProofVerifier<String, byte[]> verifier = tree.verifier();
+
+        MembershipProof<String, byte[]> proof20 = (MembershipProof<String, byte[]>) tree.getProof(BigInteger.valueOf(20));
+        MembershipProof<String, byte[]> proof30 = (MembershipProof<String, byte[]>) tree.getProof(BigInteger.valueOf(30));
+        assertTrue(verifier.verify(rootHash, BigInteger.valueOf(20), proof20));
+        assertFalse(verifier.verify(rootHash, BigInteger.valueOf(25), withKey(proof20, BigInteger.valueOf(25))));
+
+        // Real neighbours renamed around a key that is in the tree
+        NonMembershipProof<String, byte[]> forged = new NonMembershipProof<>(
+                withKey(proof20, BigInteger.valueOf(28)), withKey(proof30, BigInteger.valueOf(31)));
+        assertFalse(verifier.verify(rootHash, BigInteger.valueOf(30), forged));
+        assertTrue(verifier.verify(rootHash, BigInteger.valueOf(25), tree.getProof(BigInteger.valueOf(25))));
+
+        // A value-only leaf hash cannot tell the two apart, so there is no verifier for it
+        CSMTImpl<String, byte[]> valueOnly = CSMTImpl.createDefault();
+        for (int key = 10; key <= 40; key += 10) {
+            valueOnly.insert(BigInteger.valueOf(key), randomBase64(new Random(key)));
+        }
+        try {
+            valueOnly.verifier();
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+        // and the default trees keep hashing the value only
+        CSMTImpl<String, byte[]> reference = new CSMTImpl<>(Sha256::leafHash, Sha256::nodeHash);
+        for (int key = 10; key <= 40; key += 10) {
+            reference.insert(BigInteger.valueOf(key), randomBase64(new Random(key)));
+        }
+        assertArrayEquals(reference.rootHash(), valueOnly.rootHash());
+        assertFalse(Arrays.equals(rootHash, valueOnly.rootHash()));
+    }
+
+    @Test
+    public void proofCodecTest() throws IOException {
+        Random random = new Random(6);
+        ProofCodec<String> codec = new ProofCodec<>(32,
+                value -> value.getBytes(StandardCharsets.UTF_8),
+                bytes -> new String(bytes, StandardCharsets.UTF_8));
+        CSMTImpl<String, byte[]> tree = CSMTImpl.createDefault();
+        TestUtils.assertProofEquals(tree.getProof(BigInteger.ONE), codec.decode(codec.encode(tree.getProof(BigInteger.ONE))));
+
+        for (int i = 0; i != 1000; i++) {
+            tree.insert(BigInteger.valueOf(2 * random.nextInt(1 << 20)), randomBase64(random));
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        List<Proof<String, byte[]>> proofs = new ArrayList<>();
+        for (int i = 0; i != 300; i++) {
+            Proof<String, byte[]> proof = tree.getProof(BigInteger.valueOf(random.nextInt((1 << 21) + 10)));
+            proofs.add(proof);
+            codec.encode(proof, buffer);
+        }
+        buffer.flip();
+        MembershipProofView membershipView = new MembershipProofView();
+        NonMembershipProofView nonMembershipView = new NonMembershipProofView();
+        for (Proof<String, byte[]> proof : proofs) {
+            int offset = buffer.position();
+            if (proof instanceof MembershipProof) {
+                checkProofView((MembershipProof<String, byte[]>) proof, membershipView.wrap(buffer, offset));
+            } else {
+                NonMembershipProof<String, byte[]> bounds = (NonMembershipProof<String, byte[]>) proof;
+                nonMembershipView.wrap(buffer, offset);
+                assertEquals(bounds.getLeftBoundProof() != null, nonMembershipView.hasLeftBound());
+                assertEquals(bounds.getRightBoundProof() != null, nonMembershipView.hasRightBound());
+                if (bounds.getLeftBoundProof() != null) {
+                    checkProofView(bounds.getLeftBoundProof(), nonMembershipView.leftBound());
+                }
+                if (bounds.getRightBoundProof() != null) {
+                    checkProofView(bounds.getRightBoundProof(), nonMembershipView.rightBound());
+                }
+            }
+            TestUtils.assertProofEquals(proof, codec.decode(buffer));
+            assertEquals(codec.encodedSize(proof), buffer.position() - offset);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            codec.encode(proof, Channels.newChannel(out));
+            assertEquals(codec.encode(proof), ByteBuffer.wrap(out.toByteArray()));
+        }
+        assertFalse(buffer.hasRemaining());
+
+        ByteBuffer encoded = codec.encode(proofs.get(0));
+        encoded.put(0, (byte) 2);
+        try {
+            codec.decode(encoded);
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+
+        // A negative key, and a value length whose end overflows an int
+        tree.insert(BigInteger.ONE, randomBase64(random));
+        Proof<String, byte[]> member = tree.getProof(BigInteger.ONE);
+        ByteBuffer negativeKey = codec.encode(member);
+        negativeKey.put(6, (byte) 0x80);
+        ByteBuffer hugeValue = codec.encode(member);
+        hugeValue.putInt(6 + hugeValue.getShort(4), Integer.MAX_VALUE - 8);
+        for (ByteBuffer bad : Arrays.asList(negativeKey, hugeValue)) {
+            try {
+                codec.decode(bad);
+                fail();
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+    }
+
+    private void checkProofView(MembershipProof<String, byte[]> proof, MembershipProofView view) {
+        assertEquals(proof.getNode().getKey(), view.key());
+        assertEquals(ByteBuffer.wrap(proof.getNode().getValue().getBytes(StandardCharsets.UTF_8)), view.value());
+        assertEquals(ByteBuffer.wrap(proof.getNode().getHash()), view.leafHash());
+        assertEquals(proof.getProof().size(), view.depth());
+        for (int i = 0; i != view.depth(); i++) {
+            assertEquals(proof.getProof().get(i).getDirection(), view.direction(i));
+            assertEquals(ByteBuffer.wrap(proof.getProof().get(i).getHash()), view.hash(i));
+        }
+    }
+
+    @Test
+    public void deepTreeTest() throws Exception {
+        // Powers of two make every inner node have a leaf child, so the tree is as deep as it has keys
+        final int count = 1000;
+        final Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                CSMTImpl<String, byte[]> tree = new CSMTImpl<>(
+                        (key, value) -> TestUtils.LEAF_HASH_FUNCTION.apply(key + ":" + value),
+                        TestUtils.NODE_HASH_FUNCTION);
+                for (int i = 0; i != count; i++) {
+                    tree.insert(BigInteger.ONE.shiftLeft(i), String.valueOf(i));
+                }
+                MembershipProof<String, byte[]> proof = (MembershipProof<String, byte[]>) tree.getProof(BigInteger.ONE);
+                assertEquals(count - 1, proof.getProof().size());
+                assertTrue(tree.verifier().verify(tree.rootHash(), BigInteger.ONE, proof));
+                assertTrue(tree.getProof(BigInteger.valueOf(3)) instanceof NonMembershipProof);
+
+                for (int i = 0; i != count; i++) {
+                    tree.remove(BigInteger.ONE.shiftLeft(i));
+                }
+                assertNull(tree.rootHash());
+            } catch (Throwable e) {
+                failure[0] = e;
+            }
+        }, "deep-tree", 1 << 16);
+        thread.start();
+        thread.join();
+        if (failure[0] != null) {
+            throw new AssertionError(failure[0]);
+        }
+    }
+
+    @Test
+    public void deferredHashingTest() {
+        Random random = new Random(7);
+        int[] hashes = new int[2];
+        CSMTImpl<String, byte[]> eager = new CSMTImpl<>(
+                TestUtils.LEAF_HASH_FUNCTION,
+                (left, right) -> {
+                    hashes[0]++;
+                    return TestUtils.NODE_HASH_FUNCTION.apply(left, right);
+                });
+        CSMTImpl<String, byte[]> deferred = new CSMTImpl<>(
+                TestUtils.LEAF_HASH_FUNCTION,
+                (left, right) -> {
+                    hashes[1]++;
+                    return TestUtils.NODE_HASH_FUNCTION.apply(left, right);
+                },
+                true);
+
+        for (int block = 0; block != 50; block++) {
+            final int writes = random.nextInt(300);
+            for (int i = 0; i != writes; i++) {
+                BigInteger key = BigInteger.valueOf(random.nextInt(2000));
+                if (random.nextInt(3) == 0) {
+                    eager.remove(key);
+                    deferred.remove(key);
+                } else {
+                    String value = TestFactory.getRandomString(10);
+                    eager.insert(key, value);
+                    deferred.insert(key, value);
+                }
+            }
+            if (block % 10 == 0) {
+                SortedMap<BigInteger, String> puts = new TreeMap<>();
+                Set<BigInteger> deletes = new HashSet<>();
+                for (int i = 0; i != 20; i++) {
+                    puts.put(BigInteger.valueOf(random.nextInt(2000)), TestFactory.getRandomString(10));
+                    deletes.add(BigInteger.valueOf(random.nextInt(2000)));
+                }
+                eager.applyBatch(puts, deletes);
+                deferred.applyBatch(puts, deletes);
+            }
+
+            if (block % 2 == 0) {
+                deferred.commit();
+            }
+            assertArrayEquals(eager.rootHash(), deferred.rootHash());
+            BigInteger key = BigInteger.valueOf(random.nextInt(2000));
+            TestUtils.assertProofEquals(eager.getProof(key), deferred.getProof(key));
+        }
+        assertTrue(hashes[1] < hashes[0]);
+    }
+
+    @Test
+    public void hashEngineTest() throws Exception {
+        Random random = new Random(8);
+        HashEngine engine = HashEngine.sha256();
+        CSMTImpl<String, byte[]> defaultTree = CSMTImpl.createDefault();
+        CSMTImpl<byte[], byte[]> engineTree = CSMTImpl.create(engine);
+        CSMTImpl<String, byte[]> keyedTree = CSMTImpl.createKeyed();
+        CSMTImpl<byte[], byte[]> keyedEngineTree = CSMTImpl.createKeyed(engine);
+        OffHeapCSMTImpl<byte[]> keyedOffHeap = OffHeapCSMTImpl.createKeyed(engine);
+        for (int i = 0; i != 500; i++) {
+            String value = randomBase64(random);
+            BigInteger key = BigInteger.valueOf(random.nextInt(1 << 16));
+            defaultTree.insert(key, value);
+            engineTree.insert(key, Base64.getDecoder().decode(value));
+            keyedTree.insert(key, value);
+            keyedEngineTree.insert(key, Base64.getDecoder().decode(value));
+            keyedOffHeap.insert(key, Base64.getDecoder().decode(value));
+        }
+        assertArrayEquals(defaultTree.rootHash(), engineTree.rootHash());
+        assertArrayEquals(keyedTree.rootHash(), keyedEngineTree.rootHash());
+        assertArrayEquals(keyedTree.rootHash(), keyedOffHeap.rootHash());
+        keyedOffHeap.close();
+
+        // Fixed-width keys hash as their BigInteger form, through Sha256 and the HashEngine defaults
+        HashEngine defaults = new HashEngine() {
+            @Override
+            public int hashLength() {
+                return engine.hashLength();
+            }
+
+            @Override
+            public void hashLeaf(@NotNull byte[] value, int offset, int length, @NotNull byte[] out, int outOffset) {
+                engine.hashLeaf(value, offset, length, out, outOffset);
+            }
+
+            @Override
+            public void hashKeyedLeaf(@NotNull byte[] key, int keyOffset, int keyLength, @NotNull byte[] value,
+                                      int offset, int length, @NotNull byte[] out, int outOffset) {
+                engine.hashKeyedLeaf(key, keyOffset, keyLength, value, offset, length, out, outOffset);
+            }
+
+            @Override
+            public void hashNode(@NotNull byte[] left, int leftOffset, @NotNull byte[] right, int rightOffset,
+                                 @NotNull byte[] out, int outOffset) {
+                engine.hashNode(left, leftOffset, right, rightOffset, out, outOffset);
+            }
+        };
+        byte[] value = {1, 2};
+        BigInteger max = BigInteger.ONE.shiftLeft(UInt256.BITS).subtract(BigInteger.ONE);
+        for (BigInteger key : Arrays.asList(BigInteger.ZERO, BigInteger.ONE, BigInteger.valueOf(127),
+                BigInteger.valueOf(128), BigInteger.valueOf(1 << 16), BigInteger.valueOf(Long.MAX_VALUE),
+                BigInteger.ONE.shiftLeft(63), BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE),
+                BigInteger.ONE.shiftLeft(64), BigInteger.ONE.shiftLeft(255), max)) {
+            byte[] expected = engine.hashKeyedLeaf(key, value);
+            for (HashEngine keyed : Arrays.asList(engine, defaults)) {
+                byte[] out = new byte[32];
+                keyed.hashKeyedLeaf(UInt256.valueOf(key), value, 0, value.length, out, 0);
+                assertArrayEquals(expected, out);
+                if (key.bitLength() <= Long.SIZE) {
+                    keyed.hashKeyedLeaf(Utils.toUnsignedLong(key), value, 0, value.length, out, 0);
+                    assertArrayEquals(expected, out);
+                }
+            }
+        }
+
+        LongCSMTImpl<byte[], byte[]> keyedLong = new LongCSMTImpl<>(LeafHashFunction.keyed(engine), engine::hashNode);
+        UInt256CSMTImpl<byte[], byte[]> keyedUInt256 =
+                new UInt256CSMTImpl<>(LeafHashFunction.keyed(engine), engine::hashNode);
+        CSMTImpl<byte[], byte[]> wideTree = CSMTImpl.createKeyed(engine);
+        for (int i = 0; i != 500; i++) {
+            byte[] bytes = Base64.getDecoder().decode(randomBase64(random));
+            long key = random.nextLong();
+            keyedLong.insert(key, bytes);
+            keyedUInt256.insert(new UInt256(0, 0, 0, key), bytes);
+            wideTree.insert(Utils.toUnsignedBigInteger(key), bytes);
+        }
+        assertArrayEquals(wideTree.rootHash(), keyedLong.rootHash());
+        assertArrayEquals(wideTree.rootHash(), keyedUInt256.rootHash());
+
+        final int count = 100;
+        final byte[] pairs = new byte[2 * count * engine.hashLength()];
+        random.nextBytes(pairs);
+        final byte[][] expected = new byte[count][];
+        for (int i = 0; i != count; i++) {
+            expected[i] = engine.hashNode(
+                    Arrays.copyOfRange(pairs, 2 * i * 32, (2 * i + 1) * 32),
+                    Arrays.copyOfRange(pairs, (2 * i + 1) * 32, (2 * i + 2) * 32));
+        }
+        byte[] hashes = pairs.clone();
+        engine.hashPairs(hashes, count, hashes);
+        for (int i = 0; i != count; i++) {
+            assertArrayEquals(expected[i], Arrays.copyOfRange(hashes, i * 32, (i + 1) * 32));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int thread = 0; thread != 8; thread++) {
+                results.add(executor.submit(() -> {
+                    byte[] out = new byte[32];
+                    for (int round = 0; round != 20000; round++) {
+                        int i = round % count;
+                        engine.hashNode(pairs, 2 * i * 32, pairs, (2 * i + 1) * 32, out, 0);
+                        if (!Arrays.equals(expected[i], out)) {
+                            return false;
+                        }
                     }
-                    index /= 2;
+                    return true;
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void mappedCSMTTest() throws IOException {
+        Random random = new Random(9);
+        Path directory = Files.createTempDirectory("csmt");
+        try {
+            CSMTImpl<byte[], byte[]> expected = CSMTImpl.create(HashEngine.sha256());
+            MappedCSMTImpl tree = MappedCSMTImpl.open(directory, HashEngine.sha256(), 1 << 16);
+            for (int i = 0; i != 3000; i++) {
+                BigInteger key = BigInteger.valueOf(random.nextInt(1 << 12));
+                if (random.nextInt(4) == 0) {
+                    expected.remove(key);
+                    tree.remove(key);
+                } else {
+                    byte[] value = new byte[random.nextInt(40)];
+                    random.nextBytes(value);
+                    expected.insert(key, value);
+                    tree.insert(key, value);
                 }
             }
+            assertArrayEquals(expected.rootHash(), tree.rootHash());
+            tree.close();
+
+            tree = MappedCSMTImpl.open(directory, HashEngine.sha256(), 1 << 16);
+            assertArrayEquals(expected.rootHash(), tree.rootHash());
+            for (int i = 0; i < (1 << 12) + 10; i += 1 + random.nextInt(20)) {
+                BigInteger key = BigInteger.valueOf(i);
+                TestUtils.assertProofEquals(expected.getProof(key), tree.getProof(key));
+            }
+
+            // Changes after the last flush are lost on reopening
+            byte[] flushed = tree.rootHash();
+            tree.insert(BigInteger.valueOf(1 << 20), new byte[]{1});
+            tree = MappedCSMTImpl.open(directory, HashEngine.sha256(), 1 << 16);
+            assertArrayEquals(flushed, tree.rootHash());
+
+            long segments;
+            try (Stream<Path> files = Files.list(directory)) {
+                segments = files.filter(file -> file.getFileName().toString().startsWith("segment-")).count();
+            }
+            tree.compact();
+            try (Stream<Path> files = Files.list(directory)) {
+                assertTrue(files.filter(file -> file.getFileName().toString().startsWith("segment-")).count() < segments);
+            }
+            assertArrayEquals(expected.rootHash(), tree.rootHash());
+            tree.close();
+
+            tree = MappedCSMTImpl.open(directory, HashEngine.sha256(), 1 << 16);
+            for (int i = 0; i < (1 << 12) + 10; i += 1 + random.nextInt(20)) {
+                BigInteger key = BigInteger.valueOf(i);
+                TestUtils.assertProofEquals(expected.getProof(key), tree.getProof(key));
+            }
+            tree.close();
+
+            // Reading a lost segment fails instead of mapping a fresh empty file
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    if (file.getFileName().toString().startsWith("segment-")) {
+                        Files.delete(file);
+                    }
+                }
+            }
+            tree = MappedCSMTImpl.open(directory, HashEngine.sha256(), 1 << 16);
+            try {
+                tree.getProof(BigInteger.ONE);
+                fail();
+            } catch (UncheckedIOException ignored) {
+            }
+            try (Stream<Path> files = Files.list(directory)) {
+                assertEquals(0, files.filter(file -> file.getFileName().toString().startsWith("segment-")).count());
+            }
+            tree.close();
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
         }
     }
 
-    private void checkProofs(TestFactory.Test test, Merkle<String, byte[]> merkleTree) {
-        final int high = TestUtils.log2(test.input.length);
+    @Test
+    public void checkpointTest() throws IOException {
+        Random random = new Random(10);
+        Checkpoint<String> checkpoint = new Checkpoint<>(32,
+                value -> value.getBytes(StandardCharsets.UTF_8),
+                bytes -> new String(bytes, StandardCharsets.UTF_8));
+        CSMTImpl<String, byte[]> tree = CSMTImpl.createKeyed();
+        for (int i = 0; i != 20000; i++) {
+            tree.insert(BigInteger.valueOf(random.nextInt(1 << 24)), randomBase64(random));
+        }
+        CSMTSnapshot<String, byte[]> snapshot = tree.snapshot();
+        for (int i = 0; i != 100; i++) {
+            tree.insert(BigInteger.valueOf(random.nextInt(1 << 24)), randomBase64(random));
+        }
 
-        for (int i = 0; i != test.input.length; i++) {
-            MerkleProof proof = merkleTree.getProof(i);
+        for (boolean innerHashes : new boolean[]{false, true}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            checkpoint.write(snapshot, out, innerHashes);
+            for (boolean trustHashes : new boolean[]{false, true}) {
+                CSMTImpl<String, byte[]> loaded = checkpoint.load(new ByteArrayInputStream(out.toByteArray()),
+                        Sha256::keyedLeafHash, Sha256::nodeHash, trustHashes, ForkJoinPool.commonPool());
+                assertArrayEquals(snapshot.rootHash(), loaded.rootHash());
+                for (int i = 0; i != 200; i++) {
+                    BigInteger key = BigInteger.valueOf(random.nextInt(1 << 24));
+                    TestUtils.assertProofEquals(snapshot.getProof(key), loaded.getProof(key));
+                }
+            }
 
-            assertArrayEquals(test.hashes[0][i], (byte[]) proof.getTargetByteArray());
-            List neighbors = proof.getNeighbors();
-            int index = i;
+            // A changed byte in the first value no longer matches its leaf hash, trusted or not
+            byte[] corrupted = out.toByteArray();
+            int keyLength = ByteBuffer.wrap(corrupted).getShort(48);
+            corrupted[54 + keyLength] ^= 1;
+            for (boolean trustHashes : new boolean[]{false, true}) {
+                try {
+                    checkpoint.load(new ByteArrayInputStream(corrupted),
+                            Sha256::keyedLeafHash, Sha256::nodeHash, trustHashes, ForkJoinPool.commonPool());
+                    fail();
+                } catch (IOException ignored) {
+                }
+            }
 
-            for (int h = 0; h != high; h++) {
-                int currIndex = index % 2 == 0 ? index + 1 : index - 1;
-                byte[] currHash = (byte[]) neighbors.get(h);
+            // A corrupt value length fails like any other check, without allocating it up front
+            for (int valueLength : new int[]{-1, Integer.MAX_VALUE, Integer.MAX_VALUE - 16, 1 << 28}) {
+                byte[] badLength = out.toByteArray();
+                ByteBuffer.wrap(badLength).putInt(50 + keyLength, valueLength);
+                try {
+                    checkpoint.load(new ByteArrayInputStream(badLength),
+                            Sha256::keyedLeafHash, Sha256::nodeHash, false, ForkJoinPool.commonPool());
+                    fail();
+                } catch (IOException ignored) {
+                }
+            }
+        }
 
-                assertArrayEquals("at index=" + i + " at level: " + h,
-                        test.hashes[h][currIndex], currHash);
-                index /= 2;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        checkpoint.write(CSMTImpl.createKeyed().snapshot(), out, true);
+        assertNull(checkpoint.load(new ByteArrayInputStream(out.toByteArray()),
+                Sha256::keyedLeafHash, Sha256::nodeHash, false, ForkJoinPool.commonPool()).rootHash());
+    }
+
+    @Test
+    public void writeAheadLogTest() throws Exception {
+        Path directory = Files.createTempDirectory("csmt");
+        Path logFile = directory.resolve("wal");
+        Function<String, byte[]> encoder = value -> value.getBytes(StandardCharsets.UTF_8);
+        Function<byte[], String> decoder = bytes -> new String(bytes, StandardCharsets.UTF_8);
+        Checkpoint<String> checkpoint = new Checkpoint<>(32, encoder, decoder);
+        try {
+            DurableCSMT<String, byte[]> tree = DurableCSMT.open(CSMTImpl.createKeyed(), logFile, encoder, decoder);
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            try {
+                List<Future<?>> writers = new ArrayList<>();
+                for (int thread = 0; thread != 8; thread++) {
+                    final Random random = new Random(thread);
+                    writers.add(executor.submit(() -> {
+                        for (int i = 0; i != 200; i++) {
+                            BigInteger key = BigInteger.valueOf(random.nextInt(1 << 12));
+                            if (random.nextInt(4) == 0) {
+                                tree.remove(key);
+                            } else {
+                                tree.insert(key, randomBase64(random));
+                            }
+                        }
+                    }));
+                }
+                for (Future<?> writer : writers) {
+                    writer.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+            assertTrue(tree.syncCount() > 0);
+
+            ByteArrayOutputStream saved = new ByteArrayOutputStream();
+            tree.checkpoint(csmt -> checkpoint.write(((CSMTImpl<String, byte[]>) csmt).snapshot(), saved, false));
+            Random random = new Random(11);
+            for (int i = 0; i != 300; i++) {
+                tree.insert(BigInteger.valueOf(random.nextInt(1 << 12)), randomBase64(random));
+                tree.remove(BigInteger.valueOf(random.nextInt(1 << 12)));
+            }
+            byte[] rootHash = tree.rootHash();
+            // Not closed, as if the process died: the last checkpoint plus the log give the same tree
+            CSMTImpl<String, byte[]> restored = checkpoint.load(new ByteArrayInputStream(saved.toByteArray()),
+                    Sha256::keyedLeafHash, Sha256::nodeHash, true, ForkJoinPool.commonPool());
+            DurableCSMT<String, byte[]> reopened = DurableCSMT.open(restored, logFile, encoder, decoder);
+            assertArrayEquals(rootHash, reopened.rootHash());
+            reopened.close();
+            tree.close();
+
+            // Appends that are all in before the first sync starts share its fsync
+            Files.delete(logFile);
+            WriteAheadLog log = WriteAheadLog.open(logFile, WriteAheadLog.DEFAULT_PREALLOCATION, new WriteAheadLog.Visitor() {
+                @Override
+                public void insert(@NotNull BigInteger key, @NotNull byte[] value) {
+                    fail();
+                }
+
+                @Override
+                public void remove(@NotNull BigInteger key) {
+                    fail();
+                }
+            });
+            CyclicBarrier appended = new CyclicBarrier(8);
+            executor = Executors.newFixedThreadPool(8);
+            try {
+                List<Future<?>> writers = new ArrayList<>();
+                for (int thread = 0; thread != 8; thread++) {
+                    BigInteger key = BigInteger.valueOf(thread);
+                    writers.add(executor.submit(() -> {
+                        long position = log.appendInsert(key, new byte[]{1});
+                        appended.await();
+                        log.sync(position);
+                        return null;
+                    }));
+                }
+                for (Future<?> writer : writers) {
+                    writer.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+            assertEquals(1, log.syncCount());
+
+            // A writer that reaches sync after a checkpoint reset the log has nothing left to force
+            long position = log.appendRemove(BigInteger.ONE);
+            log.reset();
+            ExecutorService syncer = Executors.newSingleThreadExecutor();
+            try {
+                syncer.submit(() -> {
+                    log.sync(position);
+                    return null;
+                }).get(10, TimeUnit.SECONDS);
+            } finally {
+                syncer.shutdownNow();
+            }
+            assertEquals(1, log.syncCount());
+            long next = log.appendRemove(BigInteger.ONE);
+            assertTrue(next > position);
+            log.sync(next);
+            assertEquals(2, log.syncCount());
+            log.close();
+        } finally {
+            Files.deleteIfExists(logFile);
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void nodeCacheTest() throws IOException {
+        Random random = new Random(12);
+        Path directory = Files.createTempDirectory("csmt");
+        try {
+            CSMTImpl<byte[], byte[]> expected = CSMTImpl.create(HashEngine.sha256());
+            MappedCSMTImpl tree = MappedCSMTImpl.open(directory, HashEngine.sha256(), 1 << 20, 1 << 16, 4);
+            for (int i = 0; i != 5000; i++) {
+                BigInteger key = BigInteger.valueOf(random.nextInt(1 << 20));
+                byte[] value = new byte[16];
+                random.nextBytes(value);
+                expected.insert(key, value);
+                tree.insert(key, value);
+                // Everything above the pinned levels must fit into the budget
+                assertTrue(tree.cache().sizeInBytes() <= (1 << 16) + (1 << 4) * 256);
+            }
+            for (int i = 0; i != 2000; i++) {
+                BigInteger key = BigInteger.valueOf(random.nextInt(1 << 20));
+                if (i % 2 == 0) {
+                    expected.remove(key);
+                    tree.remove(key);
+                }
+                TestUtils.assertProofEquals(expected.getProof(key), tree.getProof(key));
             }
+            assertArrayEquals(expected.rootHash(), tree.rootHash());
+            assertTrue(tree.cache().hits() > 0);
+            assertTrue(tree.cache().misses() > 0);
+            assertTrue(tree.cache().evictions() > 0);
+            tree.close();
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
         }
     }
 
     @Test
-    public void timeTest() {
-        System.out.println("time test:");
-        for (int numberOfElements = 100_000; numberOfElements <= 800_000; numberOfElements *= 2) {
-            BigInteger[] keys = new BigInteger[numberOfElements];
-            String[] input = new String[numberOfElements];
-            final int high = (int) Math.ceil(TestUtils.log2(
-                    TestUtils.toPow2(input.length))) + 1;
-            for (int i = 0; i != numberOfElements; i++) {
-                keys[i] = BigInteger.valueOf(i);
-                input[i] = TestFactory.getRandomString(10);
+    public void nodeCacheBudgetTest() throws IOException {
+        Random random = new Random(27);
+        Path directory = Files.createTempDirectory("csmt");
+        try {
+            // Pinning more levels than their share of the budget holds: the share wins
+            CSMTImpl<byte[], byte[]> expected = CSMTImpl.createKeyed(HashEngine.sha256());
+            MappedCSMTImpl tree = MappedCSMTImpl.open(directory, HashEngine.sha256(), true, 1 << 20, 1 << 12, 64);
+            for (int i = 0; i != 3000; i++) {
+                BigInteger key = BigInteger.valueOf(random.nextInt(1 << 20));
+                byte[] value = new byte[16];
+                random.nextBytes(value);
+                expected.insert(key, value);
+                tree.insert(key, value);
+                assertTrue(tree.cache().sizeInBytes() <= 1 << 12);
+                assertTrue(tree.cache().pinnedBytes() <= 1 << 10);
+                if (i % 10 == 0) {
+                    BigInteger probe = BigInteger.valueOf(random.nextInt(1 << 20));
+                    TestUtils.assertProofEquals(expected.getProof(probe), tree.getProof(probe));
+                    assertTrue(tree.cache().sizeInBytes() <= 1 << 12);
+                }
             }
+            assertArrayEquals(expected.rootHash(), tree.rootHash());
+            assertTrue(tree.cache().evictions() > 0);
+            assertTrue(tree.cache().pinnedBytes() > 0);
 
-            Merkle<String, byte[]> treeMerkle = new Merkle<>(high, input,
-                    TestUtils.LEAF_HASH_FUNCTION,
-                    TestUtils.NODE_HASH_FUNCTION);
+            // The pinned root survives a scan that cycles everything else through the clock
+            for (int i = 0; i != 1 << 10; i++) {
+                tree.getProof(BigInteger.valueOf(random.nextInt(1 << 20)));
+            }
+            long misses = tree.cache().misses();
+            tree.rootHash();
+            assertEquals(misses, tree.cache().misses());
+            tree.close();
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void getAndScanTest() {
+        Random random = new Random(13);
+        TreeMap<BigInteger, String> expected = new TreeMap<>();
+        CSMTImpl<String, byte[]> tree = CSMTImpl.createDefault();
+        List<CSMT<String, byte[]>> engines = Arrays.asList(tree,
+                new LongCSMTImpl<>(Sha256::keyedLeafHash, Sha256::nodeHash),
+                new UInt256CSMTImpl<>(Sha256::keyedLeafHash, Sha256::nodeHash),
+                new OffHeapCSMTImpl<>(Sha256::keyedLeafHash, Sha256::nodeHash, 32));
+        assertNull(tree.get(BigInteger.ONE));
+        assertFalse(tree.scan(BigInteger.ZERO, BigInteger.TEN).hasNext());
+        assertEquals(0, StreamSupport.stream(tree.spliterator(), true).count());
 
-            long time = -System.currentTimeMillis();
-            for (int i = 0; i != numberOfElements; i++) {
-                treeMerkle.getProof(i);
+        for (int i = 0; i != 20000; i++) {
+            BigInteger key = BigInteger.valueOf(random.nextInt(1 << 20));
+            String value = randomBase64(random);
+            expected.putIfAbsent(key, value);
+            for (CSMT<String, byte[]> engine : engines) {
+                engine.insert(key, value);
             }
-            System.out.println(String.format("for %d elements Merkle tree: %d",
-                    numberOfElements, System.currentTimeMillis() + time));
+        }
 
-            CSMT<String, byte[]> treeCSMT = new CSMTImpl<>(TestUtils.LEAF_HASH_FUNCTION, TestUtils.NODE_HASH_FUNCTION);
-            for (int i = 0; i != numberOfElements; i++) {
-                treeCSMT.insert(keys[i], input[i]);
+        for (int i = 0; i != 2000; i++) {
+            BigInteger key = BigInteger.valueOf(random.nextInt(1 << 20));
+            for (CSMT<String, byte[]> engine : engines) {
+                assertEquals(expected.get(key), engine.get(key));
             }
+        }
+        for (BigInteger key : expected.keySet()) {
+            assertEquals(expected.get(key), tree.get(key));
+        }
 
-            time = -System.currentTimeMillis();
-            for (int i = 0; i != numberOfElements; i++) {
-                treeCSMT.getProof(keys[i]);
+        for (int i = 0; i != 200; i++) {
+            BigInteger from = BigInteger.valueOf(random.nextInt(1 << 20));
+            BigInteger to = from.add(BigInteger.valueOf(random.nextInt(1 << 12)));
+            Iterator<BigInteger> keys = expected.subMap(from, to).keySet().iterator();
+            Iterator<LeafNode<String, byte[]>> leaves = tree.scan(from, to);
+            while (keys.hasNext()) {
+                assertEquals(keys.next(), leaves.next().getKey());
             }
-            System.out.println(String.format("for %d elements CSMT: %d",
-                    numberOfElements, System.currentTimeMillis() + time));
-            System.out.println();
+            assertFalse(leaves.hasNext());
         }
+
+        List<BigInteger> scanned = StreamSupport.stream(tree.spliterator(), true)
+                .map(LeafNode::getKey)
+                .collect(Collectors.toList());
+        assertEquals(new ArrayList<>(expected.keySet()), scanned);
     }
 
     @Test
-    public void KeyTimeTest() {
-        final int step = 50_000;
-        System.out.println("key time test step: " + step);
-        for (int count = 100_000; count < 6_000_000; count *= 2) {
-            BigInteger[] keys = new BigInteger[count];
-            String[] input = new String[count];
-            final int high = (int) Math.ceil(TestUtils.log2(
-                    TestUtils.toPow2(input.length))) + 1;
+    public void diffTest() {
+        Random random = new Random(17);
+        TreeMap<BigInteger, String> before = new TreeMap<>();
+        CSMTImpl<String, byte[]> tree = CSMTImpl.createKeyed();
+        for (int i = 0; i != 20000; i++) {
+            BigInteger key = BigInteger.valueOf(random.nextInt(1 << 24));
+            String value = randomBase64(random);
+            if (before.putIfAbsent(key, value) == null) {
+                tree.insert(key, value);
+            }
+        }
+        CSMTSnapshot<String, byte[]> snapshotA = tree.snapshot();
+
+        TreeMap<BigInteger, String> after = new TreeMap<>(before);
+        List<BigInteger> keys = new ArrayList<>(before.keySet());
+        for (int i = 0; i != 100; i++) {
+            BigInteger key = keys.get(random.nextInt(keys.size()));
+            String value = randomBase64(random);
+            switch (i % 3) {
+                case 0:
+                    if (after.remove(key) != null) {
+                        tree.remove(key);
+                    }
+                    break;
+                case 1:
+                    if (after.containsKey(key)) {
+                        after.put(key, value);
+                        tree.remove(key);
+                        tree.insert(key, value);
+                    }
+                    break;
+                default:
+                    key = BigInteger.valueOf(random.nextInt(1 << 25));
+                    if (after.putIfAbsent(key, value) == null) {
+                        tree.insert(key, value);
+                    }
+            }
+        }
+        CSMTSnapshot<String, byte[]> snapshotB = tree.snapshot();
+
+        assertDiff(before, after, snapshotA.diff(snapshotB));
+        assertDiff(after, before, snapshotB.diff(snapshotA));
+        assertDiff(before, before, snapshotA.diff(snapshotA));
+
+        CSMTImpl<String, byte[]> empty = CSMTImpl.createKeyed();
+        assertDiff(new TreeMap<>(), after, empty.snapshot().diff(snapshotB));
+        assertDiff(after, new TreeMap<>(), snapshotB.diff(empty.snapshot()));
+
+        // Same contents inserted in another order share no nodes and still give no changes
+        CSMTImpl<String, byte[]> rebuilt = CSMTImpl.createKeyed();
+        List<Map.Entry<BigInteger, String>> entries = new ArrayList<>(after.entrySet());
+        Collections.shuffle(entries, random);
+        for (Map.Entry<BigInteger, String> entry : entries) {
+            rebuilt.insert(entry.getKey(), entry.getValue());
+        }
+        assertFalse(snapshotB.diff(rebuilt.snapshot()).hasNext());
+
+        // Replicas built independently are pruned at the root, no leaf is compared
+        CSMTImpl<CountedValue, byte[]> replicaA = new CSMTImpl<>(CountedValue::hash, Sha256::nodeHash);
+        CSMTImpl<CountedValue, byte[]> replicaB = new CSMTImpl<>(CountedValue::hash, Sha256::nodeHash);
+        for (Map.Entry<BigInteger, String> entry : entries) {
+            replicaA.insert(entry.getKey(), new CountedValue(entry.getValue()));
+        }
+        Collections.shuffle(entries, random);
+        for (Map.Entry<BigInteger, String> entry : entries) {
+            replicaB.insert(entry.getKey(), new CountedValue(entry.getValue()));
+        }
+        CountedValue.comparisons = 0;
+        assertFalse(replicaA.snapshot().diff(replicaB.snapshot()).hasNext());
+        assertEquals(0, CountedValue.comparisons);
+
+        // With a value-only leaf hash, moved values give equal hashes that must not hide the changes
+        TreeMap<BigInteger, String> moved = new TreeMap<>();
+        moved.put(BigInteger.ONE, "dg==");
+        TreeMap<BigInteger, String> movedAfter = new TreeMap<>();
+        movedAfter.put(BigInteger.valueOf(2), "dg==");
+        assertDiff(moved, movedAfter, valueHashed(moved).snapshot().diff(valueHashed(movedAfter).snapshot()));
+        moved.put(BigInteger.valueOf(3), "dw==");
+        movedAfter.put(BigInteger.valueOf(6), "dw==");
+        assertDiff(moved, movedAfter, valueHashed(moved).snapshot().diff(valueHashed(movedAfter).snapshot()));
+    }
 
-            final int numberOfElements = count / step;
-            System.out.println(String.format("for %d input elements with step %d and %d operations",
-                    numberOfElements, step, numberOfElements * 10000));
+    // Base64 value that counts how often it is compared
+    private static final class CountedValue {
+        static int comparisons;
+
+        final String base64;
+
+        CountedValue(String base64) {
+            this.base64 = base64;
+        }
+
+        static byte[] hash(BigInteger key, CountedValue value) {
+            return Sha256.keyedLeafHash(key, value.base64);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            comparisons++;
+            return other instanceof CountedValue && base64.equals(((CountedValue) other).base64);
+        }
+
+        @Override
+        public int hashCode() {
+            return base64.hashCode();
+        }
+    }
+
+    private static CSMTImpl<String, byte[]> valueHashed(Map<BigInteger, String> entries) {
+        CSMTImpl<String, byte[]> tree = new CSMTImpl<>(Sha256::leafHash, Sha256::nodeHash);
+        for (Map.Entry<BigInteger, String> entry : entries.entrySet()) {
+            tree.insert(entry.getKey(), entry.getValue());
+        }
+        return tree;
+    }
+
+    private static void assertDiff(
+            TreeMap<BigInteger, String> before,
+            TreeMap<BigInteger, String> after,
+            Iterator<TreeDiff.Change<String>> diff
+    ) {
+        TreeSet<BigInteger> keys = new TreeSet<>(before.keySet());
+        keys.addAll(after.keySet());
+        for (BigInteger key : keys) {
+            String expectedBefore = before.get(key);
+            String expectedAfter = after.get(key);
+            if (Objects.equals(expectedBefore, expectedAfter)) continue;
+
+            TreeDiff.Change<String> change = diff.next();
+            assertEquals(key, change.getKey());
+            assertEquals(expectedBefore, change.getBefore());
+            assertEquals(expectedAfter, change.getAfter());
+        }
+        assertFalse(diff.hasNext());
+    }
+
+    @Test
+    public void changeFeedTest() throws Exception {
+        Random random = new Random(19);
+        CSMTImpl<String, byte[]> leader = CSMTImpl.createDefault();
+        ChangeFeed<String, byte[]> feed = new ChangeFeed<>(1 << 16);
+        leader.addListener(feed);
+        CSMTImpl<String, byte[]> replica = CSMTImpl.createDefault();
+        FeedFollower<String, byte[]> follower = new FeedFollower<>(replica, feed, leader.nextSequence());
+
+        final int count = 20000;
+        Thread writer = new Thread(() -> {
             for (int i = 0; i != count; i++) {
-                keys[i] = BigInteger.valueOf(i);
-                if (i % step == 0) {
-                    input[i] = TestFactory.getRandomString(7);
+                BigInteger key = BigInteger.valueOf(random.nextInt(1 << 12));
+                if (i % 100 == 0) {
+                    SortedMap<BigInteger, String> puts = new TreeMap<>();
+                    Set<BigInteger> deletes = new HashSet<>();
+                    for (int j = 0; j != 10; j++) {
+                        puts.put(BigInteger.valueOf(random.nextInt(1 << 12)), randomBase64(random));
+                        deletes.add(BigInteger.valueOf(random.nextInt(1 << 12)));
+                    }
+                    leader.applyBatch(puts, deletes);
+                } else if (random.nextBoolean()) {
+                    leader.insert(key, randomBase64(random));
+                } else {
+                    leader.remove(key);
                 }
             }
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            follower.poll();
+        }
+        writer.join();
+        follower.poll();
+
+        assertEquals(leader.nextSequence(), follower.next());
+        assertArrayEquals(leader.rootHash(), replica.rootHash());
+        assertNull(feed.poll(follower.next()));
+
+        // Deferred hashing publishes one record per commit
+        CSMTImpl<String, byte[]> deferred = new CSMTImpl<>(Sha256::keyedLeafHash, Sha256::nodeHash, true);
+        List<ChangeRecord<String, byte[]>> records = new ArrayList<>();
+        deferred.addListener(records::add);
+        deferred.insert(BigInteger.ONE, randomBase64(random));
+        deferred.insert(BigInteger.TEN, randomBase64(random));
+        assertTrue(records.isEmpty());
+        byte[] rootHash = deferred.rootHash();
+        assertEquals(1, records.size());
+        assertEquals(2, records.get(0).getMutations().size());
+        assertArrayEquals(rootHash, records.get(0).getRootHash());
+
+        // A batch publishes only the mutations that changed the tree, and nothing when none did
+        records.clear();
+        deferred.applyBatch(new TreeMap<>(Collections.singletonMap(BigInteger.ONE, randomBase64(random))),
+                Collections.singleton(BigInteger.valueOf(3)));
+        deferred.commit();
+        assertTrue(records.isEmpty());
+        SortedMap<BigInteger, String> puts = new TreeMap<>();
+        puts.put(BigInteger.ONE, randomBase64(random));
+        puts.put(BigInteger.valueOf(2), randomBase64(random));
+        puts.put(BigInteger.TEN, randomBase64(random));
+        deferred.applyBatch(puts, new HashSet<>(Arrays.asList(BigInteger.ONE, BigInteger.valueOf(3))));
+        deferred.commit();
+        assertEquals(1, records.size());
+        List<ChangeRecord.Mutation<String>> mutations = records.get(0).getMutations();
+        assertEquals(3, mutations.size());
+        assertEquals(new ChangeRecord.Mutation<String>(BigInteger.ONE, null), mutations.get(0));
+        assertEquals(new ChangeRecord.Mutation<>(BigInteger.ONE, puts.get(BigInteger.ONE)), mutations.get(1));
+        assertEquals(new ChangeRecord.Mutation<>(BigInteger.valueOf(2), puts.get(BigInteger.valueOf(2))), mutations.get(2));
+
+        // A replica that diverged from the leader is detected by the root hash check
+        replica.insert(BigInteger.valueOf(1 << 20), randomBase64(random));
+        leader.insert(BigInteger.valueOf(1 << 21), randomBase64(random));
+        try {
+            follower.poll();
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+
+        // A consumer that falls behind by more than the capacity has to resync
+        ChangeFeed<String, byte[]> small = new ChangeFeed<>(4);
+        leader.addListener(small);
+        long first = leader.nextSequence();
+        for (int i = 0; i != 10; i++) {
+            leader.insert(BigInteger.valueOf((1 << 22) + i), randomBase64(random));
+        }
+        assertNotNull(small.poll(first + 9));
+        try {
+            small.poll(first);
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+    }
+
+    @Test
+    public void metricsTest() throws Exception {
+        Random random = new Random(23);
+        CSMTImpl<String, byte[]> tree = CSMTImpl.createDefault();
+        CSMTMetrics metrics = new CSMTMetrics();
+        tree.setMetrics(metrics);
+
+        for (int i = 0; i != 1000; i++) {
+            tree.insert(BigInteger.valueOf(2 * i), randomBase64(random));
+        }
+        for (int i = 0; i != 100; i++) {
+            tree.remove(BigInteger.valueOf(2 * i));
+        }
+        for (int i = 0; i != 200; i++) {
+            tree.getProof(BigInteger.valueOf(200 + i));
+        }
+        tree.applyBatch(new TreeMap<>(Collections.singletonMap(BigInteger.ONE, randomBase64(random))), Collections.emptySet());
+
+        assertEquals(1000, metrics.getInserts());
+        assertEquals(100, metrics.getRemoves());
+        assertEquals(1, metrics.getBatches());
+        assertEquals(100, metrics.getMembershipProofs());
+        assertEquals(100, metrics.getNonMembershipProofs());
+        assertEquals(1001, metrics.getLeafHashes());
+        assertTrue(metrics.getNodeHashes() > 1000);
+        assertEquals(1000, metrics.getInsertLatency().getCount());
+        assertEquals(200, metrics.getProofSize().getCount());
+        assertTrue(metrics.getPathDepth().getMax() >= 10);
+        assertEquals(2 * 901 - 1, metrics.getNodeCount());
+        assertTrue(metrics.getEstimatedBytes() > metrics.getNodeCount() * 32);
+
+        // The node count is maintained by the writes, also for batches and deferred hashing
+        for (boolean deferHashing : new boolean[]{false, true}) {
+            CSMTImpl<String, byte[]> counted = new CSMTImpl<>(Sha256::keyedLeafHash, Sha256::nodeHash, deferHashing);
+            TreeMap<BigInteger, String> contents = new TreeMap<>();
+            for (int i = 0; i != 300; i++) {
+                BigInteger key = BigInteger.valueOf(random.nextInt(1 << 10));
+                String value = randomBase64(random);
+                counted.insert(key, value);
+                contents.putIfAbsent(key, value);
+            }
+            CSMTMetrics countedMetrics = new CSMTMetrics();
+            counted.setMetrics(countedMetrics);
+            for (int i = 0; i != 300; i++) {
+                BigInteger key = BigInteger.valueOf(random.nextInt(1 << 10));
+                if (i % 10 == 0) {
+                    SortedMap<BigInteger, String> puts = new TreeMap<>();
+                    Set<BigInteger> deletes = new HashSet<>();
+                    for (int j = 0; j != 8; j++) {
+                        puts.put(BigInteger.valueOf(random.nextInt(1 << 10)), randomBase64(random));
+                        deletes.add(BigInteger.valueOf(random.nextInt(1 << 10)));
+                    }
+                    counted.applyBatch(puts, deletes);
+                    contents.keySet().removeAll(deletes);
+                    for (Map.Entry<BigInteger, String> entry : puts.entrySet()) {
+                        contents.putIfAbsent(entry.getKey(), entry.getValue());
+                    }
+                } else if (random.nextBoolean()) {
+                    String value = randomBase64(random);
+                    counted.insert(key, value);
+                    contents.putIfAbsent(key, value);
+                } else {
+                    counted.remove(key);
+                    contents.remove(key);
+                }
+                counted.commit();
+                assertEquals(2L * contents.size() - 1, countedMetrics.getNodeCount());
+            }
+        }
+
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(5050, histogram.getSum());
+        assertEquals(63, histogram.getPercentile50());
+        assertEquals(127, histogram.getMax());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        JmxMetricsRegistry registry = new JmxMetricsRegistry(server);
+        registry.register("test", metrics);
+        try {
+            assertEquals(1000L, server.getAttribute(JmxMetricsRegistry.treeName("test"), "Inserts"));
+            assertEquals(200L, server.getAttribute(JmxMetricsRegistry.histogramName("test", "proofSize"), "Count"));
+        } finally {
+            registry.unregister("test");
+        }
+        assertFalse(server.isRegistered(JmxMetricsRegistry.treeName("test")));
+        assertTrue(server.queryNames(new ObjectName(JmxMetricsRegistry.DOMAIN + ":*"), null).isEmpty());
+
+        tree.setMetrics(null);
+        tree.insert(BigInteger.valueOf(1 << 20), randomBase64(random));
+        assertEquals(1000, metrics.getInserts());
+    }
+
+    @Test
+    public void shardedCSMTTest() {
+        Random random = new Random(29);
+        TreeMap<BigInteger, String> expected = new TreeMap<>();
+        try (ShardedCSMT<String, byte[]> tree = new ShardedCSMT<>(Sha256::keyedLeafHash, Sha256::nodeHash, 3, 20)) {
+            ProofVerifier<String, byte[]> verifier = tree.verifier();
+            assertNull(tree.rootHash());
+            assertTrue(verifier.verify(null, BigInteger.ONE, tree.getProof(BigInteger.ONE)));
+
+            // Shards 0, 5 and 6 stay empty, bounds of their keys come from the neighbouring shards
+            for (int i = 0; i != 5000; i++) {
+                BigInteger key = BigInteger.valueOf(random.nextInt(1 << 20));
+                int shard = tree.shardOf(key);
+                if (shard == 0 || shard == 5 || shard == 6) continue;
+                String value = randomBase64(random);
+                expected.putIfAbsent(key, value);
+                tree.insert(key, value);
+            }
+            SortedMap<BigInteger, String> puts = new TreeMap<>();
+            for (int i = 0; i != 1000; i++) {
+                BigInteger key = BigInteger.valueOf((1 << 17) + random.nextInt(1 << 17));
+                puts.put(key, randomBase64(random));
+            }
+            Set<BigInteger> deletes = new HashSet<>(new ArrayList<>(expected.keySet()).subList(0, 500));
+            tree.applyBatch(puts, deletes);
+            expected.keySet().removeAll(deletes);
+            puts.forEach(expected::putIfAbsent);
+
+            byte[] rootHash = tree.rootHash();
+            for (int i = 0; i != 2000; i++) {
+                BigInteger key = i % 2 == 0
+                        ? new ArrayList<>(expected.keySet()).get(random.nextInt(expected.size()))
+                        : BigInteger.valueOf(random.nextInt(1 << 20));
+                Proof<String, byte[]> proof = tree.getProof(key);
+                assertEquals(expected.containsKey(key), proof instanceof MembershipProof);
+                assertTrue(verifier.verify(rootHash, key, proof));
+                assertEquals(expected.get(key), tree.get(key));
+            }
+            Proof<String, byte[]> proof = tree.getProof(BigInteger.valueOf((5 << 17) + 1));
+            assertTrue(proof instanceof NonMembershipProof);
+            assertTrue(verifier.verify(rootHash, BigInteger.valueOf((5 << 17) + 1), proof));
+            assertTrue(verifier.verify(rootHash, BigInteger.ZERO, tree.getProof(BigInteger.ZERO)));
+
+            // Proofs of other keys do not pass for a missing one
+            BigInteger missing = BigInteger.valueOf(5 << 17);
+            Proof<String, byte[]> member = tree.getProof(expected.firstKey());
+            assertFalse(verifier.verify(rootHash, missing, member));
 
-            Merkle<String, byte[]> treeMerkle = new Merkle<>(high, input,
-                    TestUtils.LEAF_HASH_FUNCTION,
-                    TestUtils.NODE_HASH_FUNCTION);
+            // The combined root only depends on the contents
+            try (ShardedCSMT<String, byte[]> other = new ShardedCSMT<>(Sha256::keyedLeafHash, Sha256::nodeHash, 3, 20)) {
+                other.applyBatch(expected, Collections.emptySet());
+                assertArrayEquals(rootHash, other.rootHash());
+            }
+
+            try {
+                tree.insert(BigInteger.ONE.shiftLeft(20), randomBase64(random));
+                fail();
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+    }
 
-            long time = -System.currentTimeMillis();
-            for (int k = 0; k != 10000; k++) {
-                for (int i = 0; i < count; i += step) {
-                    treeMerkle.getProof(i);
+    @Test
+    public void concurrentCSMTTest() throws Exception {
+        final int threads = 8;
+        final int operations = 20000;
+        ConcurrentCSMT<String, byte[]> tree = new ConcurrentCSMT<>(Sha256::keyedLeafHash, Sha256::nodeHash);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<TreeMap<BigInteger, String>>> results = new ArrayList<>();
+        for (int t = 0; t != threads; t++) {
+            final int thread = t;
+            results.add(executor.submit(() -> {
+                // Every writer owns the keys equal to its number modulo threads
+                Random random = new Random(thread);
+                TreeMap<BigInteger, String> expected = new TreeMap<>();
+                for (int i = 0; i != operations; i++) {
+                    BigInteger key = BigInteger.valueOf(random.nextInt(1 << 12) * threads + thread);
+                    if (i % 500 == 0) {
+                        SortedMap<BigInteger, String> puts = new TreeMap<>();
+                        for (int j = 0; j != 20; j++) {
+                            puts.put(BigInteger.valueOf(random.nextInt(1 << 12) * threads + thread), randomBase64(random));
+                        }
+                        Set<BigInteger> deletes = Collections.singleton(key);
+                        tree.applyBatch(puts, deletes);
+                        expected.remove(key);
+                        puts.forEach(expected::putIfAbsent);
+                    } else if (random.nextInt(3) != 0) {
+                        String value = randomBase64(random);
+                        tree.insert(key, value);
+                        expected.putIfAbsent(key, value);
+                    } else {
+                        tree.remove(key);
+                        expected.remove(key);
+                    }
                 }
+                return expected;
+            }));
+        }
+
+        CSMTImpl<String, byte[]> reference = CSMTImpl.createKeyed();
+        for (Future<TreeMap<BigInteger, String>> result : results) {
+            for (Map.Entry<BigInteger, String> entry : result.get().entrySet()) {
+                assertEquals(entry.getValue(), tree.get(entry.getKey()));
+                reference.insert(entry.getKey(), entry.getValue());
+            }
+        }
+        executor.shutdown();
+
+        assertArrayEquals(reference.rootHash(), tree.rootHash());
+        ProofVerifier<String, byte[]> verifier = tree.verifier();
+        for (int i = 0; i != 1000; i++) {
+            BigInteger key = BigInteger.valueOf(i * 37);
+            assertTrue(verifier.verify(tree.rootHash(), key, tree.getProof(key)));
+        }
+    }
+
+    @Test
+    public void versionedCSMTTest() {
+        Random random = new Random(31);
+        ProofVerifier<String, byte[]> verifier = new ProofVerifier<>(Sha256::keyedLeafHash, Sha256::nodeHash);
+        OffHeapCSMTImpl<String> offHeap = new OffHeapCSMTImpl<>(Sha256::keyedLeafHash, Sha256::nodeHash, 32);
+        List<VersionedCSMT<String, byte[]>> trees = Arrays.asList(CSMTImpl.createKeyed(), offHeap);
+
+        TreeMap<BigInteger, String> before = new TreeMap<>();
+        for (int i = 0; i != 1000; i++) {
+            before.put(BigInteger.valueOf(random.nextInt(1 << 16)), randomBase64(random));
+        }
+        TreeMap<BigInteger, String> after = new TreeMap<>(before);
+        List<BigInteger> removed = new ArrayList<>(before.keySet()).subList(0, 20);
+        after.keySet().removeAll(removed);
+        for (int i = 0; i != 20; i++) {
+            after.putIfAbsent(BigInteger.valueOf((1 << 16) + i), randomBase64(random));
+        }
+
+        for (VersionedCSMT<String, byte[]> tree : trees) {
+            before.forEach(tree::insert);
+            long first = tree.commitVersion();
+            byte[] firstHash = tree.rootHash();
+            int firstNodes = offHeap.nodeCount();
+            removed.forEach(tree::remove);
+            after.forEach(tree::insert);
+            long second = tree.commitVersion();
+            assertTrue(second > first);
+
+            // Only the changed paths are copied
+            if (tree == offHeap) {
+                assertEquals(2 * before.size() - 1, firstNodes);
+                assertTrue(offHeap.nodeCount() < firstNodes + 40 * 20);
+            }
+
+            assertArrayEquals(firstHash, tree.rootHash(first));
+            assertArrayEquals(tree.rootHash(), tree.rootHash(second));
+            for (BigInteger key : removed) {
+                Proof<String, byte[]> past = tree.getProof(key, first);
+                assertTrue(past instanceof MembershipProof);
+                assertTrue(verifier.verify(firstHash, key, past));
+                Proof<String, byte[]> current = tree.getProof(key);
+                assertTrue(current instanceof NonMembershipProof);
+                assertTrue(verifier.verify(tree.rootHash(), key, current));
+            }
+
+            tree.release(first);
+            if (tree == offHeap) {
+                assertEquals(2 * after.size() - 1, offHeap.nodeCount());
+            }
+            for (BigInteger key : after.keySet()) {
+                assertTrue(verifier.verify(tree.rootHash(second), key, tree.getProof(key, second)));
+            }
+            try {
+                tree.getProof(BigInteger.ONE, first);
+                fail();
+            } catch (IllegalArgumentException ignored) {
+            }
+
+            after.keySet().forEach(tree::remove);
+            assertTrue(tree.getProof(after.lastKey(), second) instanceof MembershipProof);
+            tree.release(second);
+            assertNull(tree.rootHash());
+        }
+        assertEquals(0, offHeap.nodeCount());
+        offHeap.close();
+    }
+
+    @Test
+    public void fromSortedTest() {
+        Random random = new Random(37);
+        TreeMap<BigInteger, String> entries = new TreeMap<>();
+        for (int i = 0; i != 100000; i++) {
+            entries.put(new BigInteger(random.nextInt(64) + 1, random), randomBase64(random));
+        }
+
+        CSMTImpl<String, byte[]> inserted = CSMTImpl.createKeyed();
+        entries.forEach(inserted::insert);
+        CSMTImpl<String, byte[]> built = CSMTBuilder.fromSorted(
+                entries.entrySet().iterator(), Sha256::keyedLeafHash, Sha256::nodeHash, new ForkJoinPool(4));
+        assertArrayEquals(inserted.rootHash(), built.rootHash());
+
+        CSMTImpl<String, byte[]> small = CSMTBuilder.fromSorted(
+                entries.headMap(BigInteger.valueOf(1000)).entrySet().stream(), Sha256::keyedLeafHash, Sha256::nodeHash);
+        CSMTImpl<String, byte[]> smallInserted = CSMTImpl.createKeyed();
+        entries.headMap(BigInteger.valueOf(1000)).forEach(smallInserted::insert);
+        assertArrayEquals(smallInserted.rootHash(), small.rootHash());
+
+        // The built tree is an ordinary tree
+        built.insert(BigInteger.ZERO, randomBase64(random));
+        inserted.insert(BigInteger.ZERO, built.get(BigInteger.ZERO));
+        assertArrayEquals(inserted.rootHash(), built.rootHash());
+
+        // Byte array values built through a HashEngine hash the inner nodes in batches
+        TreeMap<BigInteger, byte[]> bytes = new TreeMap<>();
+        entries.headMap(BigInteger.valueOf(1L << 40)).forEach((key, value) -> bytes.put(key, Base64.getDecoder().decode(value)));
+        CSMTImpl<byte[], byte[]> bytesInserted = CSMTImpl.create(HashEngine.sha256());
+        bytes.forEach(bytesInserted::insert);
+        int[] batches = new int[1];
+        HashEngine counting = new HashEngine() {
+            @Override
+            public int hashLength() {
+                return Sha256.HASH_LENGTH;
             }
 
-            System.out.println(String.format("Merkle tree has %d nulls, time: %d",
-                    treeMerkle.countNulls(), System.currentTimeMillis() + time));
+            @Override
+            public void hashLeaf(byte[] value, int offset, int length, byte[] out, int outOffset) {
+                Sha256.INSTANCE.hashLeaf(value, offset, length, out, outOffset);
+            }
+
+            @Override
+            public void hashKeyedLeaf(byte[] key, int keyOffset, int keyLength, byte[] value, int offset, int length, byte[] out, int outOffset) {
+                Sha256.INSTANCE.hashKeyedLeaf(key, keyOffset, keyLength, value, offset, length, out, outOffset);
+            }
 
-            CSMT<String, byte[]> treeCSMT = new CSMTImpl<>(TestUtils.LEAF_HASH_FUNCTION, TestUtils.NODE_HASH_FUNCTION);
-            for (int i = 0; i < count; i += step) {
-                treeCSMT.insert(keys[i], input[i]);
+            @Override
+            public void hashNode(byte[] left, int leftOffset, byte[] right, int rightOffset, byte[] out, int outOffset) {
+                fail();
             }
-            time = -System.currentTimeMillis();
-            for (int k = 0; k != 10000; k++) {
-                for (int i = 0; i < count; i += step) {
-                    treeCSMT.getProof(keys[i]);
+
+            @Override
+            public void hashPairs(byte[] children, int count, byte[] out) {
+                synchronized (batches) {
+                    batches[0]++;
                 }
+                Sha256.INSTANCE.hashPairs(children, count, out);
+            }
+        };
+        CSMTImpl<byte[], byte[]> bytesBuilt = CSMTBuilder.fromSorted(bytes.entrySet().iterator(), counting, new ForkJoinPool(4));
+        assertArrayEquals(bytesInserted.rootHash(), bytesBuilt.rootHash());
+        assertTrue(batches[0] > 0 && batches[0] < bytes.size() / 2);
+        assertNull(CSMTBuilder.fromSorted(Collections.<Map.Entry<BigInteger, byte[]>>emptyIterator(), counting).rootHash());
+
+        assertNull(CSMTBuilder.fromSorted(Stream.<Map.Entry<BigInteger, String>>empty(),
+                Sha256::keyedLeafHash, Sha256::nodeHash).rootHash());
+        try {
+            CSMTBuilder.fromSorted(Stream.of(
+                    new AbstractMap.SimpleEntry<>(BigInteger.TEN, "AA=="),
+                    new AbstractMap.SimpleEntry<>(BigInteger.ONE, "AA==")), Sha256::keyedLeafHash, Sha256::nodeHash);
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    private static MembershipProof<String, byte[]> withKey(MembershipProof<String, byte[]> proof, BigInteger key) {
+        LeafNode<String, byte[]> node = proof.getNode();
+        return new MembershipProof<>(new LeafNode<>(key, node.getValue(), node.getHash()), proof.getProof());
+    }
+
+    private static String randomBase64(Random random) {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    private byte[] multiProofRoot(Iterator<MultiProof.Step> steps,
+                                  Iterator<LeafNode<String, byte[]>> leaves,
+                                  Iterator<byte[]> hashes) {
+        switch (steps.next()) {
+            case LEAF:
+                return TestUtils.LEAF_HASH_FUNCTION.apply(leaves.next().getValue());
+            case HASH:
+                return hashes.next();
+            default:
+                byte[] left = multiProofRoot(steps, leaves, hashes);
+                byte[] right = multiProofRoot(steps, leaves, hashes);
+                return TestUtils.NODE_HASH_FUNCTION.apply(left, right);
+        }
+    }
+
+    private void checkSameProofs(Random random, CSMT<String, byte[]> tree, int bits) {
+        CSMT<String, byte[]> expected = new CSMTImpl<>(
+                TestUtils.LEAF_HASH_FUNCTION,
+                TestUtils.NODE_HASH_FUNCTION);
+
+        List<BigInteger> keys = new ArrayList<>();
+        for (int i = 0; i != 2000; i++) {
+            BigInteger key = new BigInteger(bits, random);
+            String value = TestFactory.getRandomString(10);
+            keys.add(key);
+            expected.insert(key, value);
+            tree.insert(key, value);
+        }
+        for (int i = 0; i != 500; i++) {
+            BigInteger key = random.nextBoolean() ? keys.get(random.nextInt(keys.size())) : new BigInteger(bits, random);
+            expected.remove(key);
+            tree.remove(key);
+        }
+
+        assertArrayEquals(expected.rootHash(), tree.rootHash());
+        for (int i = 0; i != 1000; i++) {
+            BigInteger key = random.nextBoolean() ? keys.get(random.nextInt(keys.size())) : new BigInteger(bits, random);
+            TestUtils.assertProofEquals(expected.getProof(key), tree.getProof(key));
+        }
+    }
+
+    private void checkProofs(TestFactory.Test test, CSMT<String, byte[]> tree) {
+        final int high = TestUtils.log2(test.input.length);
+
+        for (int i = 0; i != test.input.length; i++) {
+            Proof proof = tree.getProof(BigInteger.valueOf(i));
+
+            if (proof instanceof MembershipProof) {
+                MembershipProof membershipProof = (MembershipProof) proof;
+                LeafNode leaf = membershipProof.getNode();
+
+                assertArrayEquals(test.hashes[0][i], (byte[]) leaf.getHash());
+
+                int index = i;
+                Iterator proofIterator = membershipProof.getProof().iterator();
+                for (int h = 0; h != high; h++) {
+                    int currIndex = index % 2 == 0 ? index + 1 : index - 1;
+                    byte[] testHash = test.hashes[h][currIndex];
+                    if (testHash != null) {
+                        byte[] currHash = (byte[]) ((MembershipProof.Entry) proofIterator.next()).getHash();
+                        assertArrayEquals("at index=" + i + " at level: " + h, testHash, currHash);
+                    }
+                    index /= 2;
+                }
+            }
+        }
+    }
+
+    private void checkProofs(TestFactory.Test test, Merkle<String, byte[]> merkleTree) {
+        final int high = TestUtils.log2(test.input.length);
+
+        for (int i = 0; i != test.input.length; i++) {
+            MerkleProof proof = merkleTree.getProof(i);
+
+            assertArrayEquals(test.hashes[0][i], (byte[]) proof.getTargetByteArray());
+            List neighbors = proof.getNeighbors();
+            int index = i;
+
+            for (int h = 0; h != high; h++) {
+                int currIndex = index % 2 == 0 ? index + 1 : index - 1;
+                byte[] currHash = (byte[]) neighbors.get(h);
+
+                assertArrayEquals("at index=" + i + " at level: " + h,
+                        test.hashes[h][currIndex], currHash);
+                index /= 2;
             }
-            System.out.println("CSMT time: " + (System.currentTimeMillis() + time));
-            System.out.println();
         }
     }
 }
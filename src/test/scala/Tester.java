@@ -1,12 +1,21 @@
 import implementation.Tree;
 import implementation.adt.MembershipProof;
 import implementation.adt.ProofResult;
+import implementation.utils.HashingUtils;
+import implementation.utils.TreeUtils;
 import model.TestUtils;
 import model.tester.Merkle;
 import model.tester.MerkleProof;
 import org.junit.Test;
+import scala.Tuple2;
+import scala.collection.JavaConverters;
 import scala.math.BigInt;
 
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 
@@ -27,6 +36,41 @@ public class Tester {
         checkProof(csmt, merkleTree, input.length, high);
     }
 
+    @Test
+    public void CSMTLargeKeysTestScala() {
+        assertEquals(201, TreeUtils.distance(BigInt.apply(2).pow(200).$minus(BigInt.apply(1)), BigInt.apply(2).pow(200)));
+        assertEquals(-1, TreeUtils.distance(BigInt.apply(5), BigInt.apply(5)));
+
+        // Keys next to powers of two, where a floating-point logarithm rounds up
+        Tree csmt = new Tree();
+        List<BigInt> keys = new ArrayList<>();
+        for (int bits = 60; bits <= 250; bits += 10) {
+            BigInt power = BigInt.apply(2).pow(bits);
+            keys.add(power.$minus(BigInt.apply(1)));
+            keys.add(power);
+            keys.add(power.$plus(BigInt.apply(1)));
+        }
+        for (BigInt key : keys) {
+            csmt.insert(key, key.toString());
+        }
+        for (BigInt key : keys) {
+            ProofResult proof = (ProofResult) csmt.getProof(key);
+            assertEquals(key, proof.key());
+            assertArrayEquals(csmt.root().hash(), rootHash(proof));
+        }
+    }
+
+    private static byte[] rootHash(ProofResult proof) {
+        byte[] hash = HashingUtils.countLeafHash(proof.value());
+        assertArrayEquals(hash, proof.hash());
+        for (Tuple2<byte[], String> entry : JavaConverters.seqAsJavaList(proof.proof())) {
+            hash = entry._2().equals("L")
+                    ? HashingUtils.countHash(entry._1(), hash)
+                    : HashingUtils.countHash(hash, entry._1());
+        }
+        return hash;
+    }
+
     private void checkProof(Tree tree, Merkle<String, String> merkleTree, final int numberOfElements, final int high) {
         for (int i = 0; i != numberOfElements; i++) {
             MembershipProof proof = tree.getProof(BigInt.apply(i));
@@ -34,7 +78,7 @@ public class Tester {
 
             ProofResult membershipProof = (ProofResult) proof;
             assertNotNull(membershipProof);
-            assertEquals(merkleProof.getTargetByteArray(), membershipProof.hash());
+            assertEquals(merkleProof.getTargetByteArray(), Base64.getEncoder().encodeToString(membershipProof.hash()));
         }
     }
 }